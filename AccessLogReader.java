@@ -0,0 +1,675 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.LocalDate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+public class AccessLogReader
+{
+	// Builds the train/test data straight from web server access logs in Common Log Format, plain or gzipped:
+	//   host ident user [01/Jul/1995:00:00:01 -0400] "GET /shuttle/countdown/ HTTP/1.0" 200 3985
+	// Only successful (2xx or 304) GET requests for urls ending with the suffix (.html by default) count.
+	// The logs are read twice, each time all files in parallel:
+	// 1. the hostnames and urls are interned in dictionaries with dense ids and their requests are counted,
+	// 2. the most active clients get a 1 for every one of the most requested urls they requested, in the
+	//    train data before the split time and in the test data from then on.
+	// So memory depends on the number of different hostnames, urls and (client, url) pairs, not on the size
+	// of the logs. Rows are the clients from most to least active, columns the urls from most to least
+	// requested, like clients.dat and requests.dat. With many urls the data is a SparseMatrix, otherwise a
+	// BinaryMatrix.
+
+	// Size of the read buffer per file, it grows for longer lines
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final String MONTHS = "JanFebMarAprMayJunJulAugSepOctNovDec";
+
+	// Number of urls (dimensions) and clients (rows) in the data
+	private int urls;
+	private int clients;
+
+	private String suffix;
+
+	// Requests before the split time (seconds since 1970) are train data, the rest test data.
+	// Long.MIN_VALUE splits in the middle of the time range of the logs.
+	private long split;
+
+	private int threads;
+
+	// Results of read()
+	private List<String> urlNames;
+	private List<String> clientNames;
+	private DataMatrix trainData;
+	private DataMatrix testData;
+	private long lines;
+	private long requests;
+	private long skipped;
+
+	// Interns names in dense ids 0, 1, 2, ... in order of first appearance, and counts the requests per name
+	static class Dictionary
+	{
+		private final Map<String, Integer> ids = new HashMap<>();
+		private final List<String> names = new ArrayList<>();
+		private long[] counts = new long[1024];
+
+		int add(String name, long count)
+		{
+			Integer id = ids.get(name);
+			if (id == null) {
+				id = names.size();
+				ids.put(name, id);
+				names.add(name);
+				if (id == counts.length)
+					counts = Arrays.copyOf(counts, 2 * counts.length);
+			}
+			counts[id] += count;
+			return id;
+		}
+
+		int size()
+		{
+			return names.size();
+		}
+
+		String name(int id)
+		{
+			return names.get(id);
+		}
+
+		long count(int id)
+		{
+			return counts[id];
+		}
+
+		// The ids of the n most counted names, the most counted first and the first seen on a tie
+		int[] top(int n)
+		{
+			Integer[] sorted = new Integer[names.size()];
+			for (int id = 0; id < sorted.length; id++)
+				sorted[id] = id;
+			Arrays.sort(sorted, (a, b) -> counts[a] != counts[b] ? Long.compare(counts[b], counts[a]) : Integer.compare(a, b));
+
+			int[] top = new int[Math.min(n, sorted.length)];
+			for (int i = 0; i < top.length; i++)
+				top[i] = sorted[i];
+			return top;
+		}
+	}
+
+	// Result of the first pass over one file
+	static class Counts
+	{
+		Dictionary hosts = new Dictionary();
+		Dictionary paths = new Dictionary();
+		long first = Long.MAX_VALUE;
+		long last = Long.MIN_VALUE;
+		long lines;
+		long requests;
+		long skipped;
+	}
+
+	// Distinct (row, column) pairs as row << 32 | column, sorted and without duplicates every time the array is full
+	static class Pairs
+	{
+		private long[] pairs = new long[1024];
+		private int size;
+
+		void add(int row, int column)
+		{
+			if (size == pairs.length)
+				compact();
+			pairs[size++] = (long) row << 32 | column;
+		}
+
+		private void compact()
+		{
+			size = unique(pairs, size);
+			if (size > pairs.length / 2)
+				pairs = Arrays.copyOf(pairs, 2 * pairs.length);
+		}
+
+		long[] toArray()
+		{
+			size = unique(pairs, size);
+			return Arrays.copyOf(pairs, size);
+		}
+	}
+
+	// Sorts the first size pairs and removes the duplicates, returns the number of distinct pairs
+	private static int unique(long[] pairs, int size)
+	{
+		Arrays.sort(pairs, 0, size);
+		int distinct = 0;
+		for (int i = 0; i < size; i++)
+			if (distinct == 0 || pairs[i] != pairs[distinct - 1])
+				pairs[distinct++] = pairs[i];
+		return distinct;
+	}
+
+	// One parsed log line, the host and path are ranges of the line
+	static class Request
+	{
+		int hostFrom;
+		int hostTo;
+		int pathFrom;
+		int pathTo;
+		long time;
+	}
+
+	// Reads a file line by line, with the lines as ranges of a byte array
+	static class Lines implements Closeable
+	{
+		private final ReadableByteChannel channel;
+		private byte[] data;
+		private int position;
+		private int limit;
+		private boolean eof;
+
+		// current line: data[from..to)
+		int from;
+		int to;
+
+		Lines(String fileName) throws IOException
+		{
+			FileChannel file = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+			if (fileName.endsWith(".gz"))
+				channel = Channels.newChannel(new GZIPInputStream(Channels.newInputStream(file), BUFFER_SIZE));
+			else
+				channel = file;
+			data = new byte[BUFFER_SIZE];
+		}
+
+		byte[] data()
+		{
+			return data;
+		}
+
+		boolean next() throws IOException
+		{
+			while (true) {
+				for (int i = position; i < limit; i++) {
+					if (data[i] == '\n') {
+						from = position;
+						to = i > position && data[i - 1] == '\r' ? i - 1 : i;
+						position = i + 1;
+						return true;
+					}
+				}
+				if (eof) {
+					// last line without a newline
+					if (position == limit)
+						return false;
+					from = position;
+					to = limit;
+					position = limit;
+					return true;
+				}
+
+				// keep the incomplete line and read behind it
+				System.arraycopy(data, position, data, 0, limit - position);
+				limit -= position;
+				position = 0;
+				if (limit == data.length)
+					data = Arrays.copyOf(data, 2 * data.length);
+				int read = channel.read(ByteBuffer.wrap(data, limit, data.length - limit));
+				if (read < 0)
+					eof = true;
+				else
+					limit += read;
+			}
+		}
+
+		public void close() throws IOException
+		{
+			channel.close();
+		}
+	}
+
+	public AccessLogReader()
+	{
+		urls = 200;
+		clients = 1000;
+		suffix = ".html";
+		split = Long.MIN_VALUE;
+		threads = 1;
+	}
+
+	// Builds data files from access logs:
+	//   java AccessLogReader [--key value ...] <log files>
+	//   urls, clients   number of urls and clients in the data                      default 200, 1000
+	//   suffix          only urls with this suffix, empty for all urls              default .html
+	//   split           first time of the test data, like 01/Aug/1995:00:00:00 -0400 default the middle
+	//   threads         number of files read at the same time                        default all processors
+	//   out             directory for train, test, requests.dat and clients.dat      default .
+	//   format          bin (binary data files, see DatasetFile) or dat (text)       default bin
+	public static void main(String[] args)
+	{
+		Map<String, String> settings = new HashMap<>();
+		List<String> files = new ArrayList<>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].startsWith("--") && i + 1 < args.length)
+				settings.put(args[i].substring(2), args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			System.out.println("usage: java AccessLogReader [--urls n] [--clients n] [--suffix .html] [--split time] [--threads n] [--out directory] [--format bin|dat] <log files>");
+			System.exit(1);
+		}
+
+		AccessLogReader reader = new AccessLogReader();
+		try {
+			reader.setUrls(Integer.parseInt(settings.getOrDefault("urls", "200")));
+			reader.setClients(Integer.parseInt(settings.getOrDefault("clients", "1000")));
+			reader.setSuffix(settings.getOrDefault("suffix", ".html"));
+			reader.setThreads(Integer.parseInt(settings.getOrDefault("threads", "" + Runtime.getRuntime().availableProcessors())));
+			if (settings.containsKey("split"))
+				reader.setSplit(settings.get("split"));
+
+			long start = System.currentTimeMillis();
+			reader.read(files);
+			reader.write(settings.getOrDefault("out", "."), settings.getOrDefault("format", "bin"));
+			System.out.println("Read " + reader.lines() + " lines (" + reader.requests() + " requests, " + reader.skipped() + " not in Common Log Format) in "
+				+ (System.currentTimeMillis() - start) + " ms: " + reader.trainData().rows() + " clients, " + reader.trainData().dim() + " urls");
+		}
+		catch (Exception e) {
+			System.out.println("error occured while reading the logs:" + e);
+			System.exit(1);
+		}
+	}
+
+	// Reads all log files
+	public void read(List<String> fileNames) throws IOException
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, fileNames.size())));
+		try {
+			// first pass: dictionaries and counts, merged in the order of the files so the ids do not
+			// depend on which file is read first
+			List<Future<Counts>> counted = new ArrayList<>();
+			for (String fileName : fileNames)
+				counted.add(executor.submit(() -> count(fileName)));
+
+			Dictionary hosts = new Dictionary();
+			Dictionary paths = new Dictionary();
+			long first = Long.MAX_VALUE;
+			long last = Long.MIN_VALUE;
+			lines = requests = skipped = 0;
+			for (Future<Counts> future : counted) {
+				Counts counts = get(future);
+				for (int id = 0; id < counts.hosts.size(); id++)
+					hosts.add(counts.hosts.name(id), counts.hosts.count(id));
+				for (int id = 0; id < counts.paths.size(); id++)
+					paths.add(counts.paths.name(id), counts.paths.count(id));
+				first = Math.min(first, counts.first);
+				last = Math.max(last, counts.last);
+				lines += counts.lines;
+				requests += counts.requests;
+				skipped += counts.skipped;
+			}
+
+			int[] topClients = hosts.top(clients);
+			int[] topUrls = paths.top(urls);
+			Map<String, Integer> rows = new HashMap<>();
+			clientNames = new ArrayList<>();
+			for (int row = 0; row < topClients.length; row++) {
+				rows.put(hosts.name(topClients[row]), row);
+				clientNames.add(hosts.name(topClients[row]));
+			}
+			Map<String, Integer> columns = new HashMap<>();
+			urlNames = new ArrayList<>();
+			for (int column = 0; column < topUrls.length; column++) {
+				columns.put(paths.name(topUrls[column]), column);
+				urlNames.add(paths.name(topUrls[column]));
+			}
+
+			// second pass: the requested (client, url) pairs of the train and test data, the pairs of all files
+			// together are the same in any order
+			long splitTime = split != Long.MIN_VALUE || first > last ? split : first + (last - first) / 2;
+			List<Future<Pairs[]>> filled = new ArrayList<>();
+			for (String fileName : fileNames)
+				filled.add(executor.submit(() -> fill(fileName, rows, columns, splitTime)));
+
+			List<long[]> train = new ArrayList<>();
+			List<long[]> test = new ArrayList<>();
+			for (Future<Pairs[]> future : filled) {
+				Pairs[] pairs = get(future);
+				train.add(pairs[0].toArray());
+				test.add(pairs[1].toArray());
+			}
+			trainData = matrix(train, topClients.length, topUrls.length);
+			testData = matrix(test, topClients.length, topUrls.length);
+		}
+		finally {
+			executor.shutdown();
+		}
+	}
+
+	private static <T> T get(Future<T> future) throws IOException
+	{
+		try {
+			return future.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		}
+	}
+
+	// The data with a 1 for the pairs of all files
+	private static DataMatrix matrix(List<long[]> files, int rows, int dim)
+	{
+		long total = 0;
+		for (long[] pairs : files)
+			total += pairs.length;
+		if (total > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException("more than " + Integer.MAX_VALUE + " requests in the data");
+		long[] pairs = new long[(int) total];
+		int size = 0;
+		for (long[] file : files) {
+			System.arraycopy(file, 0, pairs, size, file.length);
+			size += file.length;
+		}
+		size = unique(pairs, size);
+
+		// dense data as bits, unless there are too many rows for one array of bits
+		int words = (dim + 63) >>> 6;
+		if (!SparseMatrix.isSparse(size, rows, dim) && (long) rows * words <= Integer.MAX_VALUE - 8) {
+			long[] bits = new long[rows * words];
+			for (int i = 0; i < size; i++) {
+				int column = (int) pairs[i];
+				bits[(int) (pairs[i] >>> 32) * words + (column >>> 6)] |= 1L << column;
+			}
+			return new BinaryMatrix(bits, rows, dim);
+		}
+
+		int[] offsets = new int[rows + 1];
+		int[] columns = new int[size];
+		for (int i = 0; i < size; i++) {
+			offsets[(int) (pairs[i] >>> 32) + 1]++;
+			columns[i] = (int) pairs[i];
+		}
+		for (int row = 0; row < rows; row++)
+			offsets[row + 1] += offsets[row];
+		return new SparseMatrix(offsets, columns, null, rows, dim);
+	}
+
+	private Counts count(String fileName) throws IOException
+	{
+		Counts counts = new Counts();
+		Request request = new Request();
+		byte[] suffixBytes = suffix.getBytes(StandardCharsets.ISO_8859_1);
+		try (Lines lines = new Lines(fileName)) {
+			while (lines.next()) {
+				counts.lines++;
+				byte[] data = lines.data();
+				if (!parse(data, lines.from, lines.to, request)) {
+					counts.skipped++;
+					continue;
+				}
+				if (request.time == Long.MIN_VALUE || !endsWith(data, request.pathFrom, request.pathTo, suffixBytes))
+					continue;
+
+				counts.requests++;
+				counts.hosts.add(new String(data, request.hostFrom, request.hostTo - request.hostFrom, StandardCharsets.ISO_8859_1), 1);
+				counts.paths.add(new String(data, request.pathFrom, request.pathTo - request.pathFrom, StandardCharsets.ISO_8859_1), 1);
+				counts.first = Math.min(counts.first, request.time);
+				counts.last = Math.max(counts.last, request.time);
+			}
+		}
+		return counts;
+	}
+
+	// The train and test pairs of one file
+	private Pairs[] fill(String fileName, Map<String, Integer> rows, Map<String, Integer> columns, long splitTime) throws IOException
+	{
+		Pairs train = new Pairs();
+		Pairs test = new Pairs();
+		Request request = new Request();
+		byte[] suffixBytes = suffix.getBytes(StandardCharsets.ISO_8859_1);
+		try (Lines lines = new Lines(fileName)) {
+			while (lines.next()) {
+				byte[] data = lines.data();
+				if (!parse(data, lines.from, lines.to, request) || request.time == Long.MIN_VALUE
+						|| !endsWith(data, request.pathFrom, request.pathTo, suffixBytes))
+					continue;
+
+				Integer row = rows.get(new String(data, request.hostFrom, request.hostTo - request.hostFrom, StandardCharsets.ISO_8859_1));
+				if (row == null)
+					continue;
+				Integer column = columns.get(new String(data, request.pathFrom, request.pathTo - request.pathFrom, StandardCharsets.ISO_8859_1));
+				if (column == null)
+					continue;
+
+				(request.time < splitTime ? train : test).add(row, column);
+			}
+		}
+		return new Pairs[] {train, test};
+	}
+
+	// Parses a line of data[from..to). Returns false when it is not in Common Log Format, a request that
+	// does not count (not a successful GET) gets time Long.MIN_VALUE.
+	static boolean parse(byte[] data, int from, int to, Request request)
+	{
+		int space = indexOf(data, from, to, (byte) ' ');
+		int open = indexOf(data, Math.max(space, from), to, (byte) '[');
+		int close = indexOf(data, Math.max(open, from), to, (byte) ']');
+		int quote = indexOf(data, Math.max(close, from), to, (byte) '"');
+		int endQuote = lastIndexOf(data, quote + 1, to, (byte) '"');
+		if (space <= from || open < 0 || close < 0 || quote < 0 || endQuote < 0)
+			return false;
+		request.hostFrom = from;
+		request.hostTo = space;
+
+		long time = parseTime(data, open + 1, close);
+		if (time == Long.MIN_VALUE)
+			return false;
+
+		// "GET /path HTTP/1.0", the query string is not part of the url
+		int methodEnd = indexOf(data, quote + 1, endQuote, (byte) ' ');
+		if (methodEnd < 0)
+			return false;
+		int pathFrom = methodEnd + 1;
+		int pathTo = pathFrom;
+		while (pathTo < endQuote && data[pathTo] != ' ' && data[pathTo] != '?' && data[pathTo] != '#')
+			pathTo++;
+		request.pathFrom = pathFrom;
+		request.pathTo = pathTo;
+
+		int status = 0;
+		int i = endQuote + 1;
+		while (i < to && data[i] == ' ')
+			i++;
+		int digits = 0;
+		for (; i < to && data[i] >= '0' && data[i] <= '9'; i++, digits++)
+			status = 10 * status + data[i] - '0';
+		if (digits == 0)
+			return false;
+
+		boolean get = methodEnd - quote - 1 == 3 && data[quote + 1] == 'G' && data[quote + 2] == 'E' && data[quote + 3] == 'T';
+		boolean success = (status >= 200 && status < 300) || status == 304;
+		request.time = get && success && pathTo > pathFrom ? time : Long.MIN_VALUE;
+		return true;
+	}
+
+	// Seconds since 1970 of dd/MMM/yyyy:HH:mm:ss [+-]hhmm in data[from..to), Long.MIN_VALUE if it is not a time.
+	// Without a zone the time is UTC.
+	static long parseTime(byte[] data, int from, int to)
+	{
+		if (to - from < 20 || data[from + 2] != '/' || data[from + 6] != '/' || data[from + 11] != ':')
+			return Long.MIN_VALUE;
+		int month = MONTHS.indexOf(new String(data, from + 3, 3, StandardCharsets.ISO_8859_1));
+		int day = number(data, from, 2);
+		int year = number(data, from + 7, 4);
+		int hour = number(data, from + 12, 2);
+		int minute = number(data, from + 15, 2);
+		int second = number(data, from + 18, 2);
+		if (month < 0 || month % 3 != 0 || day < 1 || day > 31 || year < 0 || hour < 0 || minute < 0 || second < 0)
+			return Long.MIN_VALUE;
+
+		long time;
+		try {
+			time = LocalDate.of(year, month / 3 + 1, day).toEpochDay() * 86400 + hour * 3600 + minute * 60 + second;
+		}
+		catch (RuntimeException e) {
+			return Long.MIN_VALUE;
+		}
+
+		if (to - from >= 26 && data[from + 20] == ' ' && (data[from + 21] == '+' || data[from + 21] == '-')) {
+			int zoneHours = number(data, from + 22, 2);
+			int zoneMinutes = number(data, from + 24, 2);
+			if (zoneHours < 0 || zoneMinutes < 0)
+				return Long.MIN_VALUE;
+			int offset = zoneHours * 3600 + zoneMinutes * 60;
+			time -= data[from + 21] == '+' ? offset : -offset;
+		}
+		return time;
+	}
+
+	// Decimal number of the given number of digits, -1 if they are not all digits
+	private static int number(byte[] data, int from, int digits)
+	{
+		int value = 0;
+		for (int i = from; i < from + digits; i++) {
+			if (data[i] < '0' || data[i] > '9')
+				return -1;
+			value = 10 * value + data[i] - '0';
+		}
+		return value;
+	}
+
+	private static int indexOf(byte[] data, int from, int to, byte value)
+	{
+		for (int i = from; i < to; i++)
+			if (data[i] == value)
+				return i;
+		return -1;
+	}
+
+	private static int lastIndexOf(byte[] data, int from, int to, byte value)
+	{
+		for (int i = to - 1; i >= from; i--)
+			if (data[i] == value)
+				return i;
+		return -1;
+	}
+
+	private static boolean endsWith(byte[] data, int from, int to, byte[] suffix)
+	{
+		if (to - from < suffix.length)
+			return false;
+		for (int i = 0; i < suffix.length; i++)
+			if (data[to - suffix.length + i] != suffix[i])
+				return false;
+		return true;
+	}
+
+	// Writes train and test data (train.bin/test.bin, or train.dat/test.dat as text), requests.dat and clients.dat
+	public void write(String directory, String format) throws IOException
+	{
+		if (format.equals("bin")) {
+			DatasetFile.write(trainData, new File(directory, "train.bin").getPath(), trainData instanceof SparseMatrix ? DatasetFile.SPARSE : DatasetFile.BITS);
+			DatasetFile.write(testData, new File(directory, "test.bin").getPath(), testData instanceof SparseMatrix ? DatasetFile.SPARSE : DatasetFile.BITS);
+		}
+		else {
+			writeText(trainData, new File(directory, "train.dat"));
+			writeText(testData, new File(directory, "test.dat"));
+		}
+		Files.write(new File(directory, "requests.dat").toPath(), urlNames, StandardCharsets.ISO_8859_1);
+		Files.write(new File(directory, "clients.dat").toPath(), clientNames, StandardCharsets.ISO_8859_1);
+	}
+
+	private static void writeText(DataMatrix matrix, File file) throws IOException
+	{
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(file)))) {
+			for (int row = 0; row < matrix.rows(); row++) {
+				StringBuilder line = new StringBuilder();
+				for (int i = 0; i < matrix.dim(); i++)
+					line.append(i == 0 ? "" : " ").append(matrix.get(row, i));
+				writer.println(line);
+			}
+		}
+	}
+
+	public void setUrls(int urls)
+	{
+		this.urls = urls;
+	}
+
+	public void setClients(int clients)
+	{
+		this.clients = clients;
+	}
+
+	// Only urls with this suffix count, the empty string for all urls
+	public void setSuffix(String suffix)
+	{
+		this.suffix = suffix;
+	}
+
+	// First time of the test data, in seconds since 1970
+	public void setSplit(long split)
+	{
+		this.split = split;
+	}
+
+	// First time of the test data, in the format of the logs: 01/Aug/1995:00:00:00 -0400
+	public void setSplit(String split)
+	{
+		byte[] data = split.getBytes(StandardCharsets.ISO_8859_1);
+		long time = parseTime(data, 0, data.length);
+		if (time == Long.MIN_VALUE)
+			throw new IllegalArgumentException("split time " + split + " is not like 01/Aug/1995:00:00:00 -0400");
+		this.split = time;
+	}
+
+	// Number of files read at the same time
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	public DataMatrix trainData()
+	{
+		return trainData;
+	}
+
+	public DataMatrix testData()
+	{
+		return testData;
+	}
+
+	// The url of every column and the hostname of every row
+	public List<String> urls()
+	{
+		return urlNames;
+	}
+
+	public List<String> clients()
+	{
+		return clientNames;
+	}
+
+	// Number of lines, of requests that count and of lines that were not in Common Log Format, by the last read()
+	public long lines()
+	{
+		return lines;
+	}
+
+	public long requests()
+	{
+		return requests;
+	}
+
+	public long skipped()
+	{
+		return skipped;
+	}
+}
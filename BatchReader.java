@@ -0,0 +1,133 @@
+import java.io.*;
+import java.util.*;
+
+public class BatchReader implements Closeable
+{
+	// Reads a train/test data file (one vector per line) in batches of at most batchSize rows,
+	// so a data file does not have to fit in memory at once. Batches in which few elements are not 0
+	// are stored in a SparseMatrix (see SparseMatrix.isSparse), other batches with only 0/1 values
+	// are packed in a BinaryMatrix. A binary data file (*.bin) is mapped a batch at a time instead,
+	// see DatasetFile.map.
+
+	private final String fileName;
+	private final int batchSize;
+
+	// Dimensionality of the vectors, known after the first line has been read
+	private int dim;
+
+	private BufferedReader reader;
+
+	// Number of rows of a binary data file, read from its header on the first batch
+	private final boolean binary;
+	private int fileRows = -1;
+
+	// Number of rows returned since the last reset
+	private int rowsRead;
+
+	public BatchReader(String fileName, int batchSize)
+	{
+		this.fileName = fileName;
+		this.batchSize = batchSize;
+		this.binary = fileName.endsWith(".bin");
+	}
+
+	// Next batch of rows, or null at the end of the file
+	public DataMatrix next() throws IOException
+	{
+		if (binary) {
+			if (fileRows < 0)
+				fileRows = DatasetFile.rows(fileName);
+			if (rowsRead >= fileRows)
+				return null;
+			DataMatrix batch = DatasetFile.map(fileName, rowsRead, batchSize);
+			dim = batch.dim();
+			rowsRead += batch.rows();
+			return batch;
+		}
+
+		if (reader == null)
+			reader = new BufferedReader(new FileReader(fileName));
+
+		float[] data = new float[dim == 0 ? 1024 : Math.min(batchSize, 1024) * dim];
+		int rows = 0;
+		long nonZeros = 0;
+		String line;
+		while (rows < batchSize && (line = reader.readLine()) != null) {
+			StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
+
+			if (dim == 0)
+				dim = st.countTokens();
+
+			else if (dim != st.countTokens())
+				throw new IOException("vectors have different size (line " + (rowsRead + rows + 1) + ")");
+
+			if ((long) (rows + 1) * dim > data.length)
+				data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8, Math.max(2L * data.length, (long) (rows + 1) * dim)));
+
+			for (int i = 0; i < dim; i++) {
+				data[rows * dim + i] = Float.parseFloat(st.nextToken());
+				if (data[rows * dim + i] != 0)
+					nonZeros++;
+			}
+
+			rows++;
+		}
+
+		if (rows == 0)
+			return null;
+		rowsRead += rows;
+
+		FloatMatrix batch = new FloatMatrix(Arrays.copyOf(data, rows * dim), rows, dim);
+		if (SparseMatrix.isSparse(nonZeros, rows, dim))
+			return SparseMatrix.pack(batch);
+		if (batch.isBinary())
+			return BinaryMatrix.pack(batch);
+		return batch;
+	}
+
+	// Skips rows without reading their values, returns the number of rows skipped (less at the end of the file)
+	public int skip(int rows) throws IOException
+	{
+		if (binary) {
+			if (fileRows < 0)
+				fileRows = DatasetFile.rows(fileName);
+			int skipped = Math.min(rows, fileRows - rowsRead);
+			rowsRead += skipped;
+			return skipped;
+		}
+
+		if (reader == null)
+			reader = new BufferedReader(new FileReader(fileName));
+
+		int skipped = 0;
+		while (skipped < rows && reader.readLine() != null)
+			skipped++;
+		rowsRead += skipped;
+		return skipped;
+	}
+
+	// Starts reading at the first line again
+	public void reset() throws IOException
+	{
+		close();
+		rowsRead = 0;
+	}
+
+	public void close() throws IOException
+	{
+		if (reader != null)
+			reader.close();
+		reader = null;
+	}
+
+	public int dim()
+	{
+		return dim;
+	}
+
+	// Index of the first row of the next batch
+	public int rowsRead()
+	{
+		return rowsRead;
+	}
+}
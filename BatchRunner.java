@@ -0,0 +1,421 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BatchRunner
+{
+	// Runs the clustering algorithms without any interaction: every combination of the given parameters is
+	// trained and tested, independent combinations in parallel, and the results are written to a file.
+	//
+	//   java BatchRunner [--config sweep.properties] [--key value ...]
+	//
+	// Settings are read from the properties file first and can be overridden on the command line.
+	// Lists are separated by commas:
+	//   train, test          data files (text or binary *.bin)        default train.dat, test.dat
+	//   logs                 access logs (Common Log Format, plain or .gz) to build the data from instead of
+	//                        the data files, with urls, clients and split as for AccessLogReader (not for minibatch)
+	//   algorithms           kmeans, kohonen, leaderfollower, minibatch default kmeans
+	//   k                    clusters for kmeans and minibatch        default 4
+	//   seeding              initial prototypes for kmeans: random, kmeans++ or kmeans||   default random
+	//   restarts             kmeans runs with different seeds of which the best is kept      default 1
+	//   selection            best kmeans restart by lowest sum of squares (sse) or highest hitrate+accuracy (hitrate)
+	//                                                                 default sse
+	//   n, epochs            map size and epochs for kohonen          default 4, 10
+	//   learningRate         initial learning rate for kohonen        default 0.8
+	//   training             online or batch training for kohonen     default online
+	//   schedule             decrease of the kohonen learning rate and radius: linear, exponential or inverse
+	//                                                                 default linear
+	//   patience             kohonen epochs in a row without progress after which the training stops,
+	//                        0 trains all epochs                      default 0
+	//   tolerance            progress the kohonen training has to make in an epoch (see Kohonen.Convergence)
+	//                                                                 default 0.001
+	//   maxDis, alpha        cluster distance and learning rate for leaderfollower   default 4.5, 0.1
+	//   batchSize            batch size for minibatch                 default 1000
+	//   seeds                random seeds for kmeans, kohonen and minibatch          default 1
+	//   thresholds           prefetch thresholds to report            default 0.5
+	//   parallel             number of configurations trained at the same time       default all processors
+	//   out, format          result file and its format (csv or json, one object per line)  default results.csv, csv
+	//   models               directory to save every trained model in, as run<run>.model (see ModelFile)
+	//                        not for minibatch                        default none
+	//   metrics              csv file with the timings and counts of every phase of every run (see Metrics)
+	//                                                                 default none
+	//
+	// Every configuration gives one result per threshold, with the training and test time and the
+	// best threshold of the whole threshold curve. A run that fails to train gives no results, it is reported
+	// on System.err.
+
+	private static final String[] COLUMNS = {"run", "algorithm", "k", "seeding", "restarts", "n", "epochs", "learningRate", "training", "schedule", "patience",
+		"maxDis", "alpha", "batchSize", "seed", "epochsTrained", "trainMillis", "testMillis", "threshold", "hitrate", "accuracy", "hitrate+accuracy",
+		"bestThreshold", "bestHitrate+accuracy"};
+
+	private static Properties settings;
+
+	private static DataMatrix trainData;
+	private static DataMatrix testData;
+
+	// Where the progress of the runs is reported, the algorithms themselves only report errors
+	private static PrintStream console;
+	private static PrintWriter out;
+	private static boolean json;
+	private static Metrics.CsvSink metrics;
+	private static final AtomicInteger failed = new AtomicInteger();
+
+	public static void main(String[] args)
+	{
+		main(args, System.out);
+	}
+
+	static void main(String[] args, PrintStream console)
+	{
+		BatchRunner.console = console;
+		settings = new Properties();
+		metrics = null;
+		failed.set(0);
+		try {
+			readArguments(args);
+		}
+		catch (Exception e) {
+			console.println("error occured while reading the settings:" + e);
+			System.exit(1);
+		}
+
+		try {
+			if (settings.containsKey("logs"))
+				readLogs();
+			else {
+				trainData = DatasetFile.load(settings.getProperty("train", "train.dat"));
+				testData = DatasetFile.load(settings.getProperty("test", "test.dat"));
+			}
+		}
+		catch (Exception e) {
+			console.println("error occured while reading data:" + e);
+			System.exit(1);
+		}
+		if (trainData.dim() != testData.dim()) {
+			console.println("traindata and testdata vectors have different size");
+			System.exit(1);
+		}
+
+		List<Map<String, String>> runs = configurations();
+		int parallel = Integer.parseInt(settings.getProperty("parallel", "" + Runtime.getRuntime().availableProcessors()));
+		String fileName = settings.getProperty("out", "results.csv");
+		json = settings.getProperty("format", "csv").equals("json");
+
+		long start = System.currentTimeMillis();
+		ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallel));
+		try {
+			out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+			if (settings.containsKey("metrics"))
+				metrics = new Metrics.CsvSink(settings.getProperty("metrics"));
+			if (!json)
+				out.println(String.join(",", COLUMNS));
+
+			List<Future<?>> futures = new ArrayList<>();
+			for (int run = 0; run < runs.size(); run++) {
+				Map<String, String> configuration = runs.get(run);
+				configuration.put("run", "" + run);
+				futures.add(executor.submit(() -> run(configuration)));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		}
+		catch (Exception e) {
+			console.println("error occured while running:" + e);
+			System.exit(1);
+		}
+		finally {
+			executor.shutdown();
+			if (out != null)
+				out.close();
+			if (metrics != null)
+				metrics.close();
+		}
+
+		if (failed.get() > 0)
+			System.err.println(failed.get() + " of " + runs.size() + " runs failed");
+		console.println("Finished " + runs.size() + " runs in " + (System.currentTimeMillis() - start) + " ms, results in " + fileName);
+	}
+
+	// --config file first, then every --key value (or --key=value) on top of it
+	private static void readArguments(String[] args) throws IOException
+	{
+		Properties arguments = new Properties();
+		for (int i = 0; i < args.length; i++) {
+			if (!args[i].startsWith("--"))
+				throw new IllegalArgumentException("unexpected argument " + args[i]);
+
+			String key = args[i].substring(2);
+			String value;
+			if (key.contains("=")) {
+				value = key.substring(key.indexOf('=') + 1);
+				key = key.substring(0, key.indexOf('='));
+			}
+			else if (i + 1 < args.length) {
+				value = args[++i];
+			}
+			else {
+				throw new IllegalArgumentException("no value for " + args[i]);
+			}
+			arguments.setProperty(key, value);
+		}
+
+		if (arguments.containsKey("config")) {
+			try (Reader reader = new FileReader(arguments.getProperty("config"))) {
+				settings.load(reader);
+			}
+		}
+		settings.putAll(arguments);
+	}
+
+	// The data straight from the access logs, mini-batch k-means reads the data files itself so it cannot be used
+	private static void readLogs() throws IOException
+	{
+		if (list("algorithms", "kmeans").contains("minibatch"))
+			throw new IllegalArgumentException("minibatch needs data files, it cannot be used with logs");
+
+		AccessLogReader reader = new AccessLogReader();
+		reader.setUrls(Integer.parseInt(settings.getProperty("urls", "200")));
+		reader.setClients(Integer.parseInt(settings.getProperty("clients", "1000")));
+		reader.setThreads(Runtime.getRuntime().availableProcessors());
+		if (settings.containsKey("split"))
+			reader.setSplit(settings.getProperty("split"));
+		reader.read(list("logs", ""));
+		trainData = reader.trainData();
+		testData = reader.testData();
+	}
+
+	private static List<String> list(String key, String defaultValue)
+	{
+		List<String> values = new ArrayList<>();
+		for (String value : settings.getProperty(key, defaultValue).split(","))
+			if (!value.trim().isEmpty())
+				values.add(value.trim());
+		return values;
+	}
+
+	// Every combination of the parameters that apply to each algorithm
+	private static List<Map<String, String>> configurations()
+	{
+		List<Map<String, String>> runs = new ArrayList<>();
+		for (String algorithm : list("algorithms", "kmeans")) {
+			List<Map<String, String>> grid = new ArrayList<>();
+			grid.add(new LinkedHashMap<String, String>());
+			grid.get(0).put("algorithm", algorithm);
+
+			switch (algorithm) {
+				case "kmeans":
+					grid = expand(grid, "k", list("k", "4"));
+					grid = expand(grid, "seeding", list("seeding", "random"));
+					grid = expand(grid, "restarts", list("restarts", "1"));
+					grid = expand(grid, "seed", list("seeds", "1"));
+					break;
+				case "kohonen":
+					grid = expand(grid, "n", list("n", "4"));
+					grid = expand(grid, "epochs", list("epochs", "10"));
+					grid = expand(grid, "learningRate", list("learningRate", "0.8"));
+					grid = expand(grid, "training", list("training", "online"));
+					grid = expand(grid, "schedule", list("schedule", "linear"));
+					grid = expand(grid, "patience", list("patience", "0"));
+					grid = expand(grid, "seed", list("seeds", "1"));
+					break;
+				case "leaderfollower":
+					grid = expand(grid, "maxDis", list("maxDis", "4.5"));
+					grid = expand(grid, "alpha", list("alpha", "0.1"));
+					break;
+				case "minibatch":
+					grid = expand(grid, "k", list("k", "4"));
+					grid = expand(grid, "batchSize", list("batchSize", "1000"));
+					grid = expand(grid, "seed", list("seeds", "1"));
+					break;
+				default:
+					throw new IllegalArgumentException("unknown algorithm " + algorithm);
+			}
+			runs.addAll(grid);
+		}
+		return runs;
+	}
+
+	private static List<Map<String, String>> expand(List<Map<String, String>> grid, String key, List<String> values)
+	{
+		List<Map<String, String>> expanded = new ArrayList<>();
+		for (Map<String, String> configuration : grid) {
+			for (String value : values) {
+				Map<String, String> copy = new LinkedHashMap<>(configuration);
+				copy.put(key, value);
+				expanded.add(copy);
+			}
+		}
+		return expanded;
+	}
+
+	private static void run(Map<String, String> configuration)
+	{
+		ClusteringAlgorithm ca = create(configuration);
+		ca.setVerbose(false);
+		if (metrics != null)
+			ca.setMetrics(new Metrics("run" + configuration.get("run"), metrics));
+
+		// the algorithm has reported why
+		long start = System.nanoTime();
+		if (!ca.train()) {
+			failed.incrementAndGet();
+			System.err.println("Run " + configuration.get("run") + " " + configuration + " failed to train, it gives no results");
+			return;
+		}
+		long trainMillis = (System.nanoTime() - start) / 1000000;
+
+		// one pass gives every threshold
+		start = System.nanoTime();
+		ThresholdCurve curve = ca.thresholdCurve();
+		long testMillis = (System.nanoTime() - start) / 1000000;
+
+		if (settings.containsKey("models") && !(ca instanceof MiniBatchKMeans)) {
+			try {
+				ca.save(new File(settings.getProperty("models"), "run" + configuration.get("run") + ".model").getPath());
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		int best = curve.best();
+		for (String threshold : list("thresholds", "0.5")) {
+			int point = curve.at(Double.parseDouble(threshold));
+
+			Map<String, String> result = new LinkedHashMap<>(configuration);
+			if (ca instanceof Kohonen)
+				result.put("epochsTrained", "" + ((Kohonen) ca).getEpochsTrained());
+			result.put("trainMillis", "" + trainMillis);
+			result.put("testMillis", "" + testMillis);
+			result.put("threshold", threshold);
+			result.put("hitrate", "" + (point < 0 ? 0 : curve.hitrate(point)));
+			result.put("accuracy", "" + (point < 0 ? 0 : curve.accuracy(point)));
+			result.put("hitrate+accuracy", "" + (point < 0 ? 0 : curve.hitrate(point) + curve.accuracy(point)));
+			result.put("bestThreshold", "" + (best < 0 ? "" : curve.threshold(best)));
+			result.put("bestHitrate+accuracy", "" + (best < 0 ? "" : curve.hitrate(best) + curve.accuracy(best)));
+			write(result);
+		}
+
+		console.println("Finished run " + configuration.get("run") + " " + configuration + " in " + trainMillis + " ms");
+	}
+
+	private static ClusteringAlgorithm create(Map<String, String> configuration)
+	{
+		int dim = trainData.dim();
+		switch (configuration.get("algorithm")) {
+			case "kmeans":
+				KMeans kmeans = new KMeans(Integer.parseInt(configuration.get("k")), trainData, testData, dim);
+				kmeans.setSeeding(seeding(configuration.get("seeding")));
+				kmeans.setSeed(Long.parseLong(configuration.get("seed")));
+				kmeans.setRestarts(Integer.parseInt(configuration.get("restarts")));
+				kmeans.setSelection(selection(settings.getProperty("selection", "sse")));
+				return kmeans;
+			case "kohonen":
+				Kohonen kohonen = new Kohonen(Integer.parseInt(configuration.get("n")), Integer.parseInt(configuration.get("epochs")), trainData, testData, dim);
+				kohonen.setInitialLearningRate(Double.parseDouble(configuration.get("learningRate")));
+				kohonen.setBatch(configuration.get("training").equals("batch"));
+				kohonen.setSchedule(schedule(configuration.get("schedule")));
+				kohonen.setEarlyStopping(Integer.parseInt(configuration.get("patience")), Double.parseDouble(settings.getProperty("tolerance", "0.001")));
+				kohonen.setSeed(Long.parseLong(configuration.get("seed")));
+				return kohonen;
+			case "leaderfollower":
+				LeaderFollower leaderFollower = new LeaderFollower(Double.parseDouble(configuration.get("maxDis")), trainData, testData, dim);
+				leaderFollower.setAlpha(Double.parseDouble(configuration.get("alpha")));
+				return leaderFollower;
+			default:
+				MiniBatchKMeans miniBatch = new MiniBatchKMeans(Integer.parseInt(configuration.get("k")),
+					settings.getProperty("train", "train.dat"), settings.getProperty("test", "test.dat"),
+					Integer.parseInt(configuration.get("batchSize")), dim);
+				miniBatch.setSeed(Long.parseLong(configuration.get("seed")));
+				return miniBatch;
+		}
+	}
+
+	private static KMeans.Seeding seeding(String name)
+	{
+		switch (name) {
+			case "random":
+				return KMeans.Seeding.RANDOM_PARTITION;
+			case "kmeans++":
+				return KMeans.Seeding.KMEANS_PLUS_PLUS;
+			case "kmeans||":
+				return KMeans.Seeding.KMEANS_PARALLEL;
+			default:
+				throw new IllegalArgumentException("unknown seeding " + name);
+		}
+	}
+
+	private static Kohonen.Schedule schedule(String name)
+	{
+		switch (name) {
+			case "linear":
+				return Kohonen.Schedule.LINEAR;
+			case "exponential":
+				return Kohonen.Schedule.EXPONENTIAL;
+			case "inverse":
+				return Kohonen.Schedule.INVERSE_TIME;
+			default:
+				throw new IllegalArgumentException("unknown schedule " + name);
+		}
+	}
+
+	private static KMeans.Selection selection(String name)
+	{
+		switch (name) {
+			case "sse":
+				return KMeans.Selection.SUM_OF_SQUARES;
+			case "hitrate":
+				return KMeans.Selection.HITRATE_ACCURACY;
+			default:
+				throw new IllegalArgumentException("unknown selection " + name);
+		}
+	}
+
+	private static synchronized void write(Map<String, String> result)
+	{
+		if (json) {
+			StringBuilder line = new StringBuilder("{");
+			for (String column : COLUMNS) {
+				if (!result.containsKey(column) || result.get(column).isEmpty())
+					continue;
+				if (line.length() > 1)
+					line.append(", ");
+				String value = result.get(column);
+				line.append(quote(column)).append(": ").append(isNumber(value) ? value : quote(value));
+			}
+			out.println(line.append('}'));
+		}
+		else {
+			StringBuilder line = new StringBuilder();
+			for (String column : COLUMNS) {
+				if (line.length() > 0)
+					line.append(',');
+				line.append(result.getOrDefault(column, ""));
+			}
+			out.println(line);
+		}
+		out.flush();
+	}
+
+	// A json number: no NaN or Infinity, which Double.parseDouble accepts but json does not
+	private static boolean isNumber(String value)
+	{
+		return value.matches("-?(0|[1-9][0-9]*)(\\.[0-9]+)?([eE][+-]?[0-9]+)?");
+	}
+
+	// A json string, with quotes, backslashes and control characters escaped
+	private static String quote(String value)
+	{
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			if (c == '"' || c == '\\')
+				quoted.append('\\').append(c);
+			else if (c < ' ')
+				quoted.append(String.format("\\u%04x", (int) c));
+			else
+				quoted.append(c);
+		}
+		return quoted.append('"').toString();
+	}
+}
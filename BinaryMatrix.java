@@ -0,0 +1,123 @@
+import java.nio.LongBuffer;
+
+public class BinaryMatrix extends DataMatrix
+{
+	// Matrix of 0/1 vectors (a client did or did not request an html), packed 64 elements per long.
+	// Row r occupies the words r*words .. r*words+words-1, element i of a row is bit i%64 of word i/64.
+	// The buffer holds rows*words longs, so row*words + w cannot overflow an int.
+	private final LongBuffer bits;
+
+	// Number of longs per row
+	private final int words;
+
+	public BinaryMatrix(LongBuffer bits, int rows, int dim)
+	{
+		super(rows, dim);
+		this.words = (dim + 63) >>> 6;
+		if (bits.capacity() < (long) rows * words)
+			throw new IllegalArgumentException("buffer holds " + bits.capacity() + " longs, need " + ((long) rows * words));
+		this.bits = bits;
+	}
+
+	public BinaryMatrix(long[] bits, int rows, int dim)
+	{
+		this(LongBuffer.wrap(bits), rows, dim);
+	}
+
+	// Packs a matrix with only 0/1 elements, everything that is not 0 becomes 1
+	public static BinaryMatrix pack(DataMatrix matrix)
+	{
+		int words = (matrix.dim() + 63) >>> 6;
+		if ((long) matrix.rows() * words > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(matrix.rows() + " rows of " + words + " longs do not fit in one array");
+		long[] bits = new long[matrix.rows() * words];
+		for (int row = 0; row < matrix.rows(); row++)
+			for (int i = 0; i < matrix.dim(); i++)
+				if (matrix.get(row, i) != 0)
+					bits[row * words + (i >>> 6)] |= 1L << i;
+		return new BinaryMatrix(bits, matrix.rows(), matrix.dim());
+	}
+
+	public int words()
+	{
+		return words;
+	}
+
+	// Word w of a row, bit i is element w*64+i
+	public long word(int row, int w)
+	{
+		return bits.get(row * words + w);
+	}
+
+	public float get(int row, int col)
+	{
+		return (bits.get(row * words + (col >>> 6)) >>> col) & 1L;
+	}
+
+	// Number of ones in a row
+	public int bitCount(int row)
+	{
+		int count = 0;
+		for (int w = row * words; w < (row + 1) * words; w++)
+			count += Long.bitCount(bits.get(w));
+		return count;
+	}
+
+	public int nonZeros(int row, int[] columns)
+	{
+		int count = 0;
+		for (int w = 0; w < words; w++) {
+			long word = bits.get(row * words + w);
+			int base = w << 6;
+			while (word != 0) {
+				columns[count++] = base + Long.numberOfTrailingZeros(word);
+				word &= word - 1;
+			}
+		}
+		return count;
+	}
+
+	public double squaredNorm(int row)
+	{
+		return bitCount(row);
+	}
+
+	public float squaredDistance(int row, float[] prototype)
+	{
+		return squaredDistance(row, prototype, squaredNorm(prototype));
+	}
+
+	// With x a 0/1 vector: |x-p|^2 = |p|^2 + sum over the ones in x of (1 - 2*p[i]),
+	// so only the set bits have to be visited once the norm of the prototype is known.
+	public float squaredDistance(int row, float[] prototype, float norm)
+	{
+		float distance = norm;
+		for (int w = 0; w < words; w++) {
+			long word = bits.get(row * words + w);
+			int base = w << 6;
+			while (word != 0) {
+				distance += 1 - 2 * prototype[base + Long.numberOfTrailingZeros(word)];
+				word &= word - 1;
+			}
+		}
+		// rounding can make the distance of a (nearly) equal prototype slightly negative
+		return Math.max(distance, 0);
+	}
+
+	public void addTo(int row, double[] sum)
+	{
+		for (int w = 0; w < words; w++) {
+			long word = bits.get(row * words + w);
+			int base = w << 6;
+			while (word != 0) {
+				sum[base + Long.numberOfTrailingZeros(word)] += 1;
+				word &= word - 1;
+			}
+		}
+	}
+
+	public float moveTowards(int row, float[] prototype, double rate)
+	{
+		return Kernels.get().moveTowards(bits, row * words, prototype, rate);
+	}
+}
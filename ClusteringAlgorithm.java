@@ -1,5 +1,17 @@
+import java.io.*;
+import java.util.*;
+
 public abstract class ClusteringAlgorithm
 {
+	// Receives the timings and counts of training and testing (see Metrics), nothing by default
+	protected Metrics metrics = new Metrics();
+
+	// Whether training prints its progress and the members of the clusters
+	protected boolean verbose = true;
+
+	// Results of the last test(), per cluster
+	protected Evaluation evaluation;
+
 	public abstract boolean train();
 
 	public abstract boolean test();
@@ -11,4 +23,71 @@ public abstract class ClusteringAlgorithm
 	public abstract void showMembers();
 	
 	public abstract void showPrototypes();
+
+	// Hitrate and accuracy for all prefetch thresholds at once
+	public abstract ThresholdCurve thresholdCurve();
+
+	// The prototypes of the trained clusters, and the cluster (index in the prototypes) of every training client
+	public abstract float[][] prototypes();
+
+	public abstract int[] assignment();
+
+	// Saves the trained model in a file (see ModelFile), not every algorithm supports this
+	public void save(String fileName) throws IOException
+	{
+		throw new IOException(getClass().getName() + " models cannot be saved");
+	}
+
+	// Hitrate and accuracy per cluster of the last test(), null before the first test()
+	public Evaluation getEvaluation()
+	{
+		return evaluation;
+	}
+
+	public void setMetrics(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public void setVerbose(boolean verbose)
+	{
+		this.verbose = verbose;
+	}
+
+	// Begins a phase of training or testing of this algorithm, see Metrics
+	protected Metrics.Phase phase(String phase, int iteration)
+	{
+		return metrics.begin(getClass().getSimpleName(), phase, iteration);
+	}
+
+	// Mean squared distance of the datapoints to the prototype of their cluster, datapoints without a cluster are left out
+	protected static double quantizationError(DataMatrix data, float[][] prototypes, int[] assignment)
+	{
+		double error = 0;
+		int assigned = 0;
+		for (int row = 0; row < assignment.length; row++) {
+			if (assignment[row] < 0 || assignment[row] >= prototypes.length)
+				continue;
+			error += data.squaredDistance(row, prototypes[assignment[row]]);
+			assigned++;
+		}
+		return assigned == 0 ? 0 : error / assigned;
+	}
+
+	// Member lists per cluster, derived from the cluster index of every datapoint (-1 when it has no cluster yet)
+	protected static List<List<Integer>> members(int[] assignment, int clusters)
+	{
+		List<List<Integer>> members = new ArrayList<>();
+		for (int i = 0; i < clusters; i++)
+			members.add(new ArrayList<Integer>());
+		for (int member = 0; member < assignment.length; member++)
+			if (assignment[member] >= 0 && assignment[member] < clusters)
+				members.get(assignment[member]).add(member);
+		return members;
+	}
 }
@@ -0,0 +1,109 @@
+public abstract class DataMatrix
+{
+	// Read-only matrix with one client vector per row. The clustering algorithms only access
+	// the train/test data through this class, so all of them can share a single copy of it.
+
+	// Number of vectors (clients)
+	protected final int rows;
+
+	// Dimensionality of the vectors
+	protected final int dim;
+
+	protected DataMatrix(int rows, int dim)
+	{
+		if (rows < 0 || dim < 0)
+			throw new IllegalArgumentException("a matrix cannot have " + rows + " rows of size " + dim);
+		this.rows = rows;
+		this.dim = dim;
+	}
+
+	public int rows()
+	{
+		return rows;
+	}
+
+	public int dim()
+	{
+		return dim;
+	}
+
+	// Value of one element of the matrix
+	public abstract float get(int row, int col);
+
+	// Squared euclidean distance between a row and a prototype
+	public abstract float squaredDistance(int row, float[] prototype);
+
+	// Squared euclidean distance between a row and a prototype with a known squared norm (see squaredNorm).
+	// Matrices that can use the norm to skip part of the work override this, the others ignore it.
+	public float squaredDistance(int row, float[] prototype, float norm)
+	{
+		return squaredDistance(row, prototype);
+	}
+
+	// Squared distance that may stop as soon as it exceeds bound, in which case only a partial sum
+	// (which is larger than bound) is returned. If order is not null the dimensions are summed in that order.
+	// The default always computes the full distance.
+	public float squaredDistance(int row, float[] prototype, float norm, float bound, int[] order)
+	{
+		return squaredDistance(row, prototype, norm);
+	}
+
+	// Variance of every dimension over all rows
+	public double[] variances()
+	{
+		double[] sum = new double[dim];
+		double[] sumOfSquares = new double[dim];
+		for (int row = 0; row < rows; row++) {
+			for (int i = 0; i < dim; i++) {
+				float value = get(row, i);
+				sum[i] += value;
+				sumOfSquares[i] += value * value;
+			}
+		}
+		double[] variances = new double[dim];
+		for (int i = 0; i < dim && rows > 0; i++)
+			variances[i] = sumOfSquares[i] / rows - (sum[i] / rows) * (sum[i] / rows);
+		return variances;
+	}
+
+	// Adds a row to the (running) sum of a prototype
+	public abstract void addTo(int row, double[] sum);
+
+	// Moves a prototype towards a row: prototype = (1-rate)*prototype + rate*row
+	// and returns the new squared norm of the prototype.
+	public abstract float moveTowards(int row, float[] prototype, double rate);
+
+	// Stores the columns of the elements of a row that are not 0 in columns (increasing, there has to be room
+	// for dim columns) and returns how many there are. Sparse matrices find them without visiting every element.
+	public int nonZeros(int row, int[] columns)
+	{
+		int count = 0;
+		for (int i = 0; i < dim; i++)
+			if (get(row, i) != 0)
+				columns[count++] = i;
+		return count;
+	}
+
+	// Squared norm of a row
+	public double squaredNorm(int row)
+	{
+		double norm = 0;
+		for (int i = 0; i < dim; i++)
+			norm += (double) get(row, i) * get(row, i);
+		return norm;
+	}
+
+	public static float squaredNorm(float[] prototype)
+	{
+		return Kernels.get().squaredNorm(prototype);
+	}
+
+	// Copies a row into a new array
+	public float[] copyRow(int row)
+	{
+		float[] vector = new float[dim];
+		for (int i = 0; i < dim; i++)
+			vector[i] = get(row, i);
+		return vector;
+	}
+}
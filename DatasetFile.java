@@ -0,0 +1,396 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+
+public class DatasetFile
+{
+	// Binary format for train/test data, so it does not have to be parsed again on every start.
+	// The file starts with a header of HEADER_SIZE bytes (little endian ints):
+	//   magic, version, encoding, rows, dim, and for SPARSE: elements, values (1 if stored, 0 if all are 1)
+	// followed by the rows without any separators:
+	//   FLOAT32: rows*dim floats, row-major
+	//   BITS:    rows*((dim+63)/64) longs, bit i of a row is element i (see BinaryMatrix)
+	//   SPARSE:  elements ints with the columns, rows+1 ints with the offsets and, if stored, elements floats
+	//            with the values (see SparseMatrix)
+	// The data is mapped into memory and used by the algorithms as it is, without copying.
+
+	public static final int MAGIC = 0x53444C43; // "CLDS"
+	public static final int VERSION = 2;
+
+	// Version 1 files have no SPARSE encoding, they are read the same way
+	private static final int FIRST_VERSION = 1;
+
+	public static final int FLOAT32 = 0;
+	public static final int BITS = 1;
+	public static final int SPARSE = 2;
+
+	// The header is padded so the data is aligned for every element type
+	private static final int HEADER_SIZE = 64;
+
+	// Number of text lines converted at a time
+	private static final int BATCH_SIZE = 4096;
+
+	// Converts a text data file: java DatasetFile <input.dat> <output.bin> [float|bits|sparse]
+	// Without an encoding, data with few elements that are not 0 is stored sparse, other 0/1 data as bits
+	// and everything else as floats.
+	public static void main(String[] args)
+	{
+		if (args.length < 2) {
+			System.out.println("usage: java DatasetFile <input.dat> <output.bin> [float|bits|sparse]");
+			System.exit(1);
+		}
+
+		int encoding = -1;
+		if (args.length > 2)
+			encoding = args[2].equals("bits") ? BITS : args[2].equals("sparse") ? SPARSE : FLOAT32;
+
+		try {
+			long start = System.currentTimeMillis();
+			DataMatrix matrix = convert(args[0], args[1], encoding);
+			System.out.println("Converted " + matrix.rows() + " vectors of size " + matrix.dim() + " in " + (System.currentTimeMillis() - start) + " ms");
+		}
+		catch (IOException e) {
+			System.out.println("error occured while converting " + args[0] + ":" + e);
+			System.exit(1);
+		}
+	}
+
+	// Converts a text file batch by batch, encoding -1 picks the encoding from the first batch.
+	// Returns the converted data, mapped from the new file.
+	public static DataMatrix convert(String textFileName, String fileName, int encoding) throws IOException
+	{
+		int rows = 0;
+		SparseSections sparse = null;
+		try (BatchReader reader = new BatchReader(textFileName, BATCH_SIZE);
+				FileChannel channel = FileChannel.open(Paths.get(fileName),
+					StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.position(HEADER_SIZE);
+
+			DataMatrix batch;
+			while ((batch = reader.next()) != null) {
+				if (encoding == -1)
+					encoding = batch instanceof SparseMatrix ? SPARSE : batch instanceof BinaryMatrix ? BITS : FLOAT32;
+				// also when bits were asked for, the other values would silently become 1
+				if (encoding == BITS && !isBinary(batch))
+					throw new IOException("not all vectors are 0/1 (from line " + (rows + 1) + "), convert with encoding float");
+				if (encoding == SPARSE) {
+					if (sparse == null)
+						sparse = new SparseSections(channel, fileName);
+					sparse.add(batch);
+				}
+				else {
+					write(channel, batch, encoding);
+				}
+				rows += batch.rows();
+			}
+			if (sparse != null)
+				sparse.finish();
+
+			// the header is written last, when the number of rows is known
+			writeHeader(channel, encoding == -1 ? FLOAT32 : encoding, rows, reader.dim(), sparse);
+		}
+		finally {
+			if (sparse != null)
+				sparse.close();
+		}
+
+		return map(fileName);
+	}
+
+	// Writes a matrix in a new file
+	public static void write(DataMatrix matrix, String fileName, int encoding) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			channel.position(HEADER_SIZE);
+			if (encoding == SPARSE) {
+				try (SparseSections sparse = new SparseSections(channel, fileName)) {
+					sparse.add(matrix);
+					sparse.finish();
+					writeHeader(channel, encoding, matrix.rows(), matrix.dim(), sparse);
+				}
+			}
+			else {
+				write(channel, matrix, encoding);
+				writeHeader(channel, encoding, matrix.rows(), matrix.dim(), null);
+			}
+		}
+	}
+
+	private static void writeHeader(FileChannel channel, int encoding, int rows, int dim, SparseSections sparse) throws IOException
+	{
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC).putInt(VERSION).putInt(encoding).putInt(rows).putInt(dim);
+		if (sparse != null)
+			header.putInt((int) sparse.elements).putInt(sparse.values ? 1 : 0);
+		header.clear();
+		channel.write(header, 0);
+	}
+
+	private static boolean isBinary(DataMatrix matrix)
+	{
+		return matrix instanceof BinaryMatrix || (matrix instanceof SparseMatrix && !((SparseMatrix) matrix).hasValues())
+			|| (matrix instanceof FloatMatrix && ((FloatMatrix) matrix).isBinary());
+	}
+
+	// Writes the SPARSE sections batch by batch: the columns directly in the file, the values in a temporary
+	// file and the offsets in memory. When all rows have been added the offsets and the values (unless they
+	// are all 1) are added behind the columns. The temporary file is deleted on close().
+	private static class SparseSections implements Closeable
+	{
+		private final FileChannel channel;
+		private final Path valuesFile;
+		private final FileChannel valuesChannel;
+
+		private int[] offsets = new int[1024];
+		private int rows;
+		private long elements;
+		private boolean values;
+
+		private final ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+		private final ByteBuffer valuesBuffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+		SparseSections(FileChannel channel, String fileName) throws IOException
+		{
+			this.channel = channel;
+			Path path = Paths.get(fileName).toAbsolutePath();
+			valuesFile = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".values");
+			valuesChannel = FileChannel.open(valuesFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+
+		void add(DataMatrix matrix) throws IOException
+		{
+			int[] columns = new int[matrix.dim()];
+			for (int row = 0; row < matrix.rows(); row++) {
+				int count = matrix.nonZeros(row, columns);
+				for (int i = 0; i < count; i++) {
+					float value = matrix.get(row, columns[i]);
+					values |= value != 1;
+					if (!buffer.hasRemaining())
+						flush(channel, buffer);
+					buffer.putInt(columns[i]);
+					if (!valuesBuffer.hasRemaining())
+						flush(valuesChannel, valuesBuffer);
+					valuesBuffer.putFloat(value);
+				}
+				elements += count;
+				if (elements > Integer.MAX_VALUE)
+					throw new IOException("more than " + Integer.MAX_VALUE + " elements are not 0");
+				if (rows + 2 > offsets.length)
+					offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+				offsets[++rows] = (int) elements;
+			}
+		}
+
+		void finish() throws IOException
+		{
+			flush(channel, buffer);
+			for (int row = 0; row <= rows; row++) {
+				if (!buffer.hasRemaining())
+					flush(channel, buffer);
+				buffer.putInt(offsets[row]);
+			}
+			flush(channel, buffer);
+
+			flush(valuesChannel, valuesBuffer);
+			if (values) {
+				long position = 0;
+				while (position < valuesChannel.size())
+					position += valuesChannel.transferTo(position, valuesChannel.size() - position, channel);
+			}
+		}
+
+		public void close() throws IOException
+		{
+			valuesChannel.close();
+			Files.deleteIfExists(valuesFile);
+		}
+
+		private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+		{
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	private static void write(FileChannel channel, DataMatrix matrix, int encoding) throws IOException
+	{
+		int dim = matrix.dim();
+		if (encoding == BITS) {
+			if (!isBinary(matrix))
+				throw new IOException("not all vectors are 0/1, they cannot be stored as bits");
+			BinaryMatrix bits = matrix instanceof BinaryMatrix ? (BinaryMatrix) matrix : BinaryMatrix.pack(matrix);
+			ByteBuffer buffer = ByteBuffer.allocate(bits.words() * 8).order(ByteOrder.LITTLE_ENDIAN);
+			for (int row = 0; row < bits.rows(); row++) {
+				buffer.clear();
+				for (int w = 0; w < bits.words(); w++)
+					buffer.putLong(bits.word(row, w));
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		}
+		else {
+			ByteBuffer buffer = ByteBuffer.allocate(dim * 4).order(ByteOrder.LITTLE_ENDIAN);
+			for (int row = 0; row < matrix.rows(); row++) {
+				buffer.clear();
+				for (int i = 0; i < dim; i++)
+					buffer.putFloat(matrix.get(row, i));
+				buffer.flip();
+				while (buffer.hasRemaining())
+					channel.write(buffer);
+			}
+		}
+	}
+
+	// Reads a text data file, or maps a binary data file (*.bin) which is used as it is
+	public static DataMatrix load(String fileName) throws IOException
+	{
+		if (fileName.endsWith(".bin"))
+			return map(fileName);
+
+		BatchReader reader = new BatchReader(fileName, Integer.MAX_VALUE);
+		DataMatrix matrix = reader.next();
+		reader.close();
+		if (matrix == null)
+			matrix = new FloatMatrix(new float[0], 0, 0);
+		return matrix;
+	}
+
+	// Maps a binary data file into memory. The mapping stays valid after the file is closed.
+	public static DataMatrix map(String fileName) throws IOException
+	{
+		return map(fileName, 0, Integer.MAX_VALUE);
+	}
+
+	// Maps the rows first .. first+count-1 of a binary data file (fewer at the end of the file), for instance
+	// the shard of a KMeansWorker. Only these rows have to fit in a mapping, not the whole file.
+	public static DataMatrix map(String fileName, int first, int count) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			ByteBuffer header = readHeader(fileName, channel);
+			int encoding = header.getInt();
+			int rows = header.getInt();
+			int dim = header.getInt();
+			first = Math.min(first, rows);
+			count = Math.min(count, rows - first);
+			if (encoding == SPARSE)
+				return mapSparse(fileName, channel, rows, dim, header.getInt(), header.getInt() != 0, first, count);
+
+			long rowSize = encoding == BITS ? (long) ((dim + 63) >>> 6) * 8 : (long) dim * 4;
+			if (HEADER_SIZE + rows * rowSize > channel.size())
+				throw new IOException(fileName + " is truncated");
+			long size = count * rowSize;
+			// a single mapping is limited to 2GB
+			if (size > Integer.MAX_VALUE)
+				throw new IOException(fileName + " is too large to map (" + size + " bytes)");
+
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + first * rowSize, size).order(ByteOrder.LITTLE_ENDIAN);
+			if (encoding == BITS)
+				return new BinaryMatrix(data.asLongBuffer(), count, dim);
+			return new FloatMatrix(data, count, dim);
+		}
+	}
+
+	// Reads and checks the header, returns it positioned at the encoding
+	private static ByteBuffer readHeader(String fileName, FileChannel channel) throws IOException
+	{
+		if (channel.size() < HEADER_SIZE)
+			throw new IOException(fileName + " is not a binary data file");
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (header.hasRemaining() && channel.read(header) >= 0);
+		header.flip();
+
+		if (header.getInt() != MAGIC)
+			throw new IOException(fileName + " is not a binary data file");
+		int version = header.getInt();
+		if (version < FIRST_VERSION || version > VERSION)
+			throw new IOException(fileName + " has unsupported version " + version);
+		return header;
+	}
+
+	private static SparseMatrix mapSparse(String fileName, FileChannel channel, int rows, int dim, int elements, boolean values, int first, int count) throws IOException
+	{
+		long columnsSize = (long) elements * 4;
+		long offsetsSize = ((long) rows + 1) * 4;
+		if (HEADER_SIZE + columnsSize + offsetsSize + (values ? columnsSize : 0) > channel.size())
+			throw new IOException(fileName + " is truncated");
+		if (offsetsSize > Integer.MAX_VALUE)
+			throw new IOException(fileName + " is too large to map (" + offsetsSize + " bytes)");
+
+		// the offsets of the rows, which start at 0 for the first row that is mapped
+		IntBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + columnsSize + (long) first * 4, ((long) count + 1) * 4).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		long base = offsets.get(0);
+		long size = ((long) offsets.get(count) - base) * 4;
+		if (base != 0) {
+			int[] shifted = new int[count + 1];
+			for (int row = 0; row <= count; row++)
+				shifted[row] = (int) (offsets.get(row) - base);
+			offsets = IntBuffer.wrap(shifted);
+		}
+		// a single mapping is limited to 2GB, every section has its own
+		if (size > Integer.MAX_VALUE)
+			throw new IOException(fileName + " is too large to map (" + size + " bytes)");
+
+		IntBuffer columns = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + base * 4, size).order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+		FloatBuffer valueBuffer = null;
+		if (values)
+			valueBuffer = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + columnsSize + offsetsSize + base * 4, size).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+		return new SparseMatrix(offsets, columns, valueBuffer, count, dim);
+	}
+
+	// Reads the rows first .. first+count-1 of a text data file, or maps them of a binary data file (*.bin)
+	public static DataMatrix load(String fileName, int first, int count) throws IOException
+	{
+		if (fileName.endsWith(".bin"))
+			return map(fileName, first, count);
+
+		BatchReader reader = new BatchReader(fileName, count);
+		reader.skip(first);
+		DataMatrix matrix = reader.next();
+		reader.close();
+		if (matrix == null)
+			matrix = new FloatMatrix(new float[0], 0, 0);
+		return matrix;
+	}
+
+	// Size of the vectors of a text or binary data file, only the header or the first line is read
+	public static int dim(String fileName) throws IOException
+	{
+		if (fileName.endsWith(".bin")) {
+			try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+				ByteBuffer header = readHeader(fileName, channel);
+				header.getInt();
+				header.getInt();
+				return header.getInt();
+			}
+		}
+
+		BatchReader reader = new BatchReader(fileName, 1);
+		reader.next();
+		reader.close();
+		return reader.dim();
+	}
+
+	// Number of rows of a text or binary data file
+	public static int rows(String fileName) throws IOException
+	{
+		if (fileName.endsWith(".bin")) {
+			try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+				ByteBuffer header = readHeader(fileName, channel);
+				header.getInt();
+				return header.getInt();
+			}
+		}
+
+		BatchReader reader = new BatchReader(fileName, 0);
+		int rows = reader.skip(Integer.MAX_VALUE);
+		reader.close();
+		return rows;
+	}
+}
@@ -0,0 +1,624 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class DistributedKMeans extends ClusteringAlgorithm
+{
+	// K-means on training data that is split in shards over several worker processes (KMeansWorker), possibly
+	// on several machines, so the training data does not have to fit in the memory of one of them. This
+	// coordinator only keeps the prototypes and the sums per cluster: every iteration it sends the prototypes
+	// to all workers, every worker assigns the rows of its shard to their nearest prototype and replies with
+	// the member count and sum of every cluster and the number of rows that changed cluster. The replies are
+	// added up in the order of the workers and the new prototypes are the means, exactly like the chunks of
+	// KMeans.train(), until no row changes cluster. The assignment of all rows is gathered at the end, for
+	// test(), showMembers() and save().
+	//
+	//   java DistributedKMeans <k> <test file> <host:port> [host:port ...]
+	//   java DistributedKMeans <k> <test file> --local <train file> <workers>
+	//
+	// The first form uses workers that are already running, in the order of their shards. The second starts
+	// that many workers on this machine, listening on the loopback address only, and shuts them down at the
+	// end, for testing without a cluster.
+	//
+	// The workers and the coordinator talk over plain TCP, with DataInput/DataOutputStreams (big endian).
+	// A request is one byte, followed by:
+	//   INFO        -                      reply: version, first row, rows, dim (int), sum of squared norms (double)
+	//   SAMPLE      count (int), seed (long)  reply: count, dim (int), count*dim floats
+	//   ITERATE     k, dim (int), k*dim floats  reply: changed (long), per cluster: count (int) and when it is not 0 its sum
+	//   ASSIGNMENT  -                      reply: rows (int), rows ints with the cluster of every row
+	//   CLOSE       -                      the worker waits for the next coordinator
+	//   SHUTDOWN    -                      the worker stops
+	// A sum is an int n followed by n times (index int, value double) when it has n elements that are not 0
+	// and that is shorter, or -1 followed by dim doubles. Sums of sparse 0/1 data are mostly 0.
+	//
+	// The sums of the workers are doubles, like those of the chunks of KMeans, so the prototypes are the
+	// same as those of KMeans with the same initial prototypes up to the rounding of the sums, and for 0/1
+	// data exactly the same. The workers search every prototype, without the bounds of KMeans.
+
+	static final int VERSION = 1;
+
+	static final int INFO = 1;
+	static final int SAMPLE = 2;
+	static final int ITERATE = 3;
+	static final int ASSIGNMENT = 4;
+	static final int CLOSE = 5;
+	static final int SHUTDOWN = 6;
+
+	// The seeding is k-means++ on a sample of SAMPLE_PER_CLUSTER * k rows of all shards together
+	private static final int SAMPLE_PER_CLUSTER = 100;
+
+	// Stops after this many iterations when the clusters still change, which train() reports
+	private static final int MAX_ITERATIONS = 1000;
+
+	// Number of clusters
+	private int k;
+
+	// Dimensionality of the vectors
+	private int dim;
+
+	// Threshold above which the corresponding html is prefetched
+	private double prefetchThreshold;
+
+	// host:port of every worker, in the order of their shards
+	private final List<String> workers;
+
+	// Connection with a worker during train()
+	private static class Worker
+	{
+		final String address;
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		// rows of the shard, the first one is row 'first' of the training data
+		int first;
+		int rows;
+		int dim;
+		double totalNorm;
+
+		Worker(String address) throws IOException
+		{
+			this.address = address;
+			int colon = address.lastIndexOf(':');
+			if (colon < 0)
+				throw new IOException("worker " + address + " is not host:port");
+			socket = new Socket(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+		}
+
+		void close(int request)
+		{
+			try {
+				out.write(request);
+				out.flush();
+				socket.close();
+			}
+			catch (IOException e) {
+				// it is gone already
+			}
+		}
+	}
+
+	private float[][] prototypes;
+
+	// Cluster of every training row, gathered from the workers after training
+	private int[] assignment;
+
+	// Number of training rows of all shards together
+	private int rows;
+
+	// Initial prototypes instead of the seeding, see setInitialPrototypes
+	private float[][] initialPrototypes;
+
+	private Random random;
+
+	// Number of iterations and distances calculated by the last train(), and its within-cluster sum of squares
+	private int iterations;
+	private long distances;
+	private double sumOfSquares;
+
+	// Whether no row changed cluster in the last iteration, false when train() stopped at MAX_ITERATIONS
+	private boolean converged;
+
+	// The matrix with the test data, one vector per row for every training row
+	private DataMatrix testData;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public DistributedKMeans(int k, List<String> workers, DataMatrix testData)
+	{
+		this.k = k;
+		this.workers = new ArrayList<>(workers);
+		this.testData = testData;
+		prefetchThreshold = 0.5;
+		random = new Random();
+		assignment = new int[0];
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 3 || (args[2].equals("--local") && args.length < 5)) {
+			System.out.println("usage: java DistributedKMeans <k> <test file> <host:port> [host:port ...]");
+			System.out.println("       java DistributedKMeans <k> <test file> --local <train file> <workers>");
+			System.exit(1);
+		}
+
+		List<Process> processes = new ArrayList<>();
+		List<String> workers = new ArrayList<>();
+		try {
+			int k = Integer.parseInt(args[0]);
+			DataMatrix testData = DatasetFile.load(args[1]);
+			if (args[2].equals("--local")) {
+				int shards = Integer.parseInt(args[4]);
+				int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / shards);
+				String loopback = InetAddress.getLoopbackAddress().getHostAddress();
+				for (int shard = 0; shard < shards; shard++) {
+					Process process = startWorker(args[3], shard, shards, threads, loopback);
+					processes.add(process);
+					workers.add(loopback + ":" + port(process));
+				}
+			}
+			else {
+				workers.addAll(Arrays.asList(args).subList(2, args.length));
+			}
+
+			DistributedKMeans kmeans = new DistributedKMeans(k, workers, testData);
+			kmeans.setVerbose(false);
+			kmeans.setMetrics(new Metrics(new Metrics.LogSink(System.out)));
+			long start = System.currentTimeMillis();
+			if (kmeans.train() && kmeans.test()) {
+				System.out.println("Trained on " + workers.size() + " workers in " + (System.currentTimeMillis() - start) + " ms");
+				kmeans.showTest();
+			}
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println("error occured while running distributed k-means:" + e);
+		}
+		finally {
+			if (!processes.isEmpty())
+				shutdown(workers);
+			for (Process process : processes) {
+				try {
+					process.waitFor();
+				}
+				catch (InterruptedException e) {
+					process.destroy();
+				}
+			}
+		}
+	}
+
+	// Starts a KMeansWorker on this machine, with the class path of this JVM, listening on the given address
+	private static Process startWorker(String fileName, int shard, int shards, int threads, String address) throws IOException
+	{
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), "KMeansWorker",
+			fileName, "" + shard, "" + shards, "0", "" + threads, address);
+		builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+		return builder.start();
+	}
+
+	// The port of a started worker, from the first line it prints. Its other output is passed on.
+	private static int port(Process process) throws IOException
+	{
+		BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+		String line = reader.readLine();
+		if (line == null || !line.startsWith("listening on port "))
+			throw new IOException("worker did not start: " + line);
+		Thread output = new Thread(() -> {
+			try {
+				String next;
+				while ((next = reader.readLine()) != null)
+					System.out.println(next);
+			}
+			catch (IOException e) {
+				// the worker stopped
+			}
+		});
+		output.setDaemon(true);
+		output.start();
+		return Integer.parseInt(line.substring("listening on port ".length()).trim());
+	}
+
+	// Stops the workers
+	public static void shutdown(List<String> workers)
+	{
+		for (String address : workers) {
+			try {
+				new Worker(address).close(SHUTDOWN);
+			}
+			catch (IOException e) {
+				System.out.println("error occured while stopping worker " + address + ":" + e);
+			}
+		}
+	}
+
+	public boolean train()
+	{
+		List<Worker> connections = new ArrayList<>();
+		try {
+			Metrics.Phase training = phase(Metrics.TRAINING, 0);
+			for (String address : workers)
+				connections.add(new Worker(address));
+			double totalNorm = connect(connections);
+			if (rows == 0)
+				return false;
+
+			// Step 1: Select the initial prototypes
+			Metrics.Phase seedingPhase = phase(Metrics.SEEDING, 0);
+			if (initialPrototypes != null) {
+				prototypes = new float[k][];
+				for (int indexCluster = 0; indexCluster < k; indexCluster++)
+					prototypes[indexCluster] = initialPrototypes[indexCluster].clone();
+			}
+			else {
+				prototypes = KMeans.kMeansPlusPlus(sample(connections, SAMPLE_PER_CLUSTER * k), null, k, random);
+			}
+			seedingPhase.end();
+
+			iterations = 0;
+			distances = 0;
+			converged = false;
+			long changed = 0;
+			double[][] sums = new double[k][dim];
+			int[] counts = new int[k];
+			// Step 4: repeat until clustermembership stabilizes
+			while (iterations < MAX_ITERATIONS) {
+				// Step 2: Generate a new partition by assigning each datapoint to its closest cluster center
+				Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, iterations);
+				changed = iterate(connections, sums, counts);
+				distances += (long) rows * k;
+				assignmentPhase.end(changed, (long) rows * k);
+				iterations++;
+				sumOfSquares = sumOfSquares(totalNorm, sums, counts);
+				converged = changed == 0;
+				if (converged)
+					break;
+
+				// Step 3: recalculate cluster centers
+				Metrics.Phase update = phase(Metrics.UPDATE, iterations - 1);
+				updatePrototypes(sums, counts);
+				update.end();
+			}
+
+			if (!converged)
+				System.out.println("Stopped after " + MAX_ITERATIONS + " iterations without converging, " + changed + " rows changed cluster in the last one.");
+
+			assignment = gather(connections);
+			training.end(-1, distances, sumOfSquares / rows);
+		}
+		catch (IOException e) {
+			System.out.println("error occured while training:" + e);
+			return false;
+		}
+		finally {
+			for (Worker worker : connections)
+				worker.close(CLOSE);
+		}
+
+		if (verbose)
+			showMembers();
+
+		return true;
+	}
+
+	// Asks every worker for its shard, the shards have to follow each other and have vectors of the same size.
+	// Returns the sum of the squared norms of all rows.
+	private double connect(List<Worker> connections) throws IOException
+	{
+		for (Worker worker : connections) {
+			worker.out.write(INFO);
+			worker.out.flush();
+		}
+
+		rows = 0;
+		dim = 0;
+		double totalNorm = 0;
+		for (Worker worker : connections) {
+			int version = worker.in.readInt();
+			if (version != VERSION)
+				throw new IOException("worker " + worker.address + " has version " + version + " instead of " + VERSION);
+			worker.first = worker.in.readInt();
+			worker.rows = worker.in.readInt();
+			worker.dim = worker.in.readInt();
+			worker.totalNorm = worker.in.readDouble();
+
+			if (worker.first != rows)
+				throw new IOException("worker " + worker.address + " starts at row " + worker.first + " instead of " + rows);
+			// an empty shard does not know the size of the vectors
+			if (worker.rows > 0 && dim != 0 && worker.dim != dim)
+				throw new IOException("worker " + worker.address + " has vectors of size " + worker.dim + " instead of " + dim);
+			if (worker.rows > 0)
+				dim = worker.dim;
+			rows += worker.rows;
+			totalNorm += worker.totalNorm;
+		}
+		if (initialPrototypes != null && rows > 0 && initialPrototypes[0].length != dim)
+			throw new IOException("initial prototypes of size " + initialPrototypes[0].length + " for vectors of size " + dim);
+		return totalNorm;
+	}
+
+	// A sample of about 'size' rows, every worker samples in proportion to the rows of its shard
+	private DataMatrix sample(List<Worker> connections, int size) throws IOException
+	{
+		size = Math.min(size, rows);
+		long before = 0;
+		for (Worker worker : connections) {
+			// the counts of all workers add up to size
+			int count = (int) ((before + worker.rows) * size / rows - before * size / rows);
+			before += worker.rows;
+			worker.out.write(SAMPLE);
+			worker.out.writeInt(count);
+			worker.out.writeLong(random.nextLong());
+			worker.out.flush();
+		}
+
+		float[] values = new float[size * dim];
+		int sampled = 0;
+		for (Worker worker : connections) {
+			int count = worker.in.readInt();
+			int workerDim = worker.in.readInt();
+			for (int i = 0; i < count * workerDim; i++)
+				values[sampled * dim + i] = worker.in.readFloat();
+			sampled += count;
+		}
+		return new FloatMatrix(values, sampled, dim);
+	}
+
+	// One assignment step on all workers: the sums and counts of the new partition, returns the number of rows
+	// that changed cluster
+	private long iterate(List<Worker> connections, double[][] sums, int[] counts) throws IOException
+	{
+		// every worker gets the prototypes before any reply is read, so they all work at the same time
+		for (Worker worker : connections) {
+			worker.out.write(ITERATE);
+			writePrototypes(worker.out, prototypes);
+			worker.out.flush();
+		}
+
+		// merge the workers, always in the same order
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			Arrays.fill(sums[indexCluster], 0);
+			counts[indexCluster] = 0;
+		}
+		long changed = 0;
+		for (Worker worker : connections) {
+			changed += worker.in.readLong();
+			for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+				int count = worker.in.readInt();
+				counts[indexCluster] += count;
+				if (count > 0)
+					readSum(worker.in, sums[indexCluster]);
+			}
+		}
+		return changed;
+	}
+
+	// The cluster of every row of all shards
+	private int[] gather(List<Worker> connections) throws IOException
+	{
+		for (Worker worker : connections) {
+			worker.out.write(ASSIGNMENT);
+			worker.out.flush();
+		}
+
+		int[] gathered = new int[rows];
+		for (Worker worker : connections) {
+			int shardRows = worker.in.readInt();
+			if (shardRows != worker.rows)
+				throw new IOException("worker " + worker.address + " has " + shardRows + " rows instead of " + worker.rows);
+			for (int row = 0; row < shardRows; row++)
+				gathered[worker.first + row] = worker.in.readInt();
+		}
+		return gathered;
+	}
+
+	// The prototype of a cluster is the mean of its members, a cluster without members keeps its prototype
+	private void updatePrototypes(double[][] sums, int[] counts)
+	{
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			if (counts[indexCluster] == 0)
+				continue;
+			float[] prototype = new float[dim];
+			for (int index = 0; index < dim; index++)
+				prototype[index] = (float) (sums[indexCluster][index] / counts[indexCluster]);
+			prototypes[indexCluster] = prototype;
+		}
+	}
+
+	// Sum of the squared distances of the datapoints to the mean of their cluster (see KMeans.sumOfSquares)
+	private double sumOfSquares(double totalNorm, double[][] sums, int[] counts)
+	{
+		double sumOfSquares = totalNorm;
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			if (counts[indexCluster] == 0)
+				continue;
+			double norm = 0;
+			for (int index = 0; index < dim; index++)
+				norm += sums[indexCluster][index] * sums[indexCluster][index];
+			sumOfSquares -= norm / counts[indexCluster];
+		}
+		return Math.max(sumOfSquares, 0);
+	}
+
+	static void writePrototypes(DataOutputStream out, float[][] prototypes) throws IOException
+	{
+		int dim = prototypes.length == 0 ? 0 : prototypes[0].length;
+		out.writeInt(prototypes.length);
+		out.writeInt(dim);
+		for (float[] prototype : prototypes)
+			for (float value : prototype)
+				out.writeFloat(value);
+	}
+
+	static float[][] readPrototypes(DataInputStream in) throws IOException
+	{
+		int k = in.readInt();
+		int dim = in.readInt();
+		float[][] prototypes = new float[k][dim];
+		for (float[] prototype : prototypes)
+			for (int index = 0; index < dim; index++)
+				prototype[index] = in.readFloat();
+		return prototypes;
+	}
+
+	// Writes a sum, only its elements that are not 0 when that is shorter
+	static void writeSum(DataOutputStream out, double[] sum) throws IOException
+	{
+		int nonZeros = 0;
+		for (double value : sum)
+			if (value != 0)
+				nonZeros++;
+
+		if ((long) nonZeros * 12 < (long) sum.length * 8) {
+			out.writeInt(nonZeros);
+			for (int index = 0; index < sum.length; index++) {
+				if (sum[index] != 0) {
+					out.writeInt(index);
+					out.writeDouble(sum[index]);
+				}
+			}
+		}
+		else {
+			out.writeInt(-1);
+			for (double value : sum)
+				out.writeDouble(value);
+		}
+	}
+
+	// Adds a sum written by writeSum to sum
+	static void readSum(DataInputStream in, double[] sum) throws IOException
+	{
+		int nonZeros = in.readInt();
+		if (nonZeros < 0) {
+			for (int index = 0; index < sum.length; index++)
+				sum[index] += in.readDouble();
+			return;
+		}
+		for (int i = 0; i < nonZeros; i++) {
+			int index = in.readInt();
+			sum[index] += in.readDouble();
+		}
+	}
+
+	public boolean test()
+	{
+		// the prefetched htmls of every cluster and the requests of every client as bits, see Evaluation
+		Metrics.Phase testing = phase(Metrics.EVALUATION, 0);
+		try {
+			if (testData.rows() != assignment.length)
+				throw new IllegalArgumentException("test data has " + testData.rows() + " rows, the training data " + assignment.length);
+			evaluation = Evaluation.of(prototypes(), prefetchThreshold, assignment, testData);
+		}
+		catch (InterruptedException | ExecutionException | IllegalArgumentException e) {
+			System.out.println("error occured while testing:" + e);
+			return false;
+		}
+
+		this.hitrate = evaluation.hitrate();
+		this.accuracy = evaluation.accuracy();
+
+		testing.end();
+		return true;
+	}
+
+	public ThresholdCurve thresholdCurve()
+	{
+		Metrics.Phase evaluation = phase(Metrics.EVALUATION, 0);
+		ThresholdCurve curve = ThresholdCurve.of(prototypes(), assignment, testData);
+		evaluation.end();
+		return curve;
+	}
+
+	public float[][] prototypes()
+	{
+		if (prototypes == null)
+			return new float[k][dim];
+		return prototypes;
+	}
+
+	public int[] assignment()
+	{
+		return assignment;
+	}
+
+	// Saved as a KMeans model, with the k-means++ seeding
+	public void save(String fileName) throws IOException
+	{
+		ModelFile.write(fileName, ModelFile.KMEANS, prefetchThreshold, new double[] {k, KMeans.Seeding.KMEANS_PLUS_PLUS.ordinal()}, prototypes(), assignment);
+	}
+
+
+	// The following members are called by runClustering, in order to present information to the user
+	public void showTest()
+	{
+		System.out.println("Workers=" + workers.size() + ", rows=" + rows + ", seeding=" + (initialPrototypes != null ? "warm start" : "k-means++ on a sample") + ", iterations=" + iterations + (converged ? "" : " (not converged)") + ", distances calculated=" + distances);
+		System.out.println("Sum of squares=" + sumOfSquares);
+		System.out.println("Prefetch threshold=" + this.prefetchThreshold);
+		System.out.println("Hitrate: " + this.hitrate);
+		System.out.println("Accuracy: " + this.accuracy);
+		System.out.println("Hitrate+Accuracy=" + (this.hitrate + this.accuracy));
+	}
+
+	public void showMembers()
+	{
+		List<List<Integer>> members = members(assignment, k);
+		for (int i = 0; i < k; i++)
+			System.out.println("\nMembers cluster["+i+"] :" + members.get(i));
+	}
+
+	public void showPrototypes()
+	{
+		float[][] current = prototypes();
+		for (int ic = 0; ic < k; ic++) {
+			System.out.print("\nPrototype cluster["+ic+"] :");
+
+			for (int ip = 0; ip < dim; ip++)
+				System.out.print(current[ic][ip] + " ");
+
+			System.out.println();
+		}
+	}
+
+	// with this function you can set the prefetch threshold.
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	// Starts the next train() from these prototypes instead of seeding, for instance those of a saved model
+	public void setInitialPrototypes(float[][] prototypes)
+	{
+		if (prototypes != null && prototypes.length != k)
+			throw new IllegalArgumentException(prototypes.length + " initial prototypes for " + k + " clusters");
+		initialPrototypes = prototypes;
+	}
+
+	// Seed of the random generator used for the seeding, for reproducible runs
+	public void setSeed(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	// Number of assignment passes of the last train()
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	public double getSumOfSquares()
+	{
+		return sumOfSquares;
+	}
+
+	// Whether the last train() ended because no row changed cluster, rather than at MAX_ITERATIONS
+	public boolean isConverged()
+	{
+		return converged;
+	}
+}
@@ -0,0 +1,282 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Evaluation
+{
+	// Hitrate and accuracy of a model at one prefetch threshold, in total and per cluster. For every test
+	// client with requests, hitrate = hits / requests, and when its cluster prefetches anything,
+	// accuracy = hits / prefetched htmls. The hitrate and accuracy of the model are the means over all clients.
+	// A client without requests counts as hitrate 0 and a client whose cluster prefetches nothing as accuracy
+	// 0, rather than being left out: otherwise a high threshold that prefetches for only a few clusters would
+	// get the accuracy of those few. A client without a cluster (-1, see ModelFile) gets nothing prefetched, so
+	// it counts as hitrate 0 and accuracy 0 as well. ThresholdCurve counts them the same way.
+	//
+	// The htmls a cluster prefetches (the elements of its prototype that are not below the threshold) are kept
+	// as a bitset, 64 htmls per long like the rows of a BinaryMatrix. The hits of a client are the htmls its
+	// requests have in common with that bitset: for a BinaryMatrix the bitCount of the and of their words,
+	// for other data the prefetch bit of every html the client requested. Either way no client costs more
+	// than its requests (or words), instead of one comparison for every html.
+	//
+	// The test clients are split in chunks of at least MIN_CHUNK_SIZE rows and at most MAX_CHUNKS chunks, which
+	// are evaluated in parallel on the common fork/join pool, every chunk with its own sums per cluster. The sums
+	// are in doubles and added up in the order of the chunks, so the result does not depend on the number of
+	// threads.
+
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNKS = 64;
+
+	private final int clusters;
+	private final int dim;
+	private final double prefetchThreshold;
+
+	// Longs per prefetch set, the set of cluster c is prefetch[c*words] .. prefetch[c*words+words-1]
+	private final int words;
+	private final long[] prefetch;
+
+	// Number of prefetched htmls per cluster
+	private final int[] prefetched;
+
+	private int threads;
+
+	// Sums over the clients added so far, per cluster
+	private final Sums sums;
+
+	// Sums over the clients of one chunk
+	private static class Sums
+	{
+		final long[] clients;
+		final long[] requests;
+		final long[] hits;
+		final double[] hitrates;
+		final double[] accuracies;
+
+		// clients without a cluster
+		long unassigned;
+
+		Sums(int clusters)
+		{
+			clients = new long[clusters];
+			requests = new long[clusters];
+			hits = new long[clusters];
+			hitrates = new double[clusters];
+			accuracies = new double[clusters];
+		}
+
+		void add(Sums other)
+		{
+			for (int c = 0; c < clients.length; c++) {
+				clients[c] += other.clients[c];
+				requests[c] += other.requests[c];
+				hits[c] += other.hits[c];
+				hitrates[c] += other.hitrates[c];
+				accuracies[c] += other.accuracies[c];
+			}
+			unassigned += other.unassigned;
+		}
+	}
+
+	public Evaluation(float[][] prototypes, double prefetchThreshold)
+	{
+		this.clusters = prototypes.length;
+		this.dim = prototypes.length == 0 ? 0 : prototypes[0].length;
+		this.prefetchThreshold = prefetchThreshold;
+		words = (dim + 63) >>> 6;
+		prefetch = new long[clusters * words];
+		prefetched = new int[clusters];
+		for (int c = 0; c < clusters; c++) {
+			for (int j = 0; j < dim; j++) {
+				if (prototypes[c][j] < prefetchThreshold)
+					continue;
+				prefetch[c * words + (j >>> 6)] |= 1L << j;
+				prefetched[c]++;
+			}
+		}
+		threads = Runtime.getRuntime().availableProcessors();
+		sums = new Sums(clusters);
+	}
+
+	// Evaluation of a model with the cluster of every client in assignment, tested on testData
+	public static Evaluation of(float[][] prototypes, double prefetchThreshold, int[] assignment, DataMatrix testData) throws InterruptedException, ExecutionException
+	{
+		Evaluation evaluation = new Evaluation(prototypes, prefetchThreshold);
+		evaluation.add(assignment, testData, testData.rows());
+		return evaluation;
+	}
+
+	// Number of threads used by add(), the result is the same for any number of threads
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	// Adds the test clients 0 .. rows-1 of testData, client row is a member of cluster assignment[row]
+	public void add(int[] assignment, DataMatrix testData, int rows) throws InterruptedException, ExecutionException
+	{
+		BinaryMatrix bits = testData instanceof BinaryMatrix && ((BinaryMatrix) testData).words() == words ? (BinaryMatrix) testData : null;
+
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (rows + MAX_CHUNKS - 1) / MAX_CHUNKS);
+		int chunks = (rows + chunkSize - 1) / chunkSize;
+		List<Sums> chunkSums = new ArrayList<>();
+		List<Runnable> tasks = new ArrayList<>();
+		for (int i = 0; i < chunks; i++) {
+			Sums chunk = new Sums(clusters);
+			int from = i * chunkSize;
+			int to = Math.min(from + chunkSize, rows);
+			chunkSums.add(chunk);
+			tasks.add(() -> add(chunk, assignment, testData, bits, from, to));
+		}
+
+		if (threads == 1 || chunks <= 1) {
+			for (Runnable task : tasks)
+				task.run();
+		}
+		else {
+			// at most threads tasks, each evaluates every workers-th chunk
+			int workers = Math.min(threads, chunks);
+			List<Callable<Object>> callables = new ArrayList<>();
+			for (int w = 0; w < workers; w++) {
+				int worker = w;
+				callables.add(Executors.callable(() -> {
+					for (int i = worker; i < chunks; i += workers)
+						tasks.get(i).run();
+				}));
+			}
+			for (Future<Object> future : ForkJoinPool.commonPool().invokeAll(callables))
+				future.get();
+		}
+
+		for (Sums chunk : chunkSums)
+			sums.add(chunk);
+	}
+
+	private void add(Sums chunk, int[] assignment, DataMatrix testData, BinaryMatrix bits, int from, int to)
+	{
+		// only the htmls a client requested can count, the other elements of its vector are 0
+		int[] requested = bits == null ? new int[dim] : null;
+
+		for (int row = from; row < to; row++) {
+			int cluster = assignment[row];
+			if (cluster < 0 || cluster >= clusters) {
+				chunk.unassigned++;
+				continue;
+			}
+			int first = cluster * words;
+
+			int hits = 0;
+			int requests = 0;
+			if (bits != null) {
+				// every set bit is a request
+				for (int w = 0; w < words; w++) {
+					long word = bits.word(row, w);
+					requests += Long.bitCount(word);
+					hits += Long.bitCount(word & prefetch[first + w]);
+				}
+			}
+			else {
+				int nonZeros = testData.nonZeros(row, requested);
+				for (int r = 0; r < nonZeros; r++) {
+					int i = requested[r];
+					if (testData.get(row, i) == 1.0) {
+						requests++;
+						hits += (int) (prefetch[first + (i >>> 6)] >>> i) & 1;
+					}
+				}
+			}
+
+			chunk.clients[cluster]++;
+			chunk.requests[cluster] += requests;
+			chunk.hits[cluster] += hits;
+			if (requests != 0)
+				chunk.hitrates[cluster] += (double) hits / requests;
+			// a cluster that prefetches nothing has no accuracy
+			if (prefetched[cluster] != 0)
+				chunk.accuracies[cluster] += (double) hits / prefetched[cluster];
+		}
+	}
+
+	// Number of test clients added
+	public long clients()
+	{
+		long total = sums.unassigned;
+		for (int c = 0; c < clusters; c++)
+			total += sums.clients[c];
+		return total;
+	}
+
+	public double hitrate()
+	{
+		double total = 0;
+		for (int c = 0; c < clusters; c++)
+			total += sums.hitrates[c];
+		long clients = clients();
+		return clients == 0 ? 0 : total / clients;
+	}
+
+	public double accuracy()
+	{
+		double total = 0;
+		for (int c = 0; c < clusters; c++)
+			total += sums.accuracies[c];
+		long clients = clients();
+		return clients == 0 ? 0 : total / clients;
+	}
+
+	// Test clients without a cluster
+	public long unassigned()
+	{
+		return sums.unassigned;
+	}
+
+	// Number of clusters
+	public int size()
+	{
+		return clusters;
+	}
+
+	// Test clients that are a member of a cluster
+	public long clients(int cluster)
+	{
+		return sums.clients[cluster];
+	}
+
+	// Number of htmls a cluster prefetches
+	public int prefetched(int cluster)
+	{
+		return prefetched[cluster];
+	}
+
+	// Requests and hits of the members of a cluster
+	public long requests(int cluster)
+	{
+		return sums.requests[cluster];
+	}
+
+	public long hits(int cluster)
+	{
+		return sums.hits[cluster];
+	}
+
+	// Mean hitrate and accuracy of the members of a cluster, 0 without members
+	public double hitrate(int cluster)
+	{
+		return sums.clients[cluster] == 0 ? 0 : sums.hitrates[cluster] / sums.clients[cluster];
+	}
+
+	public double accuracy(int cluster)
+	{
+		return sums.clients[cluster] == 0 ? 0 : sums.accuracies[cluster] / sums.clients[cluster];
+	}
+
+	// Prints the results per cluster that has test clients, and the totals
+	public void show()
+	{
+		System.out.println("Prefetch threshold = " + prefetchThreshold);
+		System.out.println("Cluster\tClients\tPrefetched\tRequests\tHits\tHitrate\tAccuracy");
+		for (int c = 0; c < clusters; c++)
+			if (sums.clients[c] > 0)
+				System.out.println(c + "\t" + sums.clients[c] + "\t" + prefetched[c] + "\t" + sums.requests[c] + "\t" + sums.hits[c] + "\t" + hitrate(c) + "\t" + accuracy(c));
+		if (sums.unassigned > 0)
+			System.out.println("None\t" + sums.unassigned + "\t0\t\t0\t0\t0");
+		System.out.println("Total\t" + clients() + "\t\t\t\t" + hitrate() + "\t" + accuracy());
+	}
+}
@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+
+public class FloatMatrix extends DataMatrix
+{
+	// All rows in one row-major block: row r starts at r*dim.
+	// The buffer is either a wrapped heap array or an off-heap (direct) buffer. It holds rows*dim floats, so
+	// rows*dim fits in an int and row*dim + col cannot overflow.
+	private final FloatBuffer data;
+
+	// The bytes of an off-heap buffer, which the kernels read directly as there is no array behind data
+	private final ByteBuffer bytes;
+
+	// Number of dimensions summed between two checks of the bound in squaredDistance
+	private static final int ABANDON_BLOCK = 16;
+
+	public FloatMatrix(FloatBuffer data, int rows, int dim)
+	{
+		this(data, null, rows, dim);
+	}
+
+	// The floats in a block of bytes, for instance a mapped data file, in the byte order of the buffer
+	public FloatMatrix(ByteBuffer bytes, int rows, int dim)
+	{
+		this(bytes.asFloatBuffer(), bytes, rows, dim);
+	}
+
+	private FloatMatrix(FloatBuffer data, ByteBuffer bytes, int rows, int dim)
+	{
+		super(rows, dim);
+		if (data.capacity() < (long) rows * dim)
+			throw new IllegalArgumentException("buffer holds " + data.capacity() + " floats, need " + ((long) rows * dim));
+		this.data = data;
+		this.bytes = bytes;
+	}
+
+	public FloatMatrix(float[] data, int rows, int dim)
+	{
+		this(FloatBuffer.wrap(data), rows, dim);
+	}
+
+	// Zero-copy, read-only view on a single row
+	public FloatBuffer row(int row)
+	{
+		int offset = row * dim;
+		return data.duplicate().position(offset).limit(offset + dim).slice().asReadOnlyBuffer();
+	}
+
+	public float get(int row, int col)
+	{
+		return data.get(row * dim + col);
+	}
+
+	public float squaredDistance(int row, float[] prototype)
+	{
+		if (bytes != null)
+			return Kernels.get().squaredDistance(bytes, row * dim, prototype, 0, dim, 0);
+		return Kernels.get().squaredDistance(data, row * dim, prototype, 0, dim, 0);
+	}
+
+	public float squaredDistance(int row, float[] prototype, float norm, float bound, int[] order)
+	{
+		Kernels kernels = Kernels.get();
+		int offset = row * dim;
+		float distance = 0;
+		for (int i = 0; i < dim; i += ABANDON_BLOCK) {
+			int end = Math.min(i + ABANDON_BLOCK, dim);
+			if (bytes != null)
+				distance = order == null ? kernels.squaredDistance(bytes, offset, prototype, i, end, distance)
+					: kernels.squaredDistance(bytes, offset, prototype, order, i, end, distance);
+			else if (order == null)
+				distance = kernels.squaredDistance(data, offset, prototype, i, end, distance);
+			else
+				distance = kernels.squaredDistance(data, offset, prototype, order, i, end, distance);
+			if (distance > bound)
+				return distance;
+		}
+		return distance;
+	}
+
+	public void addTo(int row, double[] sum)
+	{
+		if (bytes != null)
+			Kernels.get().add(bytes, row * dim, sum);
+		else
+			Kernels.get().add(data, row * dim, sum);
+	}
+
+	public float moveTowards(int row, float[] prototype, double rate)
+	{
+		if (bytes != null)
+			return Kernels.get().moveTowards(bytes, row * dim, prototype, rate);
+		return Kernels.get().moveTowards(data, row * dim, prototype, rate);
+	}
+
+	// True if every element is 0 or 1, so the matrix can be packed in a BinaryMatrix
+	public boolean isBinary()
+	{
+		for (int i = 0; i < rows * dim; i++) {
+			float value = data.get(i);
+			if (value != 0 && value != 1)
+				return false;
+		}
+		return true;
+	}
+}
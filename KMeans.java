@@ -1,5 +1,7 @@
-import java.awt.print.Printable;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
 
 public class KMeans extends ClusteringAlgorithm
 {
@@ -15,200 +17,957 @@ public class KMeans extends ClusteringAlgorithm
 	// Array of k clusters, class cluster is used for easy bookkeeping
 	private Cluster[] clusters;
 
-	// This class represents the clusters, it contains the prototype (the mean of all it's members)
-	// and memberlists with the ID's (which are Integer objects) of the datapoints that are member of that cluster.
-	// You also want to remember the previous members so you can check if the clusters are stable.
+	// This class represents the clusters, it contains the prototype (the mean of all it's members).
+	// Which datapoints are member of which cluster is kept in the assignment array.
 	static class Cluster
 	{
 		float[] prototype;
+	}
+
+	// Cluster of every datapoint: assignment[client index] = cluster index.
+	// Comparing it with the new nearest cluster tells how many datapoints changed cluster.
+	private int[] assignment;
+
+	// Result of the assignment step for one chunk of the training data: the partial sums and
+	// member counts per cluster of the rows from..to (exclusive), and how many of them changed cluster.
+	static class Chunk
+	{
+		int from;
+		int to;
 
-		Set<Integer> currentMembers;
-		Set<Integer> previousMembers;
+		double[][] sums;
+		int[] counts;
+		int changed;
 
-		public Cluster()
+		// number of distances calculated, with bounds this is less than k per row
+		long distances;
+
+		public Chunk(int from, int to, int k, int dim)
 		{
-			currentMembers = new HashSet<Integer>();
-			previousMembers = new HashSet<Integer>();
+			this.from = from;
+			this.to = to;
+			sums = new double[k][dim];
+			counts = new int[k];
 		}
 	}
-	// These vectors contains the feature vectors you need; the feature vectors are float arrays.
-	// Remember that you have to cast them first, since vectors return objects.
-	private Vector<float[]> trainData;
-	private Vector<float[]> testData;
+
+	// The training data is split in chunks of at least MIN_CHUNK_SIZE rows, and at most MAX_CHUNKS chunks.
+	// The split only depends on the number of rows and the chunks are merged in a fixed order,
+	// so the result of train() does not depend on the number of threads.
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNKS = 64;
+
+	// Number of threads used by train(), with 1 thread everything runs on the calling thread
+	private int threads;
+
+	// How the initial prototypes are chosen:
+	//   RANDOM_PARTITION  every datapoint in a random cluster, the prototypes are the means of the clusters
+	//   KMEANS_PLUS_PLUS  k-means++, datapoints far from the prototypes chosen so far are more likely the next prototype
+	//   KMEANS_PARALLEL   k-means||, like k-means++ but sampling many datapoints per pass, for large k and large data
+	public enum Seeding { RANDOM_PARTITION, KMEANS_PLUS_PLUS, KMEANS_PARALLEL }
+
+	// RANDOM_PARTITION unless setSeeding chooses another, so existing callers keep the seeding they had
+	private Seeding seeding;
+
+	// Number of passes of k-means|| and the expected number of datapoints sampled per pass, times k
+	private static final int PARALLEL_ROUNDS = 5;
+	private static final double OVERSAMPLING = 2;
+
+	// Number of assignment passes of the last train()
+	private int iterations;
+
+	// With bounds, a datapoint is only compared with all prototypes when the triangle inequality cannot
+	// show that its cluster stays the same. For every datapoint it keeps
+	//   upper[row]           at least the distance to its own prototype
+	//   lowers[row * k + c]  at most the distance to prototype c (Elkan's algorithm), or when that takes
+	//                        too much memory lower[row], at most the distance to any other prototype (Hamerly's)
+	// and half[c][c2], half the distance between two prototypes, and nearestHalf[c], the smallest of these.
+	// When a prototype moves, the upper bounds of its members grow and its lower bounds shrink by that distance.
+	// Another prototype cannot be nearer when the upper bound is below its lower bound or below half the
+	// distance between the prototypes.
+	//
+	// The search itself compares float distances, which are only exact up to rounding, and picks the
+	// first prototype on a tie. So a prototype is only ruled out when the bounds differ by more than
+	// the rounding error (slack), and the clusters are exactly the same as without bounds.
+	private boolean bounds;
+	private double[] upper;
+	private double[] lower;
+	private float[] lowers;
+	private double[][] half;
+	private double[] nearestHalf;
+	private double[] drift;
+	private double maxDrift;
+	private int maxDriftCluster;
+	private double secondDrift;
+
+	// Elkan's bounds are used as long as they take at most this many floats
+	private static final long MAX_LOWER_BOUNDS = 1 << 24;
+
+	// Squared norm of every datapoint and the largest squared norm of the prototypes, for the slack
+	private double[] rowNorms;
+	private double maxNorm;
+
+	// Number of distances calculated by the last train()
+	private long distances;
+
+	// Within-cluster sum of squares of the last train(): the sum of the squared distances of the
+	// datapoints to the prototype of their cluster
+	private double sumOfSquares;
+
+	// With restarts, train() runs k-means that many times with different seeds at the same time, on the
+	// same data, and keeps the best run:
+	//   SUM_OF_SQUARES    the run with the lowest within-cluster sum of squares
+	//   HITRATE_ACCURACY  the run with the highest hitrate+accuracy on the test data
+	// The restarts run on at most 'threads' threads. Which run is kept only depends on the seed.
+	// Restarts that are clearly worse than the best one halfway are cancelled (see cancelMargin).
+	public enum Selection { SUM_OF_SQUARES, HITRATE_ACCURACY }
+
+	private int restarts;
+	private Selection selection;
+
+	// Restart that was kept by the last train(), and the number of restarts that were cancelled
+	private int bestRestart;
+	private int cancelled;
+
+	// Number of distances calculated by all restarts together
+	private long restartDistances;
+
+	// When selecting on the sum of squares, a restart is cancelled at a checkpoint when its sum of squares
+	// is more than this fraction above the lowest one (infinite: never)
+	private double cancelMargin;
+	private static final int FIRST_CHECKPOINT = 2;
+
+	// A warm start begins train() where a previous model ended instead of with seeding (see setInitialPrototypes
+	// and setInitialAssignment), so retraining on slightly changed data takes a few iterations. With
+	// initialWeights the training data is a delta: only the new and changed clients, while prototype c also
+	// stands for initialWeights[c] earlier clients that keep their cluster.
+	private float[][] initialPrototypes;
+	private int[] initialWeights;
+	private int[] initialAssignment;
+
+	private Random random;
+
+	// Search for the nearest prototype of a datapoint
+	private NearestPrototype search;
+
+	// These matrices contain the feature vectors you need, one vector per row.
+	// They are shared read-only with the other algorithms.
+	private DataMatrix trainData;
+	private DataMatrix testData;
 
 	// Results of test()
 	private double hitrate;
 	private double accuracy;
 
-	public KMeans(int k, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+	public KMeans(int k, DataMatrix trainData, DataMatrix testData, int dim)
 	{
 		this.k = k;
 		this.trainData = trainData;
 		this.testData = testData;
 		this.dim = dim;
 		prefetchThreshold = 0.5;
+		threads = 1;
+		seeding = Seeding.RANDOM_PARTITION;
+		bounds = true;
+		restarts = 1;
+		selection = Selection.SUM_OF_SQUARES;
+		cancelMargin = 0.1;
+		random = new Random();
 
 		// Here k new cluster are initialized
 		clusters = new Cluster[k];
 		for (int ic = 0; ic < k; ic++)
 			clusters[ic] = new Cluster();
+		assignment = new int[trainData.rows()];
 	}
 
 
 	public boolean train()
 	{
-	 	//implement k-means algorithm here:
-		// Step 1: Select an initial random partioning with k clusters
-		Random random = new Random();
-		for (Integer i = 0; i < trainData.size(); i++) {
-			int rand = random.nextInt(this.k);
-			clusters[rand].currentMembers.add(i);
+		if (trainData.rows() == 0){
+			return false;
 		}
+		// a warm start has a single starting point, restarts would all give the same result
+		if (restarts > 1 && initialPrototypes == null && initialAssignment == null)
+			return trainRestarts();
 
-		showMembers();
-
-		if (trainData.size() == 0){
+		Training training = new Training();
+		try {
+			training.start();
+			// Step 4: repeat until clustermembership stabilizes
+			while (!training.converged())
+				training.iterate();
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while training:" + e);
 			return false;
 		}
-		// Step 2: Generate a new partition by assigning each datapoint to its closest cluster center
+		finally {
+			training.close();
+		}
+		training.finish();
 
-		// Step 3: recalculate cluster centers
+		if (verbose)
+			showMembers();
 
-		do{
+		return true;
+	}
 
-			// make new members old members
-			for (Cluster cluster : clusters) {
-				cluster.previousMembers = cluster.currentMembers;
-				cluster.currentMembers = new HashSet<>();
-				cluster.prototype = new float[trainData.get(0).length];
-			}
+	// The state of one train(), so the restarts can be trained a few iterations at a time
+	private class Training
+	{
+		List<Chunk> chunks;
+		float[][] prototypes;
+		ExecutorService executor;
 
-			// calculate prototype (cluster center) per cluster
-			for(int indexCluster = 0; indexCluster < k; indexCluster++) {
+		// sums and member counts of the current partition, the prototypes are calculated from these
+		double[][] sums;
+		int[] counts;
 
-				///index of prototype
-				for(int indexPrototype = 0; indexPrototype < this.dim; indexPrototype++) {
+		// sum of the squared norms of the datapoints, for the sum of squares of every partition
+		double totalNorm;
+
+		// datapoints that changed cluster in the last iteration, -1 before the first
+		int changed;
+
+		Metrics.Phase phase;
+
+		void start() throws InterruptedException, ExecutionException
+		{
+			chunks = createChunks();
+			prototypes = new float[k][];
+			search = new NearestPrototype(trainData);
+			search.orderByVariance();
+			executor = threads > 1 ? new ForkJoinPool(threads) : null;
+			sums = new double[k][dim];
+			counts = new int[k];
+			for (int row = 0; row < trainData.rows(); row++)
+				totalNorm += trainData.squaredNorm(row);
+			changed = -1;
+			phase = phase(Metrics.TRAINING, 0);
 
-					float sum = 0;
-					///index of members
-					for (int member : clusters[indexCluster].previousMembers) {
-						sum += trainData.get(member)[indexPrototype];
+			// Step 1: Select the initial prototypes
+			Metrics.Phase seedingPhase = phase(Metrics.SEEDING, 0);
+			for (int indexCluster = 0; indexCluster < k; indexCluster++)
+				clusters[indexCluster].prototype = null;
+
+			if (initialPrototypes != null) {
+				float[][] copies = new float[k][];
+				for (int indexCluster = 0; indexCluster < k; indexCluster++)
+					copies[indexCluster] = initialPrototypes[indexCluster].clone();
+				setPrototypes(copies);
+			}
+			else if (initialAssignment != null) {
+				// the previous partition, the prototypes are the means of its clusters, rows it has no
+				// cluster for go to the nearest prototype in the first iteration
+				for (int i = 0; i < trainData.rows(); i++) {
+					int cluster = i < initialAssignment.length ? initialAssignment[i] : -1;
+					assignment[i] = cluster >= 0 && cluster < k ? cluster : -1;
+					if (assignment[i] >= 0) {
+						trainData.addTo(i, sums[assignment[i]]);
+						counts[assignment[i]]++;
 					}
-					clusters[indexCluster].prototype[indexPrototype] = ( sum / (float) clusters[indexCluster].previousMembers.size() );
 				}
+			}
+			else switch (seeding) {
+				case RANDOM_PARTITION:
+					// a random partioning with k clusters, the prototypes are the means of the clusters
+					for (int i = 0; i < trainData.rows(); i++) {
+						assignment[i] = random.nextInt(k);
+						trainData.addTo(i, sums[assignment[i]]);
+						counts[assignment[i]]++;
+					}
+					break;
+				case KMEANS_PLUS_PLUS:
+					setPrototypes(kMeansPlusPlus(trainData, null));
+					break;
+				case KMEANS_PARALLEL:
+					setPrototypes(kMeansParallel(executor, chunks));
+					break;
+			}
+
+			if (verbose)
+				showMembers();
+
+			if (bounds)
+				initializeBounds(executor, chunks);
+			seedingPhase.end();
+
+			iterations = 0;
+			distances = 0;
+		}
+
+		boolean converged()
+		{
+			return changed == 0;
+		}
+
+		// Step 2: Generate a new partition by assigning each datapoint to its closest cluster center
+		// Step 3: recalculate cluster centers
+		void iterate() throws InterruptedException, ExecutionException
+		{
+			Metrics.Phase update = phase(Metrics.UPDATE, iterations);
+			float[][] previous = prototypes.clone();
+			updatePrototypes(sums, counts);
+			for (int indexCluster = 0; indexCluster < k; indexCluster++)
+				prototypes[indexCluster] = clusters[indexCluster].prototype;
+			search.setPrototypes(prototypes);
+			if (bounds)
+				updateCentroidDistances(previous, prototypes);
+			update.end();
+
+			// assignment to new cluster, every chunk also sums its members for the next prototypes
+			Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, iterations);
+			forEachChunk(executor, chunks.size(), i -> assign(chunks.get(i)));
+
+			// merge the chunks, always in the same order
+			changed = 0;
+			long iterationDistances = 0;
+			for (Chunk chunk : chunks) {
+				changed += chunk.changed;
+				iterationDistances += chunk.distances;
+			}
+			distances += iterationDistances;
+			for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+				Arrays.fill(sums[indexCluster], 0);
+				counts[indexCluster] = 0;
+				for (Chunk chunk : chunks) {
+					Kernels.get().add(chunk.sums[indexCluster], sums[indexCluster]);
+					counts[indexCluster] += chunk.counts[indexCluster];
+				}
+			}
+			assignmentPhase.end(changed, iterationDistances);
+			iterations++;
+			sumOfSquares = initialWeights == null ? sumOfSquares(totalNorm, sums, counts) : sumOfSquares(totalNorm, sums, counts, prototypes);
+		}
+
+		// Stops the threads and frees the bounds, which are only needed during training
+		void close()
+		{
+			if (executor != null)
+				executor.shutdown();
+			upper = null;
+			lower = null;
+			lowers = null;
+			rowNorms = null;
+		}
+
+		void finish()
+		{
+			// nobody changed cluster in the last iteration, so the prototypes are the means of the clusters
+			phase.end(-1, distances, sumOfSquares / trainData.rows());
+		}
+	}
+
+	// Sum of the squared distances of the datapoints to the mean of their cluster, from the sums and counts of
+	// the clusters: per cluster sum |x - mean|^2 = sum |x|^2 - |sum x|^2 / count
+	private double sumOfSquares(double totalNorm, double[][] sums, int[] counts)
+	{
+		double sumOfSquares = totalNorm;
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			if (counts[indexCluster] == 0)
+				continue;
+			double norm = 0;
+			for (int index = 0; index < this.dim; index++)
+				norm += sums[indexCluster][index] * sums[indexCluster][index];
+			sumOfSquares -= norm / counts[indexCluster];
+		}
+		return Math.max(sumOfSquares, 0);
+	}
 
+	// The same for a delta, in which the prototypes are not the means of the clusters: per cluster
+	// sum |x - p|^2 = sum |x|^2 - 2 p.(sum x) + count |p|^2
+	private double sumOfSquares(double totalNorm, double[][] sums, int[] counts, float[][] prototypes)
+	{
+		double sumOfSquares = totalNorm;
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			if (counts[indexCluster] == 0)
+				continue;
+			double product = 0;
+			double norm = 0;
+			for (int index = 0; index < this.dim; index++) {
+				product += prototypes[indexCluster][index] * sums[indexCluster][index];
+				norm += (double) prototypes[indexCluster][index] * prototypes[indexCluster][index];
 			}
+			sumOfSquares += counts[indexCluster] * norm - 2 * product;
+		}
+		return Math.max(sumOfSquares, 0);
+	}
+
+	// Trains the restarts side by side and continues with the best one. The restarts are trained up to the
+	// same checkpoint (FIRST_CHECKPOINT iterations, then twice as many each time), and only compared there,
+	// with the seeds drawn before any of them starts and the first restart kept on a tie. So which restart
+	// is kept does not depend on the number of threads or on the order in which they finish.
+	private boolean trainRestarts()
+	{
+		int parallel = Math.min(restarts, threads);
+		List<KMeans> runs = new ArrayList<>();
+		List<Training> trainings = new ArrayList<>();
+		for (int restart = 0; restart < restarts; restart++) {
+			KMeans run = new KMeans(k, trainData, testData, dim);
+			run.seeding = seeding;
+			run.bounds = bounds;
+			run.prefetchThreshold = prefetchThreshold;
+			run.random = new Random(random.nextLong());
+			// the threads that are left over are used inside the restarts
+			run.threads = Math.max(1, threads / parallel);
+			run.verbose = false;
+			run.metrics = metrics.withLabel(metrics.label() + (metrics.label().isEmpty() ? "" : " ") + "restart" + restart);
+			runs.add(run);
+			trainings.add(run.new Training());
+		}
 
-			// assignment to new cluster
-			for (int memberIndex = 0; memberIndex < trainData.size(); memberIndex++) {
-				float[] member = trainData.get(memberIndex);
-				Integer bestCluster = null;
-				float bestDistance = this.dim;
-				for (int cluster = 0; cluster < this.k; cluster++) {
-					float[] prototype = clusters[cluster].prototype;
-					float currentDistance = 0;
-					for (int index = 0; index < this.dim; index++) {
-						currentDistance += Math.pow(member[index] - prototype[index], 2);
+		Metrics.Phase training = phase(Metrics.TRAINING, 0);
+		ExecutorService executor = Executors.newFixedThreadPool(parallel);
+		boolean[] alive = new boolean[restarts];
+		Arrays.fill(alive, true);
+		cancelled = 0;
+		try {
+			forEachRestart(executor, alive, restart -> trainings.get(restart).start());
+			for (int checkpoint = FIRST_CHECKPOINT; ; checkpoint *= 2) {
+				int until = checkpoint;
+				forEachRestart(executor, alive, restart -> {
+					while (!trainings.get(restart).converged() && runs.get(restart).iterations < until)
+						trainings.get(restart).iterate();
+				});
+
+				// the sum of squares of a restart only goes down in later iterations, the ones that are far
+				// above the lowest are unlikely to end below it
+				double lowest = Double.POSITIVE_INFINITY;
+				boolean converged = true;
+				for (int restart = 0; restart < restarts; restart++) {
+					if (alive[restart]) {
+						lowest = Math.min(lowest, runs.get(restart).sumOfSquares);
+						converged &= trainings.get(restart).converged();
 					}
-					currentDistance = (float) Math.sqrt(currentDistance);
-					if (currentDistance < bestDistance) {
-						bestCluster = cluster;
-						bestDistance = currentDistance;
+				}
+				if (converged)
+					break;
+				for (int restart = 0; restart < restarts; restart++) {
+					if (alive[restart] && !trainings.get(restart).converged() && selection == Selection.SUM_OF_SQUARES
+							&& runs.get(restart).sumOfSquares > lowest * (1 + cancelMargin)) {
+						alive[restart] = false;
+						trainings.get(restart).close();
+						cancelled++;
 					}
 				}
-				clusters[bestCluster].currentMembers.add(memberIndex);
 			}
-		// Step 4: repeat until clustermembership stabilizes
-		} while(clustersChanged());
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while training:" + e);
+			return false;
+		}
+		finally {
+			for (Training restartTraining : trainings)
+				restartTraining.close();
+			executor.shutdown();
+		}
 
-		showMembers();
+		bestRestart = -1;
+		restartDistances = 0;
+		for (int restart = 0; restart < restarts; restart++) {
+			KMeans run = runs.get(restart);
+			restartDistances += run.distances;
+			if (!alive[restart])
+				continue;
+			trainings.get(restart).finish();
+			if (selection == Selection.HITRATE_ACCURACY)
+				run.test();
+			if (bestRestart < 0 || (selection == Selection.SUM_OF_SQUARES
+					? run.sumOfSquares < runs.get(bestRestart).sumOfSquares
+					: run.hitrate + run.accuracy > runs.get(bestRestart).hitrate + runs.get(bestRestart).accuracy))
+				bestRestart = restart;
+		}
+
+		KMeans best = runs.get(bestRestart);
+		for (int indexCluster = 0; indexCluster < k; indexCluster++)
+			clusters[indexCluster].prototype = best.clusters[indexCluster].prototype;
+		assignment = best.assignment;
+		iterations = best.iterations;
+		distances = best.distances;
+		sumOfSquares = best.sumOfSquares;
+		training.end(-1, restartDistances, sumOfSquares / trainData.rows());
+
+		if (verbose)
+			showMembers();
 
 		return true;
 	}
 
-	private boolean clustersChanged(){
-		for (Cluster cluster : clusters) {
-			if (!cluster.currentMembers.containsAll(cluster.previousMembers)) {
-				return true;
+	private interface RestartTask
+	{
+		void run(int restart) throws InterruptedException, ExecutionException;
+	}
+
+	// Runs the task for every restart that is still trained, each restart on one thread of the executor
+	private void forEachRestart(ExecutorService executor, boolean[] alive, RestartTask task) throws InterruptedException, ExecutionException
+	{
+		List<Callable<Object>> tasks = new ArrayList<>();
+		for (int restart = 0; restart < alive.length; restart++) {
+			int current = restart;
+			if (alive[restart])
+				tasks.add(() -> {
+					task.run(current);
+					return null;
+				});
+		}
+		for (Future<Object> future : executor.invokeAll(tasks))
+			future.get();
+	}
+
+	// No bounds yet: every datapoint is searched in the first iteration
+	private void initializeBounds(ExecutorService executor, List<Chunk> chunks) throws InterruptedException, ExecutionException
+	{
+		int rows = trainData.rows();
+		upper = new double[rows];
+		if ((long) rows * k <= MAX_LOWER_BOUNDS)
+			lowers = new float[rows * k];
+		else
+			lower = new double[rows];
+		rowNorms = new double[rows];
+		half = new double[k][k];
+		nearestHalf = new double[k];
+		drift = new double[k];
+		Arrays.fill(upper, Double.POSITIVE_INFINITY);
+
+		forEachChunk(executor, chunks.size(), i -> {
+			for (int row = chunks.get(i).from; row < chunks.get(i).to; row++)
+				rowNorms[row] = trainData.squaredNorm(row);
+		});
+	}
+
+	// How far every prototype moved since the previous iteration (0 in the first one), and half the
+	// distances between the prototypes. Computed in double, with a tiny margin so they stay on the safe side.
+	private void updateCentroidDistances(float[][] previous, float[][] prototypes)
+	{
+		maxDrift = 0;
+		secondDrift = 0;
+		maxDriftCluster = -1;
+		maxNorm = 0;
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			drift[indexCluster] = previous[indexCluster] == null ? 0 : distance(previous[indexCluster], prototypes[indexCluster]) * (1 + 1e-9);
+			if (drift[indexCluster] > maxDrift) {
+				secondDrift = maxDrift;
+				maxDrift = drift[indexCluster];
+				maxDriftCluster = indexCluster;
+			}
+			else if (drift[indexCluster] > secondDrift) {
+				secondDrift = drift[indexCluster];
 			}
-			if (!cluster.previousMembers.containsAll(cluster.currentMembers)) {
-				return true;
+
+			double norm = 0;
+			for (int index = 0; index < this.dim; index++)
+				norm += (double) prototypes[indexCluster][index] * prototypes[indexCluster][index];
+			maxNorm = Math.max(maxNorm, norm);
+		}
+
+		Arrays.fill(nearestHalf, Double.POSITIVE_INFINITY);
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			for (int other = indexCluster + 1; other < k; other++) {
+				double distance = distance(prototypes[indexCluster], prototypes[other]) * (1 - 1e-9) / 2;
+				half[indexCluster][other] = distance;
+				half[other][indexCluster] = distance;
+				nearestHalf[indexCluster] = Math.min(nearestHalf[indexCluster], distance);
+				nearestHalf[other] = Math.min(nearestHalf[other], distance);
 			}
 		}
-		return false;
 	}
 
-	public boolean test()
+	private double distance(float[] a, float[] b)
+	{
+		double distance = 0;
+		for (int index = 0; index < this.dim; index++) {
+			double difference = (double) a[index] - b[index];
+			distance += difference * difference;
+		}
+		return Math.sqrt(distance);
+	}
+
+	// Whether the bounds show that a prototype with lower bound l and at half distance h from prototype
+	// of the row is further away than the own prototype, with more difference between the squared
+	// distances than the rounding error of the search.
+	private static boolean ruledOut(double u, double l, double h, double slack)
 	{
-		// iterate along all dimensions
-		// and count prefetched htmls
-		/// We do this here so we have to count only once for each cluster and each html
+		// (distance to the other prototype)^2 - u^2 is at least l^2 - u^2, and at least (2h - u)^2 - u^2 = 4h(h - u)
+		l = Math.max(l, 0);
+		return l * l - u * u > slack || 4 * h * (h - u) > slack;
+	}
 
-		int[][] prefetched = new int[this.k][this.dim];
-		int[] totalPrefetched = new int[this.k];
+	// Whether every other prototype is ruled out
+	private boolean settled(int row, int cluster, double slack)
+	{
+		double u = upper[row];
+		if (ruledOut(u, 0, nearestHalf[cluster], slack))
+			return true;
+		if (lowers == null)
+			return ruledOut(u, lower[row], nearestHalf[cluster], slack);
 
-		for	(int indexCluster=0; indexCluster < this.k; indexCluster++) {
-			for (int html = 0; html < this.dim; html++){
-				if (clusters[indexCluster].prototype[html]<prefetchThreshold) {
-					prefetched[indexCluster][html]=0;
-				} else {
-					prefetched[indexCluster][html]=1;
-				}
+		for (int other = 0; other < k; other++)
+			if (other != cluster && !ruledOut(u, lowers[row * k + other], half[cluster][other], slack))
+				return false;
+		return true;
+	}
+
+	// Largest float that is not above the value
+	private static float floor(double value)
+	{
+		float result = (float) value;
+		return result > value ? Math.nextDown(result) : result;
+	}
+
+	// Starts from the given prototypes, no datapoint is a member of a cluster yet
+	private void setPrototypes(float[][] prototypes)
+	{
+		for (int indexCluster = 0; indexCluster < k; indexCluster++)
+			clusters[indexCluster].prototype = prototypes[indexCluster];
+		Arrays.fill(assignment, -1);
+	}
+
+	// The prototype of a cluster is the mean of its members. A cluster without members keeps its prototype,
+	// or gets a random datapoint when it has none yet, instead of becoming NaN.
+	// For a delta the earlier clients of the cluster count as initialWeights[c] times the initial prototype.
+	private void updatePrototypes(double[][] sums, int[] counts)
+	{
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			if (counts[indexCluster] == 0 && (initialWeights == null || initialWeights[indexCluster] == 0)) {
+				if (clusters[indexCluster].prototype == null)
+					clusters[indexCluster].prototype = trainData.copyRow(random.nextInt(trainData.rows()));
+				continue;
+			}
+
+			float[] prototype = new float[this.dim];
+			if (initialWeights == null) {
+				for (int indexPrototype = 0; indexPrototype < this.dim; indexPrototype++)
+					prototype[indexPrototype] = (float) (sums[indexCluster][indexPrototype] / counts[indexCluster]);
+			}
+			else {
+				int weight = initialWeights[indexCluster];
+				float[] initial = initialPrototypes[indexCluster];
+				for (int indexPrototype = 0; indexPrototype < this.dim; indexPrototype++)
+					prototype[indexPrototype] = (float) ((sums[indexCluster][indexPrototype] + (double) weight * initial[indexPrototype]) / (counts[indexCluster] + weight));
 			}
-			totalPrefetched[indexCluster] = Arrays.stream(prefetched[indexCluster]).sum();
+			clusters[indexCluster].prototype = prototype;
 		}
+	}
+
+	private List<Chunk> createChunks()
+	{
+		int rows = trainData.rows();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (rows + MAX_CHUNKS - 1) / MAX_CHUNKS);
+
+		List<Chunk> chunks = new ArrayList<>();
+		for (int from = 0; from < rows; from += chunkSize)
+			chunks.add(new Chunk(from, Math.min(from + chunkSize, rows), k, this.dim));
+		return chunks;
+	}
 
-		float hitrateSum=0;
-		float accuracySum=0;
+	// Assigns the rows of one chunk to their closest cluster, and sums the rows per cluster
+	private void assign(Chunk chunk)
+	{
+		chunk.changed = 0;
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			Arrays.fill(chunk.sums[indexCluster], 0);
+			chunk.counts[indexCluster] = 0;
+		}
 
-		// iterate along all clients. Assumption: the same clients are in the same order as in the testData
-		for (int member=0; member < testData.size(); member++){
-			int memberCluster=0;
+		chunk.distances = 0;
+		float[] nearest = new float[2];
 
-			//  for each client find the cluster of which it is a member
-			for (int i=0; i < this.k; i++){
-				if (clusters[i].currentMembers.contains(member)){
-					memberCluster = i;
-					break;
+		for (int memberIndex = chunk.from; memberIndex < chunk.to; memberIndex++) {
+			int bestCluster;
+			if (bounds) {
+				bestCluster = nearestWithBounds(memberIndex, nearest, chunk);
+			}
+			else {
+				bestCluster = search.nearest(memberIndex);
+				chunk.distances += k;
+			}
+			if (assignment[memberIndex] != bestCluster) {
+				assignment[memberIndex] = bestCluster;
+				chunk.changed++;
+			}
+			trainData.addTo(memberIndex, chunk.sums[bestCluster]);
+			chunk.counts[bestCluster]++;
+		}
+	}
+
+	// k-means++: the first prototype is a random row, every next prototype is a row chosen with a probability
+	// proportional to its weight times its squared distance to the nearest prototype chosen so far.
+	// Without weights every row has weight 1.
+	private float[][] kMeansPlusPlus(DataMatrix data, double[] weights)
+	{
+		return kMeansPlusPlus(data, weights, k, random);
+	}
+
+	// The same for any k and generator, DistributedKMeans seeds with it on a sample of the shards
+	static float[][] kMeansPlusPlus(DataMatrix data, double[] weights, int k, Random random)
+	{
+		int rows = data.rows();
+		float[][] prototypes = new float[k][];
+		double[] distances = new double[rows];
+		Arrays.fill(distances, 1);
+
+		for (int indexCluster = 0; indexCluster < k; indexCluster++) {
+			double total = 0;
+			for (int row = 0; row < rows; row++)
+				total += (weights == null ? 1 : weights[row]) * distances[row];
+
+			// when every row already is a prototype any row will do
+			int chosen = random.nextInt(rows);
+			if (total > 0) {
+				double r = random.nextDouble() * total;
+				for (int row = 0; row < rows; row++) {
+					double p = (weights == null ? 1 : weights[row]) * distances[row];
+					if (p > 0)
+						chosen = row;
+					r -= p;
+					if (r < 0)
+						break;
 				}
 			}
 
-			// get the actual testData (the vector) of this client
-			float[] memberData = testData.get(member);
+			prototypes[indexCluster] = data.copyRow(chosen);
+			float norm = DataMatrix.squaredNorm(prototypes[indexCluster]);
+			for (int row = 0; row < rows; row++) {
+				double distance = data.squaredDistance(row, prototypes[indexCluster], norm);
+				distances[row] = indexCluster == 0 ? distance : Math.min(distances[row], distance);
+			}
+		}
+		return prototypes;
+	}
 
+	// k-means||: k-means++ needs a pass over the data for every prototype, k-means|| samples
+	// about OVERSAMPLING * k rows at once in each of PARALLEL_ROUNDS passes, with the same probabilities.
+	// Every sampled row gets the number of rows nearest to it as weight, and k-means++ on these weighted
+	// candidates gives the k prototypes. The passes are split in the same chunks as the training.
+	private float[][] kMeansParallel(ExecutorService executor, List<Chunk> chunks) throws InterruptedException, ExecutionException
+	{
+		int rows = trainData.rows();
+		List<float[]> candidates = new ArrayList<>();
+		List<Float> norms = new ArrayList<>();
+		double[] distances = new double[rows];
+		int[] nearest = new int[rows];
+		Arrays.fill(distances, Double.POSITIVE_INFINITY);
 
-			int hits=0;
-			int requests=0;
-			for (int i = 0; i < this.dim; i++){
-				if (memberData[i] == 1.0) {
-					// count number of requests
-					requests++;
-					if (memberData[i] == prefetched[memberCluster][i]) {
-						// count number of hits
-						hits++;
+		List<Integer> sampled = new ArrayList<>();
+		sampled.add(random.nextInt(rows));
+		for (int round = 0; ; round++) {
+			int from = candidates.size();
+			for (int row : sampled) {
+				candidates.add(trainData.copyRow(row));
+				norms.add(DataMatrix.squaredNorm(candidates.get(candidates.size() - 1)));
+			}
+
+			// distance of every row to its nearest candidate, only the new candidates have to be compared
+			forEachChunk(executor, chunks.size(), i -> {
+				for (int row = chunks.get(i).from; row < chunks.get(i).to; row++) {
+					for (int c = from; c < candidates.size(); c++) {
+						double distance = trainData.squaredDistance(row, candidates.get(c), norms.get(c));
+						if (distance < distances[row]) {
+							distances[row] = distance;
+							nearest[row] = c;
+						}
 					}
 				}
+			});
+
+			if (round == PARALLEL_ROUNDS)
+				break;
+
+			double cost = 0;
+			for (int row = 0; row < rows; row++)
+				cost += distances[row];
+			if (cost == 0)
+				break;
+
+			// every chunk samples with its own generator, seeded in a fixed order, so the sample
+			// does not depend on the number of threads
+			double factor = OVERSAMPLING * k / cost;
+			long[] seeds = new long[chunks.size()];
+			List<List<Integer>> chunkSamples = new ArrayList<>();
+			for (int i = 0; i < chunks.size(); i++) {
+				seeds[i] = random.nextLong();
+				chunkSamples.add(new ArrayList<Integer>());
 			}
+			forEachChunk(executor, chunks.size(), i -> {
+				Random chunkRandom = new Random(seeds[i]);
+				for (int row = chunks.get(i).from; row < chunks.get(i).to; row++)
+					if (chunkRandom.nextDouble() < factor * distances[row])
+						chunkSamples.get(i).add(row);
+			});
+
+			sampled.clear();
+			for (List<Integer> chunkSample : chunkSamples)
+				sampled.addAll(chunkSample);
+		}
+
+		double[] weights = new double[candidates.size()];
+		for (int row = 0; row < rows; row++)
+			weights[nearest[row]]++;
+
+		float[] values = new float[candidates.size() * this.dim];
+		for (int c = 0; c < candidates.size(); c++)
+			System.arraycopy(candidates.get(c), 0, values, c * this.dim, this.dim);
+		return kMeansPlusPlus(new FloatMatrix(values, candidates.size(), this.dim), weights);
+	}
+
+	// Runs the task for every chunk index, on the calling thread without executor
+	private static void forEachChunk(ExecutorService executor, int chunks, IntConsumer task) throws InterruptedException, ExecutionException
+	{
+		if (executor == null) {
+			for (int i = 0; i < chunks; i++)
+				task.accept(i);
+			return;
+		}
+
+		List<Callable<Object>> tasks = new ArrayList<>();
+		for (int i = 0; i < chunks; i++) {
+			int chunk = i;
+			tasks.add(Executors.callable(() -> task.accept(chunk)));
+		}
+		for (Future<Object> future : executor.invokeAll(tasks))
+			future.get();
+	}
 
-			if (requests != 0)
-			{
-				hitrateSum += (float) hits / requests;
+	// Same result as search.nearest(row), but uses and updates the bounds of the row
+	private int nearestWithBounds(int row, float[] nearest, Chunk chunk)
+	{
+		int cluster = assignment[row];
+
+		// the largest possible rounding error of a float squared distance (with a wide margin)
+		double slack = 2 * this.dim * 0x1p-20 * (rowNorms[row] + maxNorm);
+
+		if (cluster >= 0) {
+			upper[row] += drift[cluster];
+			if (lowers == null) {
+				lower[row] -= cluster == maxDriftCluster ? secondDrift : maxDrift;
+			}
+			else {
+				for (int other = 0; other < k; other++)
+					lowers[row * k + other] = floor(lowers[row * k + other] - drift[other]);
 			}
-			accuracySum += (float) hits / totalPrefetched[memberCluster];
 
+			if (settled(row, cluster, slack))
+				return cluster;
+
+			// the upper bound may be far too high, try again with the actual distance
+			upper[row] = Math.sqrt(search.distance(row, cluster) + slack / 2);
+			chunk.distances++;
+			if (settled(row, cluster, slack))
+				return cluster;
+		}
+
+		if (lowers == null) {
+			chunk.distances += k;
+			int best = search.nearest(row, nearest);
+			upper[row] = Math.sqrt(nearest[0] + slack / 2);
+			lower[row] = Math.sqrt(Math.max(nearest[1] - slack / 2, 0));
+			return best;
+		}
+
+		// only the prototypes that are not ruled out by the bounds, these get exact lower bounds
+		int best = -1;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		float secondDistance = Float.POSITIVE_INFINITY;
+		for (int other = 0; other < k; other++) {
+			if (cluster >= 0 && other != cluster && ruledOut(upper[row], lowers[row * k + other], half[cluster][other], slack))
+				continue;
+
+			float distance;
+			if (other == cluster) {
+				distance = (float) (upper[row] * upper[row] - slack / 2);
+			}
+			else {
+				distance = search.distance(row, other);
+				chunk.distances++;
+			}
+			lowers[row * k + other] = floor(Math.sqrt(Math.max(distance - slack / 2, 0)));
+			if (distance < bestDistance) {
+				secondDistance = bestDistance;
+				best = other;
+				bestDistance = distance;
+			}
+			else if (distance < secondDistance) {
+				secondDistance = distance;
+			}
+		}
+
+		// the search could pick another prototype when the nearest two are within the rounding error
+		if (secondDistance - bestDistance <= 2 * slack) {
+			best = search.nearest(row, nearest);
+			bestDistance = nearest[0];
+			chunk.distances += k;
+		}
+		upper[row] = Math.sqrt(bestDistance + slack / 2);
+		return best;
+	}
+
+	public boolean test()
+	{
+		// the prefetched htmls of every cluster and the requests of every client as bits, see Evaluation
+		Metrics.Phase testing = phase(Metrics.EVALUATION, 0);
+		try {
+			evaluation = Evaluation.of(prototypes(), prefetchThreshold, assignment, testData);
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while testing:" + e);
+			return false;
 		}
 
 		// set the global variables hitrate and accuracy to their appropriate value
-		this.hitrate =  hitrateSum/testData.size();
-		this.accuracy = accuracySum/testData.size();
+		this.hitrate = evaluation.hitrate();
+		this.accuracy = evaluation.accuracy();
 
+		testing.end();
 		return true;
 	}
 
+	public ThresholdCurve thresholdCurve()
+	{
+		Metrics.Phase evaluation = phase(Metrics.EVALUATION, 0);
+		ThresholdCurve curve = ThresholdCurve.of(prototypes(), assignment, testData);
+		evaluation.end();
+		return curve;
+	}
+
+	public float[][] prototypes()
+	{
+		float[][] prototypes = new float[k][];
+		for (int i = 0; i < k; i++)
+			prototypes[i] = clusters[i].prototype != null ? clusters[i].prototype : new float[dim];
+		return prototypes;
+	}
+
+	public int[] assignment()
+	{
+		return assignment;
+	}
+
+	public void save(String fileName) throws IOException
+	{
+		ModelFile.write(fileName, ModelFile.KMEANS, prefetchThreshold, new double[] {k, seeding.ordinal()}, prototypes(), assignment);
+	}
+
+	// K-means with the clusters of a saved model, see ModelFile.load
+	static KMeans restore(ModelFile.Model model, DataMatrix trainData, DataMatrix testData)
+	{
+		KMeans kmeans = new KMeans(model.clusters(), trainData, testData, trainData.dim());
+		kmeans.setSeeding(Seeding.values()[(int) model.parameter(1)]);
+		kmeans.setPrefetchThreshold(model.prefetchThreshold());
+		for (int i = 0; i < model.clusters(); i++)
+			kmeans.clusters[i].prototype = model.prototype(i);
+		kmeans.assignment = model.assignment();
+		return kmeans;
+	}
+
 
 	// The following members are called by RunClustering, in order to present information to the user
 	public void showTest()
 	{
+		System.out.println("Seeding=" + (initialPrototypes != null || initialAssignment != null ? "warm start" : seeding) + ", iterations=" + iterations + ", distances calculated=" + distances + " of " + (long) iterations * trainData.rows() * k);
+		if (restarts > 1)
+			System.out.println("Restarts=" + restarts + ", kept restart " + bestRestart + " by " + selection + ", cancelled=" + cancelled + ", distances calculated by all restarts=" + restartDistances);
+		System.out.println("Sum of squares=" + sumOfSquares);
 		System.out.println("Prefetch threshold=" + this.prefetchThreshold);
 		System.out.println("Hitrate: " + this.hitrate);
 		System.out.println("Accuracy: " + this.accuracy);
@@ -217,8 +976,9 @@ public class KMeans extends ClusteringAlgorithm
 	
 	public void showMembers()
 	{
+		List<List<Integer>> members = members(assignment, k);
 		for (int i = 0; i < k; i++)
-			System.out.println("\nMembers cluster["+i+"] :" + clusters[i].currentMembers);
+			System.out.println("\nMembers cluster["+i+"] :" + members.get(i));
 	}
 	
 	public void showPrototypes()
@@ -238,4 +998,85 @@ public class KMeans extends ClusteringAlgorithm
 	{
 		this.prefetchThreshold = prefetchThreshold;
 	}
+
+	// Number of threads used for training, the trained clusters are the same for any number of threads
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	// Skip the datapoints that cannot change cluster (see bounds), this gives exactly the same clusters
+	public void setBounds(boolean bounds)
+	{
+		this.bounds = bounds;
+	}
+
+	public void setSeeding(Seeding seeding)
+	{
+		this.seeding = seeding;
+	}
+
+	// Seed for the initial prototypes, so a training run can be reproduced
+	public void setSeed(long seed)
+	{
+		random = new Random(seed);
+	}
+
+	// Starts train() from these prototypes instead of seeding, for instance the prototypes of yesterday's model
+	public void setInitialPrototypes(float[][] prototypes)
+	{
+		setInitialPrototypes(prototypes, null);
+	}
+
+	// Starts train() from these prototypes, where the training data is a delta with only the new and changed
+	// clients, and prototype c is the mean of weights[c] earlier clients (the size of the cluster in the earlier
+	// model). Those clients keep their cluster, and every prototype becomes the mean of them and its members
+	// in the delta, so the training only goes through the delta. A changed client is counted both in the
+	// weight of its old cluster and in the delta, which is a small error as long as the delta is small.
+	public void setInitialPrototypes(float[][] prototypes, int[] weights)
+	{
+		if (prototypes.length != k || (weights != null && weights.length != k))
+			throw new IllegalArgumentException(prototypes.length + " initial prototypes for " + k + " clusters");
+		for (float[] prototype : prototypes)
+			if (prototype.length != this.dim)
+				throw new IllegalArgumentException("initial prototype of size " + prototype.length + ", but the data has vectors of size " + this.dim);
+		initialPrototypes = prototypes;
+		initialWeights = weights;
+		initialAssignment = null;
+	}
+
+	// Starts train() from the partition of an earlier train() on (mostly) the same clients: row r starts in
+	// cluster assignment[r], rows that it has no cluster for (-1 or past its end, new clients) in the nearest one
+	public void setInitialAssignment(int[] assignment)
+	{
+		initialAssignment = assignment;
+		initialPrototypes = null;
+		initialWeights = null;
+	}
+
+	// Train that many runs with different seeds and keep the best, see Selection
+	public void setRestarts(int restarts)
+	{
+		this.restarts = Math.max(1, restarts);
+	}
+
+	public void setSelection(Selection selection)
+	{
+		this.selection = selection;
+	}
+
+	public void setCancelMargin(double cancelMargin)
+	{
+		this.cancelMargin = cancelMargin;
+	}
+
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	public double getSumOfSquares()
+	{
+		return sumOfSquares;
+	}
 }
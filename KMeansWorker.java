@@ -0,0 +1,265 @@
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class KMeansWorker
+{
+	// A worker of DistributedKMeans. It holds one shard of the training data, a range of rows of a text or
+	// binary data file, and answers the requests of a coordinator (see DistributedKMeans for the messages),
+	// one coordinator at a time, until a coordinator shuts it down:
+	//
+	//   java KMeansWorker <data file> <shard> <shards> [port] [threads] [bind address]
+	//
+	// Shard s of n has the rows rows*s/n .. rows*(s+1)/n-1 of the file, only these are read (or mapped), so
+	// the shards together can be much larger than the memory of one machine. Without a port (or with 0) the
+	// worker listens on any free port. The first line it prints is "listening on port <port>".
+	// The protocol has no authentication, so without a bind address the worker only accepts connections from
+	// this machine (the loopback address). A worker for a coordinator on another machine has to be given the
+	// address of the interface to listen on, or 0.0.0.0 for all of them.
+	//
+	// Every iteration the rows of the shard are assigned to their nearest prototype in chunks, on 'threads'
+	// threads, and the sums of the chunks are added up in chunk order, like the chunks of KMeans.
+
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNKS = 64;
+
+	private final DataMatrix data;
+
+	// index of the first row of the shard in the whole data file
+	private final int first;
+
+	private final int threads;
+
+	// sum of the squared norms of the rows, for the sum of squares of the coordinator
+	private final double totalNorm;
+
+	// Cluster of every row of the shard after the last iteration, -1 before the first
+	private final int[] assignment;
+
+	private final NearestPrototype search;
+
+	// Sums and member counts per cluster of the rows from..to (exclusive) of one chunk
+	private static class Chunk
+	{
+		final int from;
+		final int to;
+
+		double[][] sums;
+		int[] counts;
+		int changed;
+
+		Chunk(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+	}
+
+	private final List<Chunk> chunks;
+
+	public KMeansWorker(DataMatrix data, int first, int threads)
+	{
+		this.data = data;
+		this.first = first;
+		this.threads = Math.max(1, threads);
+
+		double norm = 0;
+		for (int row = 0; row < data.rows(); row++)
+			norm += data.squaredNorm(row);
+		totalNorm = norm;
+		assignment = new int[data.rows()];
+		search = new NearestPrototype(data);
+		search.orderByVariance();
+
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (data.rows() + MAX_CHUNKS - 1) / MAX_CHUNKS);
+		chunks = new ArrayList<>();
+		for (int from = 0; from < data.rows(); from += chunkSize)
+			chunks.add(new Chunk(from, Math.min(from + chunkSize, data.rows())));
+	}
+
+	public static void main(String[] args)
+	{
+		if (args.length < 3) {
+			System.out.println("usage: java KMeansWorker <data file> <shard> <shards> [port] [threads] [bind address]");
+			System.exit(1);
+		}
+
+		try {
+			String fileName = args[0];
+			int shard = Integer.parseInt(args[1]);
+			int shards = Integer.parseInt(args[2]);
+			int port = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+			int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+			InetAddress address = args.length > 5 ? InetAddress.getByName(args[5]) : InetAddress.getLoopbackAddress();
+			if (shards < 1 || shard < 0 || shard >= shards)
+				throw new IllegalArgumentException("shard " + shard + " of " + shards);
+
+			// the bounds of the shard in long, rows * shard does not fit in an int for large files
+			int rows = DatasetFile.rows(fileName);
+			int first = (int) ((long) rows * shard / shards);
+			int last = (int) ((long) rows * (shard + 1) / shards);
+			DataMatrix data = DatasetFile.load(fileName, first, last - first);
+
+			KMeansWorker worker = new KMeansWorker(data, first, threads);
+			try (ServerSocket server = new ServerSocket(port, 0, address)) {
+				System.out.println("listening on port " + server.getLocalPort());
+				System.out.println("Shard " + shard + " of " + shards + ": rows " + first + ".." + (last - 1) + " of " + fileName + ", on " + server.getInetAddress().getHostAddress());
+				System.out.flush();
+				worker.serve(server);
+			}
+		}
+		catch (IOException | IllegalArgumentException e) {
+			System.out.println("error occured while running the worker:" + e);
+			System.exit(1);
+		}
+	}
+
+	// Answers the coordinators that connect to the server, one at a time, until one of them sends SHUTDOWN
+	public void serve(ServerSocket server) throws IOException
+	{
+		while (true) {
+			try (Socket socket = server.accept()) {
+				socket.setTcpNoDelay(true);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+				if (!session(in, out))
+					return;
+			}
+			catch (IOException e) {
+				// the coordinator went away, the next one starts again
+				System.out.println("error occured while serving a coordinator:" + e);
+			}
+		}
+	}
+
+	// Answers the requests of one coordinator, returns false when it sends SHUTDOWN
+	private boolean session(DataInputStream in, DataOutputStream out) throws IOException
+	{
+		ExecutorService executor = threads > 1 && chunks.size() > 1 ? new ForkJoinPool(Math.min(threads, chunks.size())) : null;
+		try {
+			while (true) {
+				int request = in.read();
+				switch (request) {
+					case -1:
+					case DistributedKMeans.CLOSE:
+						return true;
+					case DistributedKMeans.SHUTDOWN:
+						return false;
+					case DistributedKMeans.INFO:
+						// a new training begins
+						Arrays.fill(assignment, -1);
+						out.writeInt(DistributedKMeans.VERSION);
+						out.writeInt(first);
+						out.writeInt(data.rows());
+						out.writeInt(data.dim());
+						out.writeDouble(totalNorm);
+						break;
+					case DistributedKMeans.SAMPLE:
+						sample(in.readInt(), in.readLong(), out);
+						break;
+					case DistributedKMeans.ITERATE:
+						iterate(DistributedKMeans.readPrototypes(in), executor, out);
+						break;
+					case DistributedKMeans.ASSIGNMENT:
+						out.writeInt(assignment.length);
+						for (int cluster : assignment)
+							out.writeInt(cluster);
+						break;
+					default:
+						throw new IOException("unknown request " + request);
+				}
+				out.flush();
+			}
+		}
+		catch (InterruptedException | ExecutionException e) {
+			throw new IOException(e);
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+	}
+
+	// A uniform sample of count rows without replacement, in row order (selection sampling)
+	private void sample(int count, long seed, DataOutputStream out) throws IOException
+	{
+		Random random = new Random(seed);
+		count = Math.min(count, data.rows());
+		out.writeInt(count);
+		out.writeInt(data.dim());
+		int needed = count;
+		for (int row = 0; needed > 0; row++) {
+			if (random.nextDouble() * (data.rows() - row) >= needed)
+				continue;
+			for (float value : data.copyRow(row))
+				out.writeFloat(value);
+			needed--;
+		}
+	}
+
+	// Assigns every row to its nearest prototype, replies the number of rows that changed cluster and the
+	// member count and sum of every cluster
+	private void iterate(float[][] prototypes, ExecutorService executor, DataOutputStream out) throws IOException, InterruptedException, ExecutionException
+	{
+		int k = prototypes.length;
+		for (float[] prototype : prototypes)
+			if (data.rows() > 0 && prototype.length != data.dim())
+				throw new IOException("prototypes of size " + prototype.length + " for vectors of size " + data.dim());
+		search.setPrototypes(prototypes);
+
+		if (executor == null) {
+			for (Chunk chunk : chunks)
+				assign(chunk, k);
+		}
+		else {
+			List<Callable<Object>> tasks = new ArrayList<>();
+			for (Chunk chunk : chunks)
+				tasks.add(Executors.callable(() -> assign(chunk, k)));
+			for (Future<Object> future : executor.invokeAll(tasks))
+				future.get();
+		}
+
+		// merge the chunks, always in the same order
+		double[][] sums = new double[k][data.dim()];
+		int[] counts = new int[k];
+		long changed = 0;
+		for (Chunk chunk : chunks) {
+			changed += chunk.changed;
+			for (int c = 0; c < k; c++) {
+				Kernels.get().add(chunk.sums[c], sums[c]);
+				counts[c] += chunk.counts[c];
+			}
+		}
+
+		out.writeLong(changed);
+		for (int c = 0; c < k; c++) {
+			out.writeInt(counts[c]);
+			if (counts[c] > 0)
+				DistributedKMeans.writeSum(out, sums[c]);
+		}
+	}
+
+	private void assign(Chunk chunk, int k)
+	{
+		if (chunk.sums == null || chunk.sums.length != k) {
+			chunk.sums = new double[k][data.dim()];
+			chunk.counts = new int[k];
+		}
+		for (int c = 0; c < k; c++) {
+			Arrays.fill(chunk.sums[c], 0);
+			chunk.counts[c] = 0;
+		}
+
+		chunk.changed = 0;
+		for (int row = chunk.from; row < chunk.to; row++) {
+			int nearest = search.nearest(row);
+			if (assignment[row] != nearest) {
+				assignment[row] = nearest;
+				chunk.changed++;
+			}
+			data.addTo(row, chunk.sums[nearest]);
+			chunk.counts[nearest]++;
+		}
+	}
+}
@@ -0,0 +1,165 @@
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+public class Kernels
+{
+	// The innermost loops of the training: squared distances, moving a prototype towards a vector and adding
+	// vectors to the sums of a cluster. This class computes them one element at a time. On a JVM that has
+	// the jdk.incubator.vector module (java --add-modules jdk.incubator.vector ..., Java 16 or later) the
+	// subclass VectorKernels (in vector/, compiled by the maven profile 'vector') computes them with SIMD
+	// instructions instead, a whole vector register of elements at a time. It is picked automatically when
+	// it is available, unless the system property kernels=scalar is set.
+	//
+	// Both give exactly the same elements in moveTowards and add, as every element is computed with the
+	// same operations. The sums over the elements (squaredDistance, squaredNorm and the norm returned by
+	// moveTowards) add up the same terms in a different order, which changes the rounding: the difference
+	// is at most about n * 2^-24 times the sum of the n terms (all of which are positive), so a relative
+	// difference of at most 1e-4 for a 1000 dimensional vector and in practice far less. The scalar kernels
+	// give exactly the results the loops gave before they were kernels.
+	// A training with 0/1 data often has prototypes at (nearly) the same distance of a vector, and such a
+	// tie can go the other way with the vector kernels, after which the training continues differently.
+	// To reproduce a model exactly, train it with the same kernels.
+
+	private static final Kernels KERNELS = select();
+
+	// The kernels to use
+	public static Kernels get()
+	{
+		return KERNELS;
+	}
+
+	// The element-at-a-time kernels, also when the vector kernels are available
+	public static Kernels scalar()
+	{
+		return SCALAR;
+	}
+
+	private static final Kernels SCALAR = new Kernels();
+
+	private static Kernels select()
+	{
+		if (!"scalar".equals(System.getProperty("kernels")) && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+			try {
+				return (Kernels) Class.forName("VectorKernels").getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError e) {
+				// not compiled in, or compiled for another version of the module
+			}
+		}
+		return new Kernels();
+	}
+
+	public String toString()
+	{
+		return "scalar";
+	}
+
+	// Squared distance over the dimensions from .. to-1 between the row of data that starts at offset and
+	// a prototype, added to distance
+	public float squaredDistance(FloatBuffer data, int offset, float[] prototype, int from, int to, float distance)
+	{
+		for (int i = from; i < to; i++) {
+			float difference = data.get(offset + i) - prototype[i];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	// The same for the dimensions order[from] .. order[to-1] of the row that starts at offset
+	public float squaredDistance(FloatBuffer data, int offset, float[] prototype, int[] order, int from, int to, float distance)
+	{
+		for (int i = from; i < to; i++) {
+			int index = order[i];
+			float difference = data.get(offset + index) - prototype[index];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredNorm(float[] vector)
+	{
+		float norm = 0;
+		for (float value : vector)
+			norm += value * value;
+		return norm;
+	}
+
+	// prototype = (1-rate)*prototype + rate*row for the row that starts at offset, returns the new squared norm
+	public float moveTowards(FloatBuffer data, int offset, float[] prototype, double rate)
+	{
+		float norm = 0;
+		for (int i = 0; i < prototype.length; i++) {
+			float value = (float) (1-rate) * prototype[i] + (float) rate * data.get(offset + i);
+			// repeatedly moving away from a 0 ends in subnormal floats, which are very slow to compute with
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	// The same for a 0/1 row packed in the words first .. of bits (see BinaryMatrix)
+	public float moveTowards(LongBuffer bits, int first, float[] prototype, double rate)
+	{
+		float norm = 0;
+		for (int i = 0; i < prototype.length; i++) {
+			float bit = (bits.get(first + (i >>> 6)) >>> i) & 1L;
+			float value = (float) (1-rate) * prototype[i] + (float) rate * bit;
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	// sum += the row that starts at offset
+	public void add(FloatBuffer data, int offset, double[] sum)
+	{
+		for (int i = 0; i < sum.length; i++)
+			sum[i] += data.get(offset + i);
+	}
+
+	// The kernels for a row of a mapped data file (see DatasetFile), which is read as floats in the byte
+	// order of data. The offset of the row is in floats, like for the FloatBuffer.
+	public float squaredDistance(ByteBuffer data, int offset, float[] prototype, int from, int to, float distance)
+	{
+		for (int i = from; i < to; i++) {
+			float difference = data.getFloat((offset + i) * 4) - prototype[i];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredDistance(ByteBuffer data, int offset, float[] prototype, int[] order, int from, int to, float distance)
+	{
+		for (int i = from; i < to; i++) {
+			int index = order[i];
+			float difference = data.getFloat((offset + index) * 4) - prototype[index];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float moveTowards(ByteBuffer data, int offset, float[] prototype, double rate)
+	{
+		float norm = 0;
+		for (int i = 0; i < prototype.length; i++) {
+			float value = (float) (1-rate) * prototype[i] + (float) rate * data.getFloat((offset + i) * 4);
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	public void add(ByteBuffer data, int offset, double[] sum)
+	{
+		for (int i = 0; i < sum.length; i++)
+			sum[i] += data.getFloat((offset + i) * 4);
+	}
+
+	// sum += values
+	public void add(double[] values, double[] sum)
+	{
+		for (int i = 0; i < sum.length; i++)
+			sum[i] += values[i];
+	}
+}
@@ -1,5 +1,6 @@
-import javax.swing.plaf.basic.BasicInternalFrameTitlePane;
+import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class Kohonen extends ClusteringAlgorithm
 {
@@ -17,13 +18,15 @@ public class Kohonen extends ClusteringAlgorithm
 
 	private double initialLearningRate; 
 	
-	// This class represents the clusters, it contains the prototype (the mean of all it's members)
-	// and a memberlist with the ID's (Integer objects) of the datapoints that are member of that cluster.  
+	// This class represents the clusters, it contains the prototype (the mean of all it's members).
 	private Cluster[][] clusters;
 
-	// Vector which contains the train/test data
-	private Vector<float[]> trainData;
-	private Vector<float[]> testData;
+	// Cluster of every datapoint: assignment[client index] = i*n + i2 for cluster[i][i2]
+	private int[] assignment;
+
+	// Matrices which contain the train/test data, one vector per row
+	private DataMatrix trainData;
+	private DataMatrix testData;
 	
 	// Results of test()
 	private double hitrate;
@@ -32,27 +35,132 @@ public class Kohonen extends ClusteringAlgorithm
 	static class Cluster
 	{
 			float[] prototype;
+	}
 
-			Set<Integer> currentMembers;
-
-			public Cluster()
-			{
-				currentMembers = new HashSet<Integer>();
+	// How the learning rate and the radius of the neighbourhood decrease over the epochs: in epoch t of T they
+	// are their initial value times
+	//   LINEAR        1 - t/T
+	//   EXPONENTIAL   DECAY_END^(t/T)
+	//   INVERSE_TIME  1 / (1 + (1/DECAY_END - 1) * t/T)
+	// The exponential and inverse time schedules end at DECAY_END instead of 0. They lower the learning rate and
+	// shrink the neighbourhood much sooner than the linear one (inverse time the soonest) and then fine tune the
+	// map for the remaining epochs, so the map settles in fewer epochs and early stopping can end the training sooner.
+	public enum Schedule
+	{
+		LINEAR, EXPONENTIAL, INVERSE_TIME;
+
+		// Factor of the initial learning rate and radius in an epoch
+		public double factor(int epoch, int epochs)
+		{
+			double t = (double) epoch / epochs;
+			switch (this) {
+				case EXPONENTIAL:
+					return Math.pow(DECAY_END, t);
+				case INVERSE_TIME:
+					return 1 / (1 + (1 / DECAY_END - 1) * t);
+				default:
+					return 1 - t;
 			}
+		}
+	}
+
+	private static final double DECAY_END = 0.01;
+
+	// Fine tuning a map that is already trained, for instance yesterday's map on today's (or only the new)
+	// clients: the learning rate starts at FINE_TUNE_RATE times the initial learning rate and decreases with the
+	// schedule, and the radius is 0 from the start, as it is at the end of a training: only the BMU moves.
+	// So the map is adjusted to the data without being reorganized. (Moving the neighbours as well blurs the
+	// nodes of a trained map, in batch training every node becomes the mean of 3x3 nodes.)
+	private boolean fineTuning;
+	private static final double FINE_TUNE_RATE = 0.1;
+
+	// With weights the training data is a delta: only the new and changed clients, while node c also stands for
+	// initialWeights[c] earlier clients at its initial prototype, which keep their BMU (see setInitialPrototypes)
+	private float[][] initialPrototypes;
+	private int[] initialWeights;
+
+	private Schedule schedule;
+
+	// With a patience of p > 0 the training stops early after p epochs in a row without progress (see Convergence),
+	// with 0 it always trains all epochs
+	private int patience;
+	private double tolerance;
+
+	// Epochs the last training ran, and the quantization error and largest displacement of a node in its last epoch
+	// (only measured with early stopping)
+	private int epochsTrained;
+	private double epochError;
+	private double maxDisplacement;
+
+	// In batch mode every epoch first finds the Best Matching Unit of all vectors with the same map, and
+	// then moves every node towards the mean of the vectors whose BMU is in its neighbourhood, with the
+	// same learning rate schedule and radius as the online training. The BMUs are found in parallel.
+	private boolean batch;
+
+	// Number of threads used by the batch training
+	private int threads;
+
+	// Batch training splits the training data in chunks of at least MIN_CHUNK_SIZE rows and at most
+	// MAX_CHUNKS chunks. The chunks are handled in groups of 'threads' chunks, every chunk of a group
+	// sums its vectors per BMU in its own buffer, and the buffers are added in the order of the chunks.
+	// So the trained map does not depend on the number of threads.
+	private static final int MIN_CHUNK_SIZE = 1024;
+	private static final int MAX_CHUNKS = 64;
+
+	static class Chunk
+	{
+		int from;
+		int to;
+
+		// how many vectors of the chunk got another BMU in the last epoch
+		int changed;
+
+		// sum of the squared distances of the vectors to their BMU in the last epoch, when it is measured
+		double error;
+
+		public Chunk(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
 	}
 	
-	public Kohonen(int n, int epochs, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+	public Kohonen(int n, int epochs, DataMatrix trainData, DataMatrix testData, int dim)
+	{
+		this(n, epochs, trainData, testData, dim, null);
+	}
+
+	// A map with the nodes and the assignment of a stored model, or a random map when the model is null
+	private Kohonen(int n, int epochs, DataMatrix trainData, DataMatrix testData, int dim, ModelFile.Model model)
 	{
 		this.n = n;
 		this.epochs = epochs;
 		prefetchThreshold = 0.5;
 		initialLearningRate = 0.8;
+		schedule = Schedule.LINEAR;
+		tolerance = 1e-3;
+		threads = 1;
 		this.trainData = trainData;
 		this.testData = testData; 
 		this.dim = dim;       
 		
-		Random rnd = new Random();
+		if (model == null) {
+			initializeMap(new Random());
+			assignment = new int[trainData.rows()];
+		}
+		else {
+			clusters = new Cluster[n][n];
+			for (int i = 0; i < n; i++)
+				for (int i2 = 0; i2 < n; i2++) {
+					clusters[i][i2] = new Cluster();
+					clusters[i][i2].prototype = model.prototype(i*n + i2);
+				}
+			assignment = model.assignment();
+		}
+	}
 
+	private void initializeMap(Random rnd)
+	{
 		// Here n*n new cluster are initialized
 		clusters = new Cluster[n][n];
 		for (int i = 0; i < n; i++)  {
@@ -69,48 +177,60 @@ public class Kohonen extends ClusteringAlgorithm
 	
 	public boolean train()
 	{
+		// the earlier clients of a delta can only be added to the sums of the batch training
+		if (batch || initialWeights != null)
+			return trainBatch();
 
 		double learningRate = 0;
-		double squareSize = 0;
 		int radius = 0;
+		epochsTrained = 0;
 		// Step 1: initialize map with random vectors (A good place to do this, is in the initialisation of the clusters)
 
-		// Repeat 'epochs' times:
-		for(int currentEpoch = 0; currentEpoch < this.epochs; currentEpoch++){
+		// The nodes of the map are searched as one list, node [i][i2] has index i*n + i2
+		float[][] prototypes = new float[this.n*this.n][];
+		for (int i = 0; i < this.n; i++)
+			for (int i2 = 0; i2 < this.n; i2++)
+				prototypes[i*this.n + i2] = clusters[i][i2].prototype;
 
-			System.out.print("Completed " + currentEpoch + " training epochs.\r");
+		NearestPrototype search = new NearestPrototype(this.trainData);
+		search.orderByVariance();
+		search.setPrototypes(prototypes);
 
-			// Step 2: Calculate the squareSize and the learningRate, these decrease lineary with the number of epochs.
-			learningRate = this.initialLearningRate*(1 - ( (double) currentEpoch/this.epochs) );
-			squareSize = ( (double) this.n/2 )*(1 - ( (double) currentEpoch/this.epochs) );
-			radius = (int) squareSize;
-
-			// Step 3: Every input vector is presented to the map (always in the same order)
-			// For each vector its Best Matching Unit is found, and :
-			for (float[] vector : this.trainData) {
+		// the assignment holds the BMU of every vector in the last epoch, to count the vectors that changed BMU
+		Metrics.Phase training = phase(Metrics.TRAINING, 0);
+		Arrays.fill(assignment, -1);
 
-				float bestDistance = this.dim;
-				int bestClusterDim1 = 0;
-				int bestClusterDim2 = 0;
+		// the quantization error of every epoch is measured for early stopping and for the metrics
+		Convergence convergence = patience > 0 ? new Convergence(prototypes) : null;
+		boolean measure = convergence != null || metrics.enabled();
 
+		// Repeat 'epochs' times:
+		for(int currentEpoch = 0; currentEpoch < this.epochs; currentEpoch++){
 
-				for (int i = 0; i < this.n; i++) {
-					for (int i2 = 0; i2 < this.n; i2++) {
+			if (verbose)
+				System.out.print("Completed " + currentEpoch + " training epochs.\r");
+			Metrics.Phase epoch = phase(Metrics.EPOCH, currentEpoch);
+			int changed = 0;
+			double error = 0;
 
-						float currentDistance = 0;
-						float[] prototype = clusters[i][i2].prototype;
+			// Step 2: Calculate the radius and the learningRate, these decrease with the number of epochs (see Schedule).
+			double factor = schedule.factor(currentEpoch, this.epochs);
+			learningRate = learningRate(factor);
+			radius = radius(factor);
 
-						for (int index = 0; index < this.dim; index++) {
-							currentDistance += Math.pow(vector[index] - prototype[index], 2);
-						}
-						currentDistance = (float) Math.sqrt(currentDistance);
-						if (currentDistance < bestDistance) {
-							bestClusterDim1 = i;
-							bestClusterDim2 = i2;
-							bestDistance = currentDistance;
-						}
-					}
-				}
+			// Step 3: Every input vector is presented to the map (always in the same order)
+			// For each vector its Best Matching Unit is found, and :
+			for (int vector = 0; vector < this.trainData.rows(); vector++) {
+
+				int best = search.nearest(vector);
+				if (assignment[vector] != best)
+					changed++;
+				assignment[vector] = best;
+				// the distance before the BMU moves, so with the map as this vector finds it
+				if (measure)
+					error += search.distance(vector, best);
+				int bestClusterDim1 = best / this.n;
+				int bestClusterDim2 = best % this.n;
 
 				// Step 4: All nodes within the neighbourhood of the BMU are changed, you don't have to use distance relative learning.
 
@@ -124,125 +244,375 @@ public class Kohonen extends ClusteringAlgorithm
 				// Step 4: All nodes within the neighbourhood of the BMU are changed, you don't have to use distance relative learning.
 				for (int i = xBegin; i <= xEnd; i++) {
 					for (int i2 = yBegin; i2 <= yEnd; i2++) {
-						float[] prototype = clusters[i][i2].prototype;
-
-						for (int index = 0; index < this.dim; index++){
-							prototype[index] = (float) (1-learningRate) * prototype[index] + (float) learningRate * vector[index];
-						}
+						search.setNorm(i*this.n + i2, this.trainData.moveTowards(vector, clusters[i][i2].prototype, learningRate));
 					}
 				}
 			}
-		}
-		System.out.println("Completed " + this.epochs + " training epochs.\r");
-
-		/// Assign member to closest cluster
-		for (int member = 0; member < trainData.size(); member++){
-
-			float[] memberData = this.trainData.get(member);
+			epochsTrained++;
+			epochError = error / trainData.rows();
+			epoch.end(changed, (long) trainData.rows() * prototypes.length, measure ? epochError : Double.NaN);
 
-			float bestDistance = this.dim;
-			int bestClusterDim1 = 0;
-			int bestClusterDim2 = 0;
+			if (convergence != null && convergence.converged(epochError, prototypes))
+				break;
+		}
+		showEpochs();
 
-			for (int i = 0; i < this.n; i++) {
-				for (int i2 = 0; i2 < this.n; i2++) {
+		assignFinal(search, prototypes, training);
 
-					float currentDistance = 0;
-					float[] prototype = clusters[i][i2].prototype;
+		// Since training kohonen maps can take quite a while, presenting the user with a progress bar would be nice
+		return true;
+	}
+	
+	private boolean trainBatch()
+	{
+		int nodes = this.n*this.n;
+		float[][] prototypes = new float[nodes][];
+		for (int i = 0; i < this.n; i++)
+			for (int i2 = 0; i2 < this.n; i2++)
+				prototypes[i*this.n + i2] = clusters[i][i2].prototype;
+
+		NearestPrototype search = new NearestPrototype(this.trainData);
+		search.orderByVariance();
+		search.setPrototypes(prototypes);
+
+		List<Chunk> chunks = createChunks();
+		double[][] sums = new double[nodes][this.dim];
+		int[] counts = new int[nodes];
+
+		// a buffer for every chunk of a group
+		int buffers = Math.min(threads, chunks.size());
+		double[][][] bufferSums = new double[buffers][nodes][this.dim];
+		int[][] bufferCounts = new int[buffers][nodes];
+		ExecutorService executor = threads > 1 ? new ForkJoinPool(threads) : null;
+
+		// the assignment holds the BMU of every vector in the last epoch, to count the vectors that changed BMU
+		Metrics.Phase training = phase(Metrics.TRAINING, 0);
+		Arrays.fill(assignment, -1);
+		epochsTrained = 0;
+
+		// the quantization error of every epoch is measured for early stopping and for the metrics
+		Convergence convergence = patience > 0 ? new Convergence(prototypes) : null;
+		boolean measure = convergence != null || metrics.enabled();
+
+		try {
+			for (int currentEpoch = 0; currentEpoch < this.epochs; currentEpoch++) {
+				if (verbose)
+					System.out.print("Completed " + currentEpoch + " training epochs.\r");
+				Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, currentEpoch);
+
+				double factor = schedule.factor(currentEpoch, this.epochs);
+				double learningRate = learningRate(factor);
+				int radius = radius(factor);
+
+				// the vectors summed per BMU
+				for (int node = 0; node < nodes; node++)
+					Arrays.fill(sums[node], 0);
+				Arrays.fill(counts, 0);
+
+				for (int first = 0; first < chunks.size(); first += threads) {
+					List<Chunk> group = chunks.subList(first, Math.min(first + threads, chunks.size()));
+					if (executor == null) {
+						for (int b = 0; b < group.size(); b++)
+							sumPerBestMatchingUnit(group.get(b), search, bufferSums[b], bufferCounts[b], measure);
+					}
+					else {
+						List<Callable<Object>> tasks = new ArrayList<>();
+						for (int b = 0; b < group.size(); b++) {
+							int buffer = b;
+							tasks.add(Executors.callable(() -> sumPerBestMatchingUnit(group.get(buffer), search, bufferSums[buffer], bufferCounts[buffer], measure)));
+						}
+						for (Future<Object> future : executor.invokeAll(tasks))
+							future.get();
+					}
 
-					for (int index = 0; index < this.dim; index++) {
-						currentDistance += Math.pow(memberData[index] - prototype[index], 2);
+					// merge in the order of the chunks, and empty the buffers for the next group
+					for (int b = 0; b < group.size(); b++) {
+						for (int node = 0; node < nodes; node++) {
+							if (bufferCounts[b][node] == 0)
+								continue;
+							Kernels.get().add(bufferSums[b][node], sums[node]);
+							counts[node] += bufferCounts[b][node];
+							Arrays.fill(bufferSums[b][node], 0);
+							bufferCounts[b][node] = 0;
+						}
 					}
-					currentDistance = (float) Math.sqrt(currentDistance);
-					if (currentDistance < bestDistance) {
-						bestClusterDim1 = i;
-						bestClusterDim2 = i2;
-						bestDistance = currentDistance;
+				}
+
+				// the earlier clients of a delta as if they were members of their node
+				if (initialWeights != null) {
+					for (int node = 0; node < nodes; node++) {
+						for (int index = 0; index < this.dim; index++)
+							sums[node][index] += (double) initialWeights[node] * initialPrototypes[node][index];
+						counts[node] += initialWeights[node];
 					}
 				}
+
+				// the error of the map as it was during the assignment, added up in the order of the chunks
+				int changed = 0;
+				double error = 0;
+				for (Chunk chunk : chunks) {
+					changed += chunk.changed;
+					error += chunk.error;
+				}
+				epochError = error / trainData.rows();
+				assignmentPhase.end(changed, (long) trainData.rows() * nodes, measure ? epochError : Double.NaN);
+
+				Metrics.Phase update = phase(Metrics.UPDATE, currentEpoch);
+				updateNeighbourhoods(sums, counts, radius, learningRate);
+				search.setPrototypes(prototypes);
+				update.end();
+				epochsTrained++;
+
+				if (convergence != null && convergence.converged(epochError, prototypes))
+					break;
 			}
-			clusters[bestClusterDim1][bestClusterDim2].currentMembers.add(member);
 		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while training:" + e);
+			return false;
+		}
+		finally {
+			if (executor != null)
+				executor.shutdown();
+		}
+		showEpochs();
 
-		// Since training kohonen maps can take quite a while, presenting the user with a progress bar would be nice
+		assignFinal(search, prototypes, training);
 		return true;
 	}
-	
-	public boolean test()
+
+	// Learning rate and radius of the neighbourhood in an epoch in which the schedule is at this factor
+	private double learningRate(double factor)
 	{
-		// iterate along all clients
-		// for each client find the cluster of which it is a member
-		int[][][] prefetched = new int[this.n][this.n][this.dim];
-		int[][] totalPrefetched = new int[this.n][this.n];
+		return fineTuning ? FINE_TUNE_RATE*this.initialLearningRate*factor : this.initialLearningRate*factor;
+	}
 
-		for	(int i=0; i < this.n; i++) {
-			for (int i2 = 0; i2 < this.n; i2++) {
-				for (int html = 0; html < this.dim; html++) {
-					if (clusters[i][i2].prototype[html] < prefetchThreshold) {
-						prefetched[i][i2][html] = 0;
-					} else {
-						prefetched[i][i2][html] = 1;
-					}
-				}
-				totalPrefetched[i][i2] = Arrays.stream(prefetched[i][i2]).sum();
-			}
+	private int radius(double factor)
+	{
+		return fineTuning ? 0 : (int) (( (double) this.n/2 )*factor);
+	}
+
+	private void showEpochs()
+	{
+		if (!verbose)
+			return;
+		if (epochsTrained < this.epochs)
+			System.out.println("Stopped early after " + epochsTrained + " of " + this.epochs + " training epochs.");
+		else
+			System.out.println("Completed " + this.epochs + " training epochs.\r");
+	}
+
+	// Counts the epochs in a row without progress. An epoch makes progress when its quantization error is lower
+	// than the lowest of the epochs before by more than a fraction tolerance, and some node moved more than
+	// tolerance per element (root mean square) during the epoch. The training has converged after 'patience'
+	// epochs in a row without progress.
+	private class Convergence
+	{
+		// the prototypes at the end of the previous epoch
+		private final float[][] previous;
+
+		private double lowestError = Double.POSITIVE_INFINITY;
+		private int stalled;
+
+		Convergence(float[][] prototypes)
+		{
+			previous = new float[prototypes.length][];
+			for (int node = 0; node < prototypes.length; node++)
+				previous[node] = prototypes[node].clone();
 		}
 
-		float hitrateSum=0;
-		float accuracySum=0;
-
-		// iterate along all clients.
-		for (int member=0; member < testData.size(); member++){
-			int memberClusterDim1=0;
-			int memberClusterDim2=0;
-
-			//  for each client find the cluster of which it is a member
-			for	(int i=0; i < this.n; i++) {
-				for (int i2 = 0; i2 < this.n; i2++) {
-					if (clusters[i][i2].currentMembers.contains(member)) {
-						memberClusterDim1 = i;
-						memberClusterDim2 = i2;
-						break;
-					}
+		// Whether the training can stop after an epoch with this quantization error
+		boolean converged(double error, float[][] prototypes)
+		{
+			maxDisplacement = 0;
+			for (int node = 0; node < prototypes.length; node++) {
+				double moved = 0;
+				for (int index = 0; index < dim; index++) {
+					double difference = prototypes[node][index] - previous[node][index];
+					moved += difference * difference;
+					previous[node][index] = prototypes[node][index];
 				}
+				maxDisplacement = Math.max(maxDisplacement, Math.sqrt(moved));
 			}
 
-			// get the actual testData (the vector) of this client
-			float[] memberData = testData.get(member);
+			boolean progress = error < lowestError * (1 - tolerance) && maxDisplacement > tolerance * Math.sqrt(dim);
+			lowestError = Math.min(lowestError, error);
+			stalled = progress ? 0 : stalled + 1;
+			return stalled >= patience;
+		}
+	}
 
-			int hits=0;
-			int requests=0;
+	/// Assign member to closest cluster of the trained map, and report the training
+	private void assignFinal(NearestPrototype search, float[][] prototypes, Metrics.Phase training)
+	{
+		Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, epochsTrained);
+		int changed = 0;
+		for (int member = 0; member < trainData.rows(); member++){
+			int best = search.nearest(member);
+			if (assignment[member] != best)
+				changed++;
+			assignment[member] = best;
+		}
+		long distances = (long) trainData.rows() * prototypes.length;
+		assignmentPhase.end(changed, distances);
 
-			for (int i = 0; i < this.dim; i++){
-				if (memberData[i] == 1.0) {
-					// count number of requests
-					requests++;
-					if (memberData[i] == prefetched[memberClusterDim1][memberClusterDim2][i]) {
-						// count number of hits
-						hits++;
-					}
+		training.end(-1, (epochsTrained + 1) * distances, metrics.enabled() ? quantizationError(trainData, prototypes, assignment) : Double.NaN);
+	}
+
+	private List<Chunk> createChunks()
+	{
+		int rows = trainData.rows();
+		int chunkSize = Math.max(MIN_CHUNK_SIZE, (rows + MAX_CHUNKS - 1) / MAX_CHUNKS);
+
+		List<Chunk> chunks = new ArrayList<>();
+		for (int from = 0; from < rows; from += chunkSize)
+			chunks.add(new Chunk(from, Math.min(from + chunkSize, rows)));
+		return chunks;
+	}
+
+	// Finds the BMU of every vector of the chunk and sums the vectors per BMU in an empty buffer,
+	// and when measure is set the squared distances of the vectors to their BMU
+	private void sumPerBestMatchingUnit(Chunk chunk, NearestPrototype search, double[][] sums, int[] counts, boolean measure)
+	{
+		chunk.changed = 0;
+		chunk.error = 0;
+		for (int vector = chunk.from; vector < chunk.to; vector++) {
+			int best = search.nearest(vector);
+			// the chunks have their own vectors, so they write different elements of the assignment
+			if (assignment[vector] != best)
+				chunk.changed++;
+			assignment[vector] = best;
+			if (measure)
+				chunk.error += search.distance(vector, best);
+			trainData.addTo(vector, sums[best]);
+			counts[best]++;
+		}
+	}
+
+	// Moves every node towards the mean of the vectors whose BMU is at most radius rows and columns away
+	// (the same square as the online training). The square is summed first along the columns of the map
+	// and then along the rows, instead of over all (2*radius+1)^2 nodes.
+	private void updateNeighbourhoods(double[][] sums, int[] counts, int radius, double learningRate)
+	{
+		int nodes = this.n*this.n;
+		double[][] rowSums = new double[nodes][this.dim];
+		int[] rowCounts = new int[nodes];
+		for (int i = 0; i < this.n; i++) {
+			for (int i2 = 0; i2 < this.n; i2++) {
+				int node = i*this.n + i2;
+				for (int j2 = Math.max(i2-radius, 0); j2 <= Math.min(i2+radius, this.n-1); j2++) {
+					int other = i*this.n + j2;
+					if (counts[other] == 0)
+						continue;
+					Kernels.get().add(sums[other], rowSums[node]);
+					rowCounts[node] += counts[other];
 				}
 			}
+		}
+
+		double[] sum = new double[this.dim];
+		for (int i = 0; i < this.n; i++) {
+			for (int i2 = 0; i2 < this.n; i2++) {
+				Arrays.fill(sum, 0);
+				int count = 0;
+				for (int j = Math.max(i-radius, 0); j <= Math.min(i+radius, this.n-1); j++) {
+					int other = j*this.n + i2;
+					if (rowCounts[other] == 0)
+						continue;
+					Kernels.get().add(rowSums[other], sum);
+					count += rowCounts[other];
+				}
 
-			if (requests != 0)
-			{
-				hitrateSum += (float) hits / requests;
+				// a node without vectors in its neighbourhood stays where it is
+				if (count == 0)
+					continue;
+
+				// the online training moves the node count times with the learning rate, which
+				// for vectors equal to their mean gives a total rate of 1 - (1 - learningRate)^count
+				double rate = 1 - Math.pow(1 - learningRate, count);
+				float[] prototype = clusters[i][i2].prototype;
+				for (int index = 0; index < this.dim; index++) {
+					float value = (float) (prototype[index] + rate * (sum[index] / count - prototype[index]));
+					// like moveTowards, values that become subnormal are flushed to 0
+					prototype[index] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+				}
 			}
-			accuracySum += (float) hits / totalPrefetched[memberClusterDim1][memberClusterDim2];
+		}
+	}
 
+	public boolean test()
+	{
+		// the prefetched htmls of every cluster and the requests of every client as bits, see Evaluation
+		Metrics.Phase testing = phase(Metrics.EVALUATION, 0);
+		try {
+			evaluation = Evaluation.of(prototypes(), prefetchThreshold, assignment, testData);
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while testing:" + e);
+			return false;
 		}
 
 		// set the global variables hitrate and accuracy to their appropriate value
-		this.hitrate =  hitrateSum/testData.size();
-		this.accuracy = accuracySum/testData.size();
+		this.hitrate = evaluation.hitrate();
+		this.accuracy = evaluation.accuracy();
 
+		testing.end();
 		return true;
 	}
 
 
+	public ThresholdCurve thresholdCurve()
+	{
+		Metrics.Phase evaluation = phase(Metrics.EVALUATION, 0);
+		ThresholdCurve curve = ThresholdCurve.of(prototypes(), assignment, testData);
+		evaluation.end();
+		return curve;
+	}
+
+	public float[][] prototypes()
+	{
+		// node [i][i2] is cluster i*n + i2, like in the assignment
+		float[][] prototypes = new float[this.n*this.n][];
+		for (int i = 0; i < this.n; i++)
+			for (int i2 = 0; i2 < this.n; i2++)
+				prototypes[i*this.n + i2] = clusters[i][i2].prototype;
+		return prototypes;
+	}
+
+	public int[] assignment()
+	{
+		return assignment;
+	}
+
+	public void save(String fileName) throws IOException
+	{
+		ModelFile.write(fileName, ModelFile.KOHONEN, prefetchThreshold, new double[] {n, epochs, initialLearningRate, batch ? 1 : 0, schedule.ordinal()}, prototypes(), assignment);
+	}
+
+	// A map with the nodes of a saved model, see ModelFile.load
+	static Kohonen restore(ModelFile.Model model, DataMatrix trainData, DataMatrix testData) throws IOException
+	{
+		int n = (int) model.parameter(0);
+		if (n * n != model.clusters())
+			throw new IOException("a map of size " + n + " cannot have " + model.clusters() + " nodes");
+
+		Kohonen kohonen = new Kohonen(n, (int) model.parameter(1), trainData, testData, trainData.dim(), model);
+		kohonen.setInitialLearningRate(model.parameter(2));
+		kohonen.setBatch(model.parameter(3) != 0);
+		kohonen.setSchedule(Schedule.values()[(int) model.parameter(4)]);
+		kohonen.epochsTrained = kohonen.epochs;
+		kohonen.setPrefetchThreshold(model.prefetchThreshold());
+		return kohonen;
+	}
+
 	public void showTest()
 	{
-		System.out.println("Initial learning Rate=" + initialLearningRate);
+		System.out.println("Training=" + (batch ? "batch" : "online"));
+		System.out.println("Initial learning Rate=" + initialLearningRate + ", schedule=" + schedule + (fineTuning ? ", fine tuning" : ""));
+		if (patience > 0)
+			System.out.println("Epochs=" + epochsTrained + " of " + epochs + ", quantization error=" + epochError + ", largest displacement=" + maxDisplacement);
+		else
+			System.out.println("Epochs=" + epochsTrained);
 		System.out.println("Prefetch threshold=" + prefetchThreshold);
 		System.out.println("Hitrate: " + hitrate);
 		System.out.println("Accuracy: " + accuracy);
@@ -252,9 +622,10 @@ public class Kohonen extends ClusteringAlgorithm
  
 	public void showMembers()
 	{
+		List<List<Integer>> members = members(assignment, n*n);
 		for (int i = 0; i < n; i++)
 			for (int i2 = 0; i2 < n; i2++)
-				System.out.println("\nMembers cluster["+i+"]["+i2+"] :" + clusters[i][i2].currentMembers);
+				System.out.println("\nMembers cluster["+i+"]["+i2+"] :" + members.get(i*n + i2));
 	}
 
 	public void showPrototypes()
@@ -275,5 +646,81 @@ public class Kohonen extends ClusteringAlgorithm
 	{
 		this.prefetchThreshold = prefetchThreshold;
 	}
+
+	// Batch training instead of online training (see batch)
+	public void setBatch(boolean batch)
+	{
+		this.batch = batch;
+	}
+
+	// Number of threads used by the batch training, the trained map is the same for any number of threads
+	public void setThreads(int threads)
+	{
+		this.threads = Math.max(1, threads);
+	}
+
+	public void setInitialLearningRate(double initialLearningRate)
+	{
+		this.initialLearningRate = initialLearningRate;
+	}
+
+	public void setSchedule(Schedule schedule)
+	{
+		this.schedule = schedule;
+	}
+
+	// Stops the training after 'patience' epochs in a row without progress, see Convergence. A patience of 0
+	// (the default) trains all epochs. The tolerance is relative for the quantization error and per element
+	// for the displacement of the nodes, default 1e-3.
+	public void setEarlyStopping(int patience, double tolerance)
+	{
+		this.patience = Math.max(0, patience);
+		this.tolerance = tolerance;
+	}
+
+	// Epochs the last training ran, less than epochs when it stopped early
+	public int getEpochsTrained()
+	{
+		return epochsTrained;
+	}
+
+	// Starts the map from these prototypes (node [i][i2] is prototype i*n + i2, like prototypes()) instead of
+	// random vectors, for instance from yesterday's map, usually with fine tuning. setSeed replaces them again.
+	public void setInitialPrototypes(float[][] prototypes)
+	{
+		setInitialPrototypes(prototypes, null);
+	}
+
+	// The same where the training data is a delta with only the new and changed clients, and node c stood for
+	// weights[c] earlier clients (its members in the earlier map). Every epoch these count as members of their
+	// node at its initial prototype, in addition to the delta, so the training only goes through the delta.
+	// This is always a batch training.
+	public void setInitialPrototypes(float[][] prototypes, int[] weights)
+	{
+		if (prototypes.length != this.n*this.n || (weights != null && weights.length != this.n*this.n))
+			throw new IllegalArgumentException(prototypes.length + " initial prototypes for a map of " + this.n*this.n + " nodes");
+		initialPrototypes = new float[prototypes.length][];
+		for (int i = 0; i < this.n; i++) {
+			for (int i2 = 0; i2 < this.n; i2++) {
+				if (prototypes[i*this.n + i2].length != this.dim)
+					throw new IllegalArgumentException("initial prototype of size " + prototypes[i*this.n + i2].length + ", but the data has vectors of size " + this.dim);
+				initialPrototypes[i*this.n + i2] = prototypes[i*this.n + i2].clone();
+				clusters[i][i2].prototype = prototypes[i*this.n + i2].clone();
+			}
+		}
+		initialWeights = weights;
+	}
+
+	// Fine tune the map instead of training it from the start, see fineTuning
+	public void setFineTuning(boolean fineTuning)
+	{
+		this.fineTuning = fineTuning;
+	}
+
+	// Initializes the map again with random vectors from this seed, so a training run can be reproduced
+	public void setSeed(long seed)
+	{
+		initializeMap(new Random(seed));
+	}
 }
 
@@ -1,56 +1,132 @@
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 
 public class LeaderFollower extends ClusteringAlgorithm
 {
 	// Intradistance of clusters
 	private double maxDis;
-	
+
 	// Dimensionality of the vectors
 	private int dim;
-	
+
 	// Threshold above which the corresponding html is prefetched
 	private double prefetchThreshold;
-	
+
 	// learning rate
 	private double alpha;
-	
-	// This class represents the clusters, it contains the prototype (the mean of all it's members)
-	// and a memberlist with the ID's (Integer objects) of the datapoints that are member of that cluster.  
-	private Vector<Cluster> clusters;
+
+	// This class represents the clusters, it contains the prototype (the mean of all it's members).
+	// Clusters are only added, never removed. They are kept in an array with room to spare, which is copied
+	// to one twice as large when it is full, so adding n clusters copies O(n) of them. A new cluster is
+	// stored first and then published by raising size, so searching the clusters needs no lock: a search
+	// uses the clusters 0 .. size-1 there were when it started. Only adding takes the lock of the algorithm,
+	// following a leader only takes the lock of its cluster.
+	private volatile Cluster[] clusters;
+	private volatile int size;
 
 	static class Cluster
 	{
-		float[] prototype;
+		// Following a leader moves the prototype in place, under the write lock, so it copies nothing.
+		// A search reads the prototype and its norm without waiting (an optimistic read) and afterwards
+		// checks that no move happened in the meantime. Only when one did, it reads them again under the
+		// read lock. So a search always uses a complete prototype together with its norm.
+		private final StampedLock lock = new StampedLock();
+		private final float[] prototype;
 
-		Set<Integer> currentMembers;
+		// squared norm of the prototype
+		private float norm;
 
-		public Cluster()
+		public Cluster(float[] prototype)
 		{
-			currentMembers = new HashSet<Integer>();
+			this.prototype = prototype;
+			norm = DataMatrix.squaredNorm(prototype);
+		}
+
+		// Moves the prototype towards a row
+		void follow(DataMatrix data, int row, double alpha)
+		{
+			long stamp = lock.writeLock();
+			try {
+				norm = data.moveTowards(row, prototype, alpha);
+			}
+			finally {
+				lock.unlockWrite(stamp);
+			}
+		}
+
+		// Distance of a row to the prototype, see DataMatrix.squaredDistance with a bound
+		float squaredDistance(DataMatrix data, int row, float bound)
+		{
+			long stamp = lock.tryOptimisticRead();
+			if (stamp != 0) {
+				float distance = data.squaredDistance(row, prototype, norm, bound, null);
+				if (lock.validate(stamp))
+					return distance;
+			}
+			stamp = lock.readLock();
+			try {
+				return data.squaredDistance(row, prototype, norm, bound, null);
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
+		}
+
+		// Copy of the prototype as it is at one moment
+		float[] copy()
+		{
+			long stamp = lock.readLock();
+			try {
+				return prototype.clone();
+			}
+			finally {
+				lock.unlockRead(stamp);
+			}
 		}
 	}
-	
-	// Vector which contains the train/test data
-	private Vector<float[]> trainData;
-	private Vector<float[]> testData;
+
+	// Cluster of every datapoint: assignment[client index] = index in clusters
+	private int[] assignment;
+
+	// A one-row matrix per thread for assign(float[]), so a query allocates nothing
+	private final ThreadLocal<Query> queries;
+
+	private static class Query
+	{
+		final float[] vector;
+		final FloatMatrix matrix;
+
+		Query(int dim)
+		{
+			vector = new float[dim];
+			matrix = new FloatMatrix(vector, 1, dim);
+		}
+	}
+
+	// Matrices which contain the train/test data, one vector per row
+	private DataMatrix trainData;
+	private DataMatrix testData;
 
 	// Results of test()
 	private double hitrate;
 	private double accuracy;
-	
-	public LeaderFollower(double maxDis, Vector<float[]> trainData, Vector<float[]> testData, int dim)
+
+	public LeaderFollower(double maxDis, DataMatrix trainData, DataMatrix testData, int dim)
 	{
 		this.maxDis = maxDis;
 		prefetchThreshold = 0.5;
 		alpha = 0.1;
-		
+
 		this.trainData = trainData;
-		this.testData = testData; 
+		this.testData = testData;
 		this.dim = dim;
-		
-		// Now we put the clusters in a vector because we don't know in advance how many clusters there will be.
-		clusters = new Vector<Cluster>();
+
+		// We don't know in advance how many clusters there will be, the array grows when it is full.
+		clusters = new Cluster[16];
+		assignment = new int[trainData.rows()];
+		queries = ThreadLocal.withInitial(() -> new Query(dim));
 	}
 
 	public boolean train()
@@ -58,49 +134,170 @@ public class LeaderFollower extends ClusteringAlgorithm
 		// classify for each trainDataPoint which cluster prototype is its NN,
 		// if the minimal distance < maxDis make it member of the cluster
 		// or else make a new cluster.
+		Metrics.Phase training = phase(Metrics.TRAINING, 0);
+		Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, 0);
+		// every member is compared with all clusters there are at that moment
+		long distances = 0;
+		for (int member = 0; member < trainData.rows(); member++) {
+			distances += size();
+			assignment[member] = assign(trainData, member);
+		}
+		assignmentPhase.end(-1, distances);
+
+		training.end(-1, distances, metrics.enabled() ? quantizationError(trainData, prototypes(), assignment) : Double.NaN);
 		return true;
 	}
 
+	// Online clustering of a single client: the nearest leader follows the vector, or when no leader is
+	// closer than maxDis the vector becomes the leader of a new cluster. Returns the index of the cluster.
+	// Can be called by many threads at the same time.
+	public int assign(float[] vector)
+	{
+		if (vector.length != dim)
+			throw new IllegalArgumentException("vector has size " + vector.length + ", the clusters have size " + dim);
+		Query query = queries.get();
+		System.arraycopy(vector, 0, query.vector, 0, dim);
+		return assign(query.matrix, 0);
+	}
+
+	public int assign(DataMatrix data, int row)
+	{
+		float maxSquaredDistance = (float) (maxDis * maxDis);
+		while (true) {
+			// size first: the array read after it holds at least that many clusters
+			int known = size;
+			Cluster[] current = clusters;
+
+			int best = -1;
+			float bestDistance = maxSquaredDistance;
+			for (int i = 0; i < known; i++) {
+				float distance = current[i].squaredDistance(data, row, bestDistance);
+				if (distance < bestDistance) {
+					best = i;
+					bestDistance = distance;
+				}
+			}
+
+			if (best >= 0) {
+				current[best].follow(data, row, alpha);
+				return best;
+			}
+
+			// make a new cluster, unless another thread added one in the meantime (which may be close enough)
+			Cluster cluster = new Cluster(data.copyRow(row));
+			synchronized (this) {
+				if (size == known) {
+					if (known == clusters.length)
+						clusters = Arrays.copyOf(clusters, 2 * known);
+					clusters[known] = cluster;
+					size = known + 1;
+					return known;
+				}
+			}
+		}
+	}
+
+	// Number of clusters created so far
+	public int size()
+	{
+		return size;
+	}
+
 	public boolean test()
 	{
-		// iterate along all clients. Assumption: the same clients are in the same order as in the testData
-		// for each client find the cluster of which it is a member
-		// get the actual testData (the vector) of this client
-		// iterate along all dimensions
-		// and count prefetched htmls
-		// count number of hits
-		// count number of requests
+		// the prefetched htmls of every cluster and the requests of every client as bits, see Evaluation
+		Metrics.Phase testing = phase(Metrics.EVALUATION, 0);
+		try {
+			evaluation = Evaluation.of(prototypes(), prefetchThreshold, assignment, testData);
+		}
+		catch (InterruptedException | ExecutionException e) {
+			System.out.println("error occured while testing:" + e);
+			return false;
+		}
+
 		// set the global variables hitrate and accuracy to their appropriate value
+		this.hitrate = evaluation.hitrate();
+		this.accuracy = evaluation.accuracy();
+
+		testing.end();
 		return true;
 	}
 
+	public ThresholdCurve thresholdCurve()
+	{
+		Metrics.Phase evaluation = phase(Metrics.EVALUATION, 0);
+		ThresholdCurve curve = ThresholdCurve.of(prototypes(), assignment, testData);
+		evaluation.end();
+		return curve;
+	}
+
+	// Copies of the prototypes, so they do not change while they are used when assign() is still called
+	public float[][] prototypes()
+	{
+		int known = size;
+		Cluster[] current = clusters;
+		float[][] prototypes = new float[known][];
+		for (int i = 0; i < known; i++)
+			prototypes[i] = current[i].copy();
+		return prototypes;
+	}
+
+	public int[] assignment()
+	{
+		return assignment;
+	}
+
+	public void save(String fileName) throws IOException
+	{
+		ModelFile.write(fileName, ModelFile.LEADER_FOLLOWER, prefetchThreshold, new double[] {maxDis, alpha}, prototypes(), assignment);
+	}
+
+	// Leader follower with the clusters of a saved model, see ModelFile.load
+	static LeaderFollower restore(ModelFile.Model model, DataMatrix trainData, DataMatrix testData)
+	{
+		LeaderFollower leaderFollower = new LeaderFollower(model.parameter(0), trainData, testData, trainData.dim());
+		leaderFollower.setAlpha(model.parameter(1));
+		leaderFollower.setPrefetchThreshold(model.prefetchThreshold());
+		Cluster[] restored = new Cluster[Math.max(16, 2 * model.clusters())];
+		for (int i = 0; i < model.clusters(); i++)
+			restored[i] = new Cluster(model.prototype(i));
+		leaderFollower.clusters = restored;
+		leaderFollower.size = model.clusters();
+		leaderFollower.assignment = model.assignment();
+		return leaderFollower;
+	}
+
 
 	// The following members are called by runClustering, in order to present information to the user
 	public void showTest()
 	{
 		System.out.println("Prefetch threshold = " + prefetchThreshold);
-		System.out.println("Alpha=" + alpha);       
+		System.out.println("Alpha=" + alpha);
+		System.out.println("Clusters=" + size());
 		System.out.println("Hitrate: " + hitrate);
 		System.out.println("Accuracy: " + accuracy);
 		System.out.println("Hitrate+Accuracy=" + (hitrate + accuracy));
 	}
-	
+
 	public void showMembers()
 	{
-		for (int i = 0; i < clusters.size(); i++)
-			System.out.println("\nMembers cluster["+i+"] :" + clusters.get(i).currentMembers);
+		List<List<Integer>> members = members(assignment, size());
+		for (int i = 0; i < members.size(); i++)
+			System.out.println("\nMembers cluster["+i+"] :" + members.get(i));
 	}
-	 
-	public void showPrototypes() 
+
+	public void showPrototypes()
 	{
-		for (int i = 0; i < clusters.size(); i++) {
+		int known = size;
+		Cluster[] current = clusters;
+		for (int i = 0; i < known; i++) {
 			System.out.print("\nPrototype cluster["+i+"] :");
-			
-			float[] prototype = clusters.get(i).prototype;
+
+			float[] prototype = current[i].copy();
 
 			for (int i2=0; i2 < dim; i2++)
 				System.out.print(prototype[i2]+" ");
-			
+
 			System.out.println();
 		}
 	}
@@ -110,4 +307,9 @@ public class LeaderFollower extends ClusteringAlgorithm
 	{
 		this.prefetchThreshold = prefetchThreshold;
 	}
+
+	public void setAlpha(double alpha)
+	{
+		this.alpha = alpha;
+	}
 }
@@ -0,0 +1,289 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import jdk.jfr.*;
+
+public class Metrics
+{
+	// What the clustering algorithms report while they train and test, so it can be seen where the time goes
+	// without a profiler. Every phase of the work is one Record:
+	//   SEEDING     choosing the initial prototypes
+	//   ASSIGNMENT  finding the nearest prototype of every datapoint
+	//   UPDATE      moving the prototypes to their new place
+	//   EPOCH       an epoch of online training, in which assignment and update alternate per datapoint
+	//   TRAINING    all of the training
+	//   EVALUATION  test() or thresholdCurve()
+	// with the wall time, and where the algorithm knows them the number of datapoints that changed cluster, the
+	// number of distances calculated and (for TRAINING) the quantization error: the mean squared distance of the
+	// datapoints to the prototype of their cluster.
+	//
+	// The records go to the sinks, and every phase is also committed as a JFR event (clustering.Phase), which
+	// costs next to nothing when no flight recording is running.
+
+	public static final String SEEDING = "seeding";
+	public static final String ASSIGNMENT = "assignment";
+	public static final String UPDATE = "update";
+	public static final String EPOCH = "epoch";
+	public static final String TRAINING = "training";
+	public static final String EVALUATION = "evaluation";
+
+	// Where the records go, implementations are called by the thread that trains and have to be thread safe
+	// when they are shared by several algorithms
+	public interface Sink
+	{
+		void record(Record record);
+	}
+
+	public static class Record
+	{
+		// label of the Metrics (for instance the run of BatchRunner), algorithm (class name) and phase
+		public final String label;
+		public final String algorithm;
+		public final String phase;
+
+		// iteration or epoch, counted from 0 (0 for TRAINING and EVALUATION)
+		public final int iteration;
+		public final long nanos;
+
+		// -1 (or NaN) when the algorithm does not know them
+		public final long reassigned;
+		public final long distances;
+		public final double quantizationError;
+
+		public Record(String label, String algorithm, String phase, int iteration, long nanos, long reassigned, long distances, double quantizationError)
+		{
+			this.label = label;
+			this.algorithm = algorithm;
+			this.phase = phase;
+			this.iteration = iteration;
+			this.nanos = nanos;
+			this.reassigned = reassigned;
+			this.distances = distances;
+			this.quantizationError = quantizationError;
+		}
+
+		public String toString()
+		{
+			StringBuilder line = new StringBuilder();
+			if (!label.isEmpty())
+				line.append(label).append(' ');
+			line.append(algorithm).append(' ').append(phase).append(' ').append(iteration);
+			line.append(String.format(Locale.ROOT, ": %.3f ms", nanos / 1e6));
+			if (reassigned >= 0)
+				line.append(", reassigned=").append(reassigned);
+			if (distances >= 0)
+				line.append(", distances=").append(distances);
+			if (!Double.isNaN(quantizationError))
+				line.append(", quantization error=").append(quantizationError);
+			return line.toString();
+		}
+	}
+
+	// A phase that has begun, end() reports it
+	public class Phase
+	{
+		private final String algorithm;
+		private final String phase;
+		private final int iteration;
+		private final long start;
+		private final PhaseEvent event;
+
+		Phase(String algorithm, String phase, int iteration)
+		{
+			this.algorithm = algorithm;
+			this.phase = phase;
+			this.iteration = iteration;
+			event = new PhaseEvent();
+			event.begin();
+			start = System.nanoTime();
+		}
+
+		public void end()
+		{
+			end(-1, -1, Double.NaN);
+		}
+
+		public void end(long reassigned, long distances)
+		{
+			end(reassigned, distances, Double.NaN);
+		}
+
+		public void end(long reassigned, long distances, double quantizationError)
+		{
+			long nanos = System.nanoTime() - start;
+			event.end();
+			if (event.shouldCommit()) {
+				event.label = label;
+				event.algorithm = algorithm;
+				event.phase = phase;
+				event.iteration = iteration;
+				event.reassigned = reassigned;
+				event.distances = distances;
+				event.quantizationError = quantizationError;
+				event.commit();
+			}
+
+			if (!sinks.isEmpty()) {
+				Record record = new Record(label, algorithm, phase, iteration, nanos, reassigned, distances, quantizationError);
+				for (Sink sink : sinks)
+					sink.record(record);
+			}
+		}
+	}
+
+	@Name("clustering.Phase")
+	@Label("Clustering Phase")
+	@Category("Clustering")
+	@Description("A phase of training or testing a clustering algorithm")
+	static class PhaseEvent extends jdk.jfr.Event
+	{
+		@Label("Label")
+		String label;
+
+		@Label("Algorithm")
+		String algorithm;
+
+		@Label("Phase")
+		String phase;
+
+		@Label("Iteration")
+		int iteration;
+
+		@Label("Reassigned")
+		long reassigned;
+
+		@Label("Distances")
+		long distances;
+
+		@Label("Quantization Error")
+		double quantizationError;
+	}
+
+	private final String label;
+	private final List<Sink> sinks;
+
+	public Metrics(Sink... sinks)
+	{
+		this("", sinks);
+	}
+
+	public Metrics(String label, Sink... sinks)
+	{
+		this.label = label;
+		this.sinks = new CopyOnWriteArrayList<>(sinks);
+	}
+
+	// The same sinks under another label, for instance for the restarts of an algorithm
+	public Metrics withLabel(String label)
+	{
+		return new Metrics(label, sinks);
+	}
+
+	private Metrics(String label, List<Sink> sinks)
+	{
+		this.label = label;
+		this.sinks = sinks;
+	}
+
+	public String label()
+	{
+		return label;
+	}
+
+	public void addSink(Sink sink)
+	{
+		sinks.add(sink);
+	}
+
+	public Phase begin(String algorithm, String phase, int iteration)
+	{
+		return new Phase(algorithm, phase, iteration);
+	}
+
+	// Whether anybody receives the records, measurements that cost extra work (the quantization error)
+	// are only done when this is true
+	public boolean enabled()
+	{
+		return !sinks.isEmpty() || EventType.getEventType(PhaseEvent.class).isEnabled();
+	}
+
+	// Prints every record as a line
+	public static class LogSink implements Sink
+	{
+		private final PrintStream out;
+
+		public LogSink(PrintStream out)
+		{
+			this.out = out;
+		}
+
+		public void record(Record record)
+		{
+			out.println(record);
+		}
+	}
+
+	// Writes every record as a line of a csv file
+	public static class CsvSink implements Sink, Closeable
+	{
+		private final PrintWriter out;
+
+		public CsvSink(String fileName) throws IOException
+		{
+			out = new PrintWriter(new BufferedWriter(new FileWriter(fileName)));
+			out.println("label,algorithm,phase,iteration,millis,reassigned,distances,quantizationError");
+		}
+
+		public synchronized void record(Record record)
+		{
+			out.println(record.label + "," + record.algorithm + "," + record.phase + "," + record.iteration + "," + record.nanos / 1e6 + ","
+				+ (record.reassigned < 0 ? "" : "" + record.reassigned) + "," + (record.distances < 0 ? "" : "" + record.distances) + ","
+				+ (Double.isNaN(record.quantizationError) ? "" : "" + record.quantizationError));
+		}
+
+		public synchronized void close()
+		{
+			out.close();
+		}
+	}
+
+	// Keeps all records
+	public static class MemorySink implements Sink
+	{
+		private final List<Record> records = new ArrayList<>();
+
+		public synchronized void record(Record record)
+		{
+			records.add(record);
+		}
+
+		public synchronized List<Record> records()
+		{
+			return new ArrayList<>(records);
+		}
+
+		public synchronized void clear()
+		{
+			records.clear();
+		}
+
+		// Prints the total time per algorithm and phase, and the last training record
+		public void show()
+		{
+			Map<String, long[]> phases = new LinkedHashMap<>();
+			Record training = null;
+			for (Record record : records()) {
+				long[] total = phases.computeIfAbsent(record.algorithm + " " + record.phase, key -> new long[2]);
+				total[0]++;
+				total[1] += record.nanos;
+				if (record.phase.equals(TRAINING))
+					training = record;
+			}
+			for (Map.Entry<String, long[]> phase : phases.entrySet())
+				System.out.println(phase.getKey() + ": " + phase.getValue()[0] + " times, " + String.format(Locale.ROOT, "%.3f", phase.getValue()[1] / 1e6) + " ms");
+			if (training != null)
+				System.out.println(training);
+		}
+	}
+}
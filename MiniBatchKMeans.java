@@ -0,0 +1,296 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class MiniBatchKMeans extends ClusteringAlgorithm
+{
+	// K-means on a stream of small batches instead of the whole training set: every batch is assigned to the
+	// current prototypes, after which each prototype is moved towards its new members with a learning rate
+	// of 1/(number of members it has seen so far). Only one batch is in memory at a time.
+
+	// Number of clusters
+	private int k;
+
+	// Dimensionality of the vectors
+	private int dim;
+
+	// Threshold above which the corresponding html is prefetched
+	private double prefetchThreshold;
+
+	// Training stops when no prototype moved more than this distance during a batch,
+	// or after maxBatches batches (the training file is read again when it runs out).
+	private double tolerance;
+	private int maxBatches;
+
+	// Prototypes and the number of datapoints each of them has seen
+	private float[][] prototypes;
+	private long[] counts;
+
+	// Number of batches used by the last train()
+	private int batches;
+
+	private Random random;
+
+	// Train and test data are read in batches of the same size, so batch i of the test data
+	// holds the same clients as batch i of the training data.
+	private BatchReader trainData;
+	private BatchReader testData;
+
+	// Results of test()
+	private double hitrate;
+	private double accuracy;
+
+	public MiniBatchKMeans(int k, String trainFileName, String testFileName, int batchSize, int dim)
+	{
+		this.k = k;
+		this.dim = dim;
+		this.trainData = new BatchReader(trainFileName, batchSize);
+		this.testData = new BatchReader(testFileName, batchSize);
+		prefetchThreshold = 0.5;
+		tolerance = 1e-3;
+		maxBatches = 1000;
+		random = new Random();
+		prototypes = new float[k][dim];
+		counts = new long[k];
+	}
+
+	public boolean train()
+	{
+		// the quantization error is not measured, it needs another pass over the training file
+		Metrics.Phase training = phase(Metrics.TRAINING, 0);
+		long distances = 0;
+		try {
+			Metrics.Phase seeding = phase(Metrics.SEEDING, 0);
+			trainData.reset();
+			DataMatrix batch = trainData.next();
+			if (batch == null) {
+				seeding.end();
+				return false;
+			}
+
+			// Start with k random datapoints of the first batch as prototypes
+			for (int i = 0; i < k; i++)
+				prototypes[i] = batch.copyRow(random.nextInt(batch.rows()));
+			Arrays.fill(counts, 0);
+			seeding.end();
+
+			float[][] previous = new float[k][];
+			for (batches = 0; batches < maxBatches; ) {
+				if (batch == null) {
+					trainData.reset();
+					batch = trainData.next();
+				}
+
+				for (int i = 0; i < k; i++)
+					previous[i] = prototypes[i].clone();
+
+				// assign the whole batch first, then move the prototypes
+				Metrics.Phase assignmentPhase = phase(Metrics.ASSIGNMENT, batches);
+				NearestPrototype search = new NearestPrototype(batch);
+				search.setPrototypes(prototypes);
+				int[] nearest = new int[batch.rows()];
+				for (int row = 0; row < batch.rows(); row++)
+					nearest[row] = search.nearest(row);
+				distances += (long) batch.rows() * k;
+				assignmentPhase.end(-1, (long) batch.rows() * k);
+
+				Metrics.Phase update = phase(Metrics.UPDATE, batches);
+				for (int row = 0; row < batch.rows(); row++) {
+					int cluster = nearest[row];
+					counts[cluster]++;
+					batch.moveTowards(row, prototypes[cluster], 1.0 / counts[cluster]);
+				}
+				update.end();
+				batches++;
+
+				// largest distance a prototype moved during this batch
+				float movement = 0;
+				for (int i = 0; i < k; i++) {
+					float distance = 0;
+					for (int index = 0; index < dim; index++)
+						distance += (prototypes[i][index] - previous[i][index]) * (prototypes[i][index] - previous[i][index]);
+					movement = Math.max(movement, distance);
+				}
+				if (Math.sqrt(movement) <= tolerance)
+					break;
+
+				batch = trainData.next();
+			}
+		}
+		catch (IOException e) {
+			System.out.println("error occured while training:" + e);
+			return false;
+		}
+		finally {
+			close();
+			// also when training failed, so every phase that began has ended
+			training.end(-1, distances);
+		}
+
+		if (verbose)
+			System.out.println("Training finished after " + batches + " batches.");
+		return true;
+	}
+
+	public boolean test()
+	{
+		// the prefetched htmls of every cluster and the requests of every client as bits, see Evaluation
+		Metrics.Phase testing = phase(Metrics.EVALUATION, 0);
+		Evaluation result = new Evaluation(prototypes, prefetchThreshold);
+
+		try {
+			trainData.reset();
+			testData.reset();
+
+			// the cluster of a client is the nearest prototype to its training vector
+			DataMatrix trainBatch;
+			DataMatrix testBatch;
+			while ((trainBatch = trainData.next()) != null && (testBatch = testData.next()) != null) {
+				NearestPrototype search = new NearestPrototype(trainBatch);
+				search.setPrototypes(prototypes);
+
+				int[] clusters = new int[Math.min(trainBatch.rows(), testBatch.rows())];
+				for (int member = 0; member < clusters.length; member++)
+					clusters[member] = search.nearest(member);
+				result.add(clusters, testBatch, clusters.length);
+			}
+		}
+		catch (IOException | InterruptedException | ExecutionException e) {
+			System.out.println("error occured while testing:" + e);
+			return false;
+		}
+		finally {
+			close();
+		}
+		evaluation = result;
+
+		// set the global variables hitrate and accuracy to their appropriate value
+		this.hitrate = evaluation.hitrate();
+		this.accuracy = evaluation.accuracy();
+
+		testing.end();
+		return true;
+	}
+
+	public ThresholdCurve thresholdCurve()
+	{
+		Metrics.Phase evaluation = phase(Metrics.EVALUATION, 0);
+		ThresholdCurve curve = new ThresholdCurve(prototypes);
+		try {
+			trainData.reset();
+			testData.reset();
+
+			DataMatrix trainBatch;
+			DataMatrix testBatch;
+			while ((trainBatch = trainData.next()) != null && (testBatch = testData.next()) != null) {
+				NearestPrototype search = new NearestPrototype(trainBatch);
+				search.setPrototypes(prototypes);
+				for (int member = 0; member < Math.min(trainBatch.rows(), testBatch.rows()); member++)
+					curve.add(search.nearest(member), testBatch, member);
+			}
+		}
+		catch (IOException e) {
+			System.out.println("error occured while testing:" + e);
+		}
+		finally {
+			close();
+		}
+		curve.compute();
+		evaluation.end();
+		return curve;
+	}
+
+	public void showTest()
+	{
+		System.out.println("Batches=" + batches);
+		System.out.println("Prefetch threshold=" + this.prefetchThreshold);
+		System.out.println("Hitrate: " + this.hitrate);
+		System.out.println("Accuracy: " + this.accuracy);
+		System.out.println("Hitrate+Accuracy=" + (this.hitrate + this.accuracy));
+	}
+
+	public void showMembers()
+	{
+		List<List<Integer>> members = members(assignment(), k);
+		for (int i = 0; i < k; i++)
+			System.out.println("\nMembers cluster["+i+"] :" + members.get(i));
+	}
+
+	public float[][] prototypes()
+	{
+		return prototypes;
+	}
+
+	// The members are not stored, so they are assigned again from the training file
+	public int[] assignment()
+	{
+		int[] assignment = new int[0];
+		try {
+			trainData.reset();
+			DataMatrix batch;
+			while (true) {
+				int first = trainData.rowsRead();
+				if ((batch = trainData.next()) == null)
+					break;
+				if (first + batch.rows() > assignment.length)
+					assignment = Arrays.copyOf(assignment, Math.max(2 * assignment.length, first + batch.rows()));
+				NearestPrototype search = new NearestPrototype(batch);
+				search.setPrototypes(prototypes);
+				for (int row = 0; row < batch.rows(); row++)
+					assignment[first + row] = search.nearest(row);
+			}
+			assignment = Arrays.copyOf(assignment, trainData.rowsRead());
+		}
+		catch (IOException e) {
+			System.out.println("error occured while reading traindata:" + e);
+		}
+		finally {
+			close();
+		}
+		return assignment;
+	}
+
+	// Closes the data files after a pass over them, also when the pass failed
+	private void close()
+	{
+		try {
+			trainData.close();
+			testData.close();
+		}
+		catch (IOException e) {
+			System.out.println("error occured while closing the data files:" + e);
+		}
+	}
+
+	public void showPrototypes()
+	{
+		for (int ic = 0; ic < k; ic++) {
+			System.out.print("\nPrototype cluster["+ic+"] :");
+
+			for (int ip = 0; ip < dim; ip++)
+				System.out.print(prototypes[ic][ip] + " ");
+
+			System.out.println();
+		}
+	}
+
+	public void setPrefetchThreshold(double prefetchThreshold)
+	{
+		this.prefetchThreshold = prefetchThreshold;
+	}
+
+	public void setTolerance(double tolerance)
+	{
+		this.tolerance = tolerance;
+	}
+
+	public void setMaxBatches(int maxBatches)
+	{
+		this.maxBatches = maxBatches;
+	}
+
+	public void setSeed(long seed)
+	{
+		random = new Random(seed);
+	}
+}
@@ -0,0 +1,257 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+public class ModelFile
+{
+	// Binary format for a trained model, so a model can be used again without training it.
+	// The file starts with a header of HEADER_SIZE bytes (little endian):
+	//   int magic, int version, int algorithm, int clusters, int dim, int clients,
+	//   double prefetch threshold, MAX_PARAMETERS doubles with the hyperparameters of the algorithm
+	// followed by
+	//   clusters*dim floats, the prototypes row-major
+	//   clients ints, the cluster of every training client (-1 when it has none)
+	// Reading a model only reads the header, the prototypes and the assignment are mapped into memory.
+	// A single mapping is limited to 2GB, so larger models are mapped in regions.
+
+	public static final int MAGIC = 0x444D4C43; // "CLMD"
+	public static final int VERSION = 1;
+
+	public static final int KMEANS = 0;
+	public static final int KOHONEN = 1;
+	public static final int LEADER_FOLLOWER = 2;
+
+	// The hyperparameters per algorithm, unused ones are 0:
+	//   KMEANS:          k, seeding (ordinal of KMeans.Seeding)
+	//   KOHONEN:         n, epochs, initial learning rate, batch training (1) or online (0), schedule (ordinal of Kohonen.Schedule)
+	//   LEADER_FOLLOWER: maxDis, alpha
+	public static final int MAX_PARAMETERS = 8;
+
+	// The header is padded so the data is aligned for every element type
+	private static final int HEADER_SIZE = 128;
+
+	// Size of the buffer the prototypes and the assignment are written with
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// A trained model as it is stored in a file, with the prototypes and the assignment in the mapped file.
+	// prototype() and assignment() copy them out of the mapping; restoring an algorithm does that once, so the
+	// algorithm can train further. PrefetchService reads the assignment client by client through cluster().
+	public static class Model
+	{
+		private final int algorithm;
+		private final int clusters;
+		private final int dim;
+		private final int clients;
+		private final double prefetchThreshold;
+		private final double[] parameters;
+
+		// Region r holds the prototypes (or clients) r*perRegion up to (r+1)*perRegion
+		private final FloatBuffer[] prototypeRegions;
+		private final int prototypesPerRegion;
+		private final IntBuffer[] assignmentRegions;
+		private final int clientsPerRegion;
+
+		Model(int algorithm, int clusters, int dim, int clients, double prefetchThreshold, double[] parameters,
+			FloatBuffer[] prototypeRegions, int prototypesPerRegion, IntBuffer[] assignmentRegions, int clientsPerRegion)
+		{
+			this.algorithm = algorithm;
+			this.clusters = clusters;
+			this.dim = dim;
+			this.clients = clients;
+			this.prefetchThreshold = prefetchThreshold;
+			this.parameters = parameters;
+			this.prototypeRegions = prototypeRegions;
+			this.prototypesPerRegion = prototypesPerRegion;
+			this.assignmentRegions = assignmentRegions;
+			this.clientsPerRegion = clientsPerRegion;
+		}
+
+		public int algorithm()
+		{
+			return algorithm;
+		}
+
+		public int clusters()
+		{
+			return clusters;
+		}
+
+		public int dim()
+		{
+			return dim;
+		}
+
+		public int clients()
+		{
+			return clients;
+		}
+
+		public double prefetchThreshold()
+		{
+			return prefetchThreshold;
+		}
+
+		public double parameter(int index)
+		{
+			return parameters[index];
+		}
+
+		// Copy of the prototype of a cluster
+		public float[] prototype(int cluster)
+		{
+			float[] prototype = new float[dim];
+			FloatBuffer region = prototypeRegions[cluster / prototypesPerRegion].duplicate();
+			region.position((cluster % prototypesPerRegion) * dim);
+			region.get(prototype);
+			return prototype;
+		}
+
+		// Cluster of a training client
+		public int cluster(int client)
+		{
+			return assignmentRegions[client / clientsPerRegion].get(client % clientsPerRegion);
+		}
+
+		// Copies of all prototypes and of the assignment, for an algorithm that continues with the model
+		public float[][] prototypes()
+		{
+			float[][] prototypes = new float[clusters][];
+			for (int c = 0; c < clusters; c++)
+				prototypes[c] = prototype(c);
+			return prototypes;
+		}
+
+		public int[] assignment()
+		{
+			int[] assignment = new int[clients];
+			for (int r = 0; r < assignmentRegions.length; r++) {
+				IntBuffer region = assignmentRegions[r].duplicate();
+				region.get(assignment, r * clientsPerRegion, region.remaining());
+			}
+			return assignment;
+		}
+	}
+
+	// Writes a model in a new file
+	public static void write(String fileName, int algorithm, double prefetchThreshold, double[] parameters, float[][] prototypes, int[] assignment) throws IOException
+	{
+		if (parameters.length > MAX_PARAMETERS)
+			throw new IllegalArgumentException("at most " + MAX_PARAMETERS + " parameters can be stored");
+		int dim = prototypes.length == 0 ? 0 : prototypes[0].length;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, HEADER_SIZE)).order(ByteOrder.LITTLE_ENDIAN);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(algorithm).putInt(prototypes.length).putInt(dim).putInt(assignment.length);
+			buffer.putDouble(prefetchThreshold);
+			for (int i = 0; i < MAX_PARAMETERS; i++)
+				buffer.putDouble(i < parameters.length ? parameters[i] : 0);
+			buffer.position(HEADER_SIZE);
+
+			for (float[] prototype : prototypes) {
+				if (prototype.length != dim)
+					throw new IllegalArgumentException("prototypes have different sizes");
+				for (float value : prototype) {
+					if (!buffer.hasRemaining())
+						flush(channel, buffer);
+					buffer.putFloat(value);
+				}
+			}
+			for (int cluster : assignment) {
+				if (!buffer.hasRemaining())
+					flush(channel, buffer);
+				buffer.putInt(cluster);
+			}
+			flush(channel, buffer);
+		}
+	}
+
+	private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException
+	{
+		buffer.flip();
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+	}
+
+	// Maps a model file into memory. The mapping stays valid after the file is closed.
+	public static Model map(String fileName) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			if (channel.size() < HEADER_SIZE)
+				throw new IOException(fileName + " is not a model file");
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while (header.hasRemaining() && channel.read(header) >= 0);
+			header.flip();
+
+			if (header.getInt() != MAGIC)
+				throw new IOException(fileName + " is not a model file");
+			int version = header.getInt();
+			if (version != VERSION)
+				throw new IOException(fileName + " has unsupported version " + version);
+			int algorithm = header.getInt();
+			int clusters = header.getInt();
+			int dim = header.getInt();
+			int clients = header.getInt();
+			double prefetchThreshold = header.getDouble();
+			double[] parameters = new double[MAX_PARAMETERS];
+			for (int i = 0; i < MAX_PARAMETERS; i++)
+				parameters[i] = header.getDouble();
+
+			long prototypesSize = (long) clusters * dim * 4;
+			if (HEADER_SIZE + prototypesSize + (long) clients * 4 > channel.size())
+				throw new IOException(fileName + " is truncated");
+
+			// every region holds whole prototypes
+			int prototypesPerRegion = (int) Math.max(1, Integer.MAX_VALUE / Math.max(4L, dim * 4L));
+			FloatBuffer[] prototypeRegions = new FloatBuffer[(clusters + prototypesPerRegion - 1) / prototypesPerRegion];
+			for (int r = 0; r < prototypeRegions.length; r++) {
+				int count = Math.min(prototypesPerRegion, clusters - r * prototypesPerRegion);
+				long position = HEADER_SIZE + (long) r * prototypesPerRegion * dim * 4;
+				prototypeRegions[r] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * dim * 4)
+					.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+			}
+
+			int clientsPerRegion = Integer.MAX_VALUE / 4;
+			IntBuffer[] assignmentRegions = new IntBuffer[(int) (((long) clients + clientsPerRegion - 1) / clientsPerRegion)];
+			for (int r = 0; r < assignmentRegions.length; r++) {
+				int count = Math.min(clientsPerRegion, clients - r * clientsPerRegion);
+				long position = HEADER_SIZE + prototypesSize + (long) r * clientsPerRegion * 4;
+				assignmentRegions[r] = channel.map(FileChannel.MapMode.READ_ONLY, position, (long) count * 4)
+					.order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+			}
+
+			return new Model(algorithm, clusters, dim, clients, prefetchThreshold, parameters,
+				prototypeRegions, prototypesPerRegion, assignmentRegions, clientsPerRegion);
+		}
+	}
+
+	// Reads a model and continues with it as the algorithm it was trained with, on the given data.
+	// The training clients have to be the same as when the model was saved.
+	public static ClusteringAlgorithm load(String fileName, DataMatrix trainData, DataMatrix testData) throws IOException
+	{
+		return load(map(fileName), trainData, testData);
+	}
+
+	// The same for a model that is already mapped
+	public static ClusteringAlgorithm load(Model model, DataMatrix trainData, DataMatrix testData) throws IOException
+	{
+		if (model.dim() != trainData.dim() && model.clusters() > 0)
+			throw new IOException("the model has prototypes of size " + model.dim() + ", but the data has vectors of size " + trainData.dim());
+		if (model.clients() != trainData.rows())
+			throw new IOException("the model was trained on " + model.clients() + " clients, but the data has " + trainData.rows());
+
+		switch (model.algorithm()) {
+			case KMEANS:
+				return KMeans.restore(model, trainData, testData);
+			case KOHONEN:
+				return Kohonen.restore(model, trainData, testData);
+			case LEADER_FOLLOWER:
+				return LeaderFollower.restore(model, trainData, testData);
+			default:
+				throw new IOException("the model has unknown algorithm " + model.algorithm());
+		}
+	}
+}
@@ -0,0 +1,123 @@
+import java.util.*;
+
+public class NearestPrototype
+{
+	// Finds the prototype that is closest to a row of a data matrix. It is shared by the training and
+	// assignment loops of all algorithms:
+	// - only squared distances are compared, no square roots are taken
+	// - a candidate is abandoned as soon as its partial distance exceeds the best one so far
+	// - optionally the dimensions are summed in order of decreasing variance, so that happens early
+	// - besides the best distance it can report the second best one
+	// Searching is read-only, so several threads can search the same prototypes at the same time.
+
+	private final DataMatrix data;
+
+	// The prototypes that are searched (not copied, changes to them are seen by the search)
+	// and their squared norms, which have to be kept up to date with setNorm.
+	private float[][] prototypes;
+	private float[] norms;
+
+	// Order in which the dimensions are summed, or null for the natural order
+	private int[] order;
+
+	public NearestPrototype(DataMatrix data)
+	{
+		this.data = data;
+		this.prototypes = new float[0][];
+		this.norms = new float[0];
+	}
+
+	// Sums the dimensions with the highest variance over the data first. Jumping through the dimensions
+	// costs memory locality, so this is only done when the quarter of the dimensions with the highest
+	// variance has at least half of the total variance. Returns whether the order is used.
+	public boolean orderByVariance()
+	{
+		double[] variances = data.variances();
+		Integer[] indices = new Integer[variances.length];
+		for (int i = 0; i < indices.length; i++)
+			indices[i] = i;
+		Arrays.sort(indices, (a, b) -> Double.compare(variances[b], variances[a]));
+
+		double total = 0;
+		double top = 0;
+		for (int i = 0; i < indices.length; i++) {
+			total += variances[indices[i]];
+			if (i < indices.length / 4)
+				top += variances[indices[i]];
+		}
+		if (top < total / 2) {
+			order = null;
+			return false;
+		}
+
+		order = new int[indices.length];
+		for (int i = 0; i < indices.length; i++)
+			order[i] = indices[i];
+		return true;
+	}
+
+	public void setPrototypes(float[][] prototypes)
+	{
+		this.prototypes = prototypes;
+		this.norms = new float[prototypes.length];
+		for (int i = 0; i < prototypes.length; i++)
+			norms[i] = DataMatrix.squaredNorm(prototypes[i]);
+	}
+
+	// Has to be called after a prototype has been changed
+	public void setNorm(int prototype, float norm)
+	{
+		norms[prototype] = norm;
+	}
+
+	public int size()
+	{
+		return prototypes.length;
+	}
+
+	// Squared distance from a row to one of the prototypes
+	public float distance(int row, int prototype)
+	{
+		return data.squaredDistance(row, prototypes[prototype], norms[prototype]);
+	}
+
+	// Index of the nearest prototype, or -1 if there is none. Prototypes that contain NaN
+	// (the mean of an empty cluster) never match.
+	public int nearest(int row)
+	{
+		int best = -1;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < prototypes.length; i++) {
+			float distance = data.squaredDistance(row, prototypes[i], norms[i], bestDistance, order);
+			if (distance < bestDistance) {
+				best = i;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	// Same as nearest(row), and stores the squared distance to the nearest prototype in distances[0] and
+	// to the second nearest in distances[1]. Candidates can only be abandoned once they are further away
+	// than the second best, so this is a bit slower.
+	public int nearest(int row, float[] distances)
+	{
+		int best = -1;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		float secondDistance = Float.POSITIVE_INFINITY;
+		for (int i = 0; i < prototypes.length; i++) {
+			float distance = data.squaredDistance(row, prototypes[i], norms[i], secondDistance, order);
+			if (distance < bestDistance) {
+				secondDistance = bestDistance;
+				best = i;
+				bestDistance = distance;
+			}
+			else if (distance < secondDistance) {
+				secondDistance = distance;
+			}
+		}
+		distances[0] = bestDistance;
+		distances[1] = secondDistance;
+		return best;
+	}
+}
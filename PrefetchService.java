@@ -0,0 +1,212 @@
+import java.util.*;
+import java.util.function.*;
+
+public class PrefetchService
+{
+	// Answers "which urls should be prefetched for this client?" with a trained model. Everything is
+	// computed once when the service is built, a lookup only reads from it:
+	// - per cluster, the urls whose prototype value is at least the threshold, the highest value first
+	// - a hash index from the hostname of every training client to its cluster
+	// - for clients that are not in the training data, a search for the prototype nearest to the urls they requested
+	// Lookups do not allocate (except the batch lookup, for its result) and many threads can look up at the same time.
+
+	// Number of urls (the dimensionality of the prototypes) and of clusters
+	private final int dim;
+	private final int clusters;
+
+	// All prototypes after each other in one array, and their squared norms
+	private final float[] prototypes;
+	private final float[] norms;
+
+	// The same values per url: columns[url * clusters + cluster], so a search over the requested urls
+	// reads a few consecutive blocks instead of every prototype. Every thread adds up the distances
+	// in its own array.
+	private final float[] columns;
+	private final ThreadLocal<float[]> distances;
+
+	// The urls to prefetch per cluster, unmodifiable
+	private final List<List<String>> recommendations;
+
+	private final Map<String, Integer> clientClusters;
+	private final Map<String, Integer> urlIndices;
+
+	// urls: the url of every dimension (requests.dat), clients: the hostname of every training client (clients.dat)
+	public PrefetchService(ClusteringAlgorithm algorithm, double prefetchThreshold, List<String> urls, List<String> clients)
+	{
+		this(algorithm.prototypes(), algorithm.assignment(), prefetchThreshold, urls, clients);
+	}
+
+	private PrefetchService(float[][] prototypes, int[] assignment, double prefetchThreshold, List<String> urls, List<String> clients)
+	{
+		this(prototypes.length, c -> prototypes[c], assignment.length, client -> assignment[client], prefetchThreshold, urls, clients);
+	}
+
+	// A service for a saved model (see ModelFile), with the prefetch threshold of the model. The prototypes
+	// and the assignment are read from the mapped file, the model is not restored in an algorithm first.
+	public PrefetchService(ModelFile.Model model, List<String> urls, List<String> clients)
+	{
+		this(model.clusters(), model::prototype, model.clients(), model::cluster, model.prefetchThreshold(), urls, clients);
+	}
+
+	private PrefetchService(int clusters, IntFunction<float[]> prototype, int assigned, IntUnaryOperator assignment,
+		double prefetchThreshold, List<String> urls, List<String> clients)
+	{
+		this.clusters = clusters;
+		dim = urls.size();
+
+		prototypes = new float[clusters * dim];
+		norms = new float[clusters];
+		recommendations = new ArrayList<>();
+		for (int c = 0; c < clusters; c++) {
+			float[] trained = prototype.apply(c);
+			if (trained.length != dim)
+				throw new IllegalArgumentException("the prototypes have " + trained.length + " dimensions, but there are " + dim + " urls");
+			System.arraycopy(trained, 0, prototypes, c * dim, dim);
+			norms[c] = DataMatrix.squaredNorm(trained);
+			recommendations.add(rank(trained, prefetchThreshold, urls));
+		}
+
+		columns = new float[dim * clusters];
+		for (int c = 0; c < clusters; c++)
+			for (int i = 0; i < dim; i++)
+				columns[i * clusters + c] = prototypes[c * dim + i];
+		distances = ThreadLocal.withInitial(() -> new float[clusters]);
+
+		clientClusters = new HashMap<>();
+		for (int client = 0; client < Math.min(clients.size(), assigned); client++) {
+			int cluster = assignment.applyAsInt(client);
+			if (cluster >= 0 && cluster < clusters)
+				clientClusters.putIfAbsent(clients.get(client), cluster);
+		}
+
+		urlIndices = new HashMap<>();
+		for (int i = 0; i < dim; i++)
+			urlIndices.putIfAbsent(urls.get(i), i);
+	}
+
+	// The urls with a prototype value of at least the threshold, from high to low value
+	private static List<String> rank(float[] prototype, double prefetchThreshold, List<String> urls)
+	{
+		List<Integer> prefetched = new ArrayList<>();
+		for (int i = 0; i < prototype.length; i++)
+			if (prototype[i] >= prefetchThreshold)
+				prefetched.add(i);
+		prefetched.sort((a, b) -> Float.compare(prototype[b], prototype[a]));
+
+		String[] ranked = new String[prefetched.size()];
+		for (int i = 0; i < ranked.length; i++)
+			ranked[i] = urls.get(prefetched.get(i));
+		return Collections.unmodifiableList(Arrays.asList(ranked));
+	}
+
+	public int clusters()
+	{
+		return clusters;
+	}
+
+	// The urls to prefetch for a cluster
+	public List<String> recommendations(int cluster)
+	{
+		return recommendations.get(cluster);
+	}
+
+	// Cluster of a training client, or -1 for an unknown hostname
+	public int cluster(String hostname)
+	{
+		Integer cluster = clientClusters.get(hostname);
+		return cluster == null ? -1 : cluster;
+	}
+
+	// Index of a url, or -1 for an unknown url
+	public int url(String url)
+	{
+		Integer index = urlIndices.get(url);
+		return index == null ? -1 : index;
+	}
+
+	// Cluster with the prototype nearest to the 0/1 vector with a 1 for every requested url (indices without
+	// duplicates). For such a vector x: |x-p|^2 = |p|^2 + sum over the requested urls of (1 - 2*p[i]),
+	// so only the requested urls have to be read.
+	public int nearestCluster(int[] requestedUrls)
+	{
+		float[] distance = distances.get();
+		for (int c = 0; c < clusters; c++)
+			distance[c] = norms[c] + requestedUrls.length;
+		for (int i = 0; i < requestedUrls.length; i++) {
+			int offset = requestedUrls[i] * clusters;
+			for (int c = 0; c < clusters; c++)
+				distance[c] -= 2 * columns[offset + c];
+		}
+
+		int best = -1;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int c = 0; c < clusters; c++) {
+			if (distance[c] < bestDistance) {
+				best = c;
+				bestDistance = distance[c];
+			}
+		}
+		return best;
+	}
+
+	// Cluster with the prototype nearest to any vector
+	public int nearestCluster(float[] vector)
+	{
+		int best = -1;
+		float bestDistance = Float.POSITIVE_INFINITY;
+		for (int c = 0; c < clusters; c++) {
+			int offset = c * dim;
+			float distance = 0;
+			for (int i = 0; i < dim && distance < bestDistance; i++) {
+				float difference = vector[i] - prototypes[offset + i];
+				distance += difference * difference;
+			}
+			if (distance < bestDistance) {
+				best = c;
+				bestDistance = distance;
+			}
+		}
+		return best;
+	}
+
+	// The urls to prefetch for a training client, or nothing for an unknown client
+	public List<String> recommend(String hostname)
+	{
+		int cluster = cluster(hostname);
+		return cluster < 0 ? Collections.<String>emptyList() : recommendations.get(cluster);
+	}
+
+	// The urls to prefetch for a client: by its cluster when it is a training client, otherwise
+	// by the cluster nearest to the urls it requested (null or empty when nothing is known).
+	public List<String> recommend(String hostname, int[] requestedUrls)
+	{
+		int cluster = cluster(hostname);
+		if (cluster < 0 && requestedUrls != null && requestedUrls.length > 0)
+			cluster = nearestCluster(requestedUrls);
+		return cluster < 0 ? Collections.<String>emptyList() : recommendations.get(cluster);
+	}
+
+	// Batch lookup: the cluster of every client (see recommend), -1 when nothing is known, in the given array.
+	// requestedUrls can be null, or contain null for clients without requests.
+	public void clusters(String[] hostnames, int[][] requestedUrls, int[] clusters)
+	{
+		for (int i = 0; i < hostnames.length; i++) {
+			int cluster = cluster(hostnames[i]);
+			if (cluster < 0 && requestedUrls != null && requestedUrls[i] != null && requestedUrls[i].length > 0)
+				cluster = nearestCluster(requestedUrls[i]);
+			clusters[i] = cluster;
+		}
+	}
+
+	// Batch lookup of the urls to prefetch for every client
+	public List<List<String>> recommend(String[] hostnames, int[][] requestedUrls)
+	{
+		int[] found = new int[hostnames.length];
+		clusters(hostnames, requestedUrls, found);
+
+		List<List<String>> result = new ArrayList<>(hostnames.length);
+		for (int cluster : found)
+			result.add(cluster < 0 ? Collections.<String>emptyList() : recommendations.get(cluster));
+		return result;
+	}
+}
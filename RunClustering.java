@@ -10,13 +10,25 @@ public class RunClustering
 
 	private static int dim;                 // dimensionality of the data and clusters
   
-	private static Vector<float[]> trainData;
-	private static Vector<float[]> testData;
+	private static DataMatrix trainData;
+	private static DataMatrix testData;
+
+	// The files the data was read from, for algorithms that read the data themselves
+	private static String trainFileName;
+	private static String testFileName;
 	
-	// Data from these vectors is not used in this implementation. 
-	// For generality they are included
+	// The url of every html (dimension) and the hostname of every client (row), used for the prefetch recommendations
 	private static Vector<String> requestsVector;
 	private static Vector<String> clientsVector;
+
+	// Prefetch threshold of the current algorithm, the recommendations use the same threshold
+	private static double prefetchThreshold;
+
+	// Whether the current algorithm was loaded from a saved model, it does not have to be trained
+	private static boolean loaded;
+
+	// Timings and counts of the training and testing of the current algorithm
+	private static Metrics.MemorySink metrics = new Metrics.MemorySink();
 	
 	public static BufferedReader in;
 
@@ -42,16 +54,18 @@ public class RunClustering
 		boolean startUp = true;
 		while (true) {
 			if (startUp) {
-				 // Ask for algoritm ans its apropriate parameters. Algorithm gets copies of the datavectors (fail-prove)
+				 // Ask for algoritm ans its apropriate parameters. Algorithm gets the (read-only) data matrices
 				initializeAlgorithm();
 
 				// Training
-				System.out.print("Perform the actual training! (hit enter)"); 
-				// You wait for authorisation because in real applications,training and or testing may take days.
-				waitForAuthorisation();   
-				System.out.println("Training ...");
-				ca.train();
-				System.out.println("Training finished.");
+				if (!loaded) {
+					System.out.print("Perform the actual training! (hit enter)"); 
+					// You wait for authorisation because in real applications,training and or testing may take days.
+					waitForAuthorisation();   
+					System.out.println("Training ...");
+					ca.train();
+					System.out.println("Training finished.");
+				}
 				
 				// Testing
 				System.out.print("Perform the testing! (hit enter)");  
@@ -70,7 +84,7 @@ public class RunClustering
 	{
 		int algID=4;
 		while (true) {
-			System.out.print("Run K-means (1), Leader-Follower(2), Kohonen SOM (3) or Quit(4) ? ");
+			System.out.print("Run K-means (1), Leader-Follower(2), Kohonen SOM (3), Quit(4), Mini-batch K-means (5), load a saved model(6) or retrain a saved model from where it is(7) ? ");
 			String line="";
 			try {
 				if ((line = in.readLine()) == null)
@@ -78,7 +92,7 @@ public class RunClustering
 				
 				algID = (new Integer(line)).intValue();
 				
-				if ((algID > 0) && (algID < 5))
+				if ((algID > 0) && (algID < 8))
 					break;
 			}
 			catch (Exception e) {
@@ -93,11 +107,11 @@ public class RunClustering
 	{
 		int resultID=0;
 		while (true) {
-			System.out.print("Show output printTest(1), vector members(2), vector prototypes(3), Quit(4) or set prefetchThreshold(5)? ");
+			System.out.print("Show output printTest(1), vector members(2), vector prototypes(3), Quit(4), set prefetchThreshold(5), show prefetchThreshold curve(6), prefetch recommendations(7), save the model(8), training metrics(9) or results per cluster(10)? ");
 			String line="";
 			try {
 				resultID = (new Integer(in.readLine())).intValue();
-				if ((resultID > 0)&&(resultID < 6)) 
+				if ((resultID > 0)&&(resultID < 11)) 
 					break;
 			}
 			catch(Exception e){
@@ -110,8 +124,21 @@ public class RunClustering
 	
 	public static void initializeAlgorithm()
 	{
+		// every algorithm starts with the default prefetch threshold
+		prefetchThreshold = 0.5;
+		loaded = false;
+
 		// determine which algorithm is requested (chooseAlgorithm), and ask for corresponding parameters
-		switch (chooseAlgorithm()) {
+		int algorithm = chooseAlgorithm();
+
+		// mini-batch k-means reads the data files itself, batch by batch, the other algorithms use the whole
+		// data, which is read the first time it is needed
+		if (algorithm != 4 && algorithm != 5 && trainData == null) {
+			trainData = readTrainData(trainFileName);
+			testData  = readTestData(testFileName);
+		}
+
+		switch (algorithm) {
 			case 1:
 				kmeansInit();
 				break;
@@ -123,9 +150,92 @@ public class RunClustering
 				break;
 			case 4:
 				System.exit(0);
+				break;
+			case 5:
+				miniBatchKMeansInit();
+				break;
+			case 6:
+				loadModel();
+				break;
+			case 7:
+				refreshModel();
 		}
+		metrics.clear();
+		ca.setMetrics(new Metrics(metrics));
 	 }
+
+	// Continues with a saved model (see ModelFile) instead of training a new one
+	public static void loadModel()
+	{
+		while (true) {
+			System.out.print("Model file ? ");
+			try {
+				String fileName = in.readLine();
+				if (fileName == null)
+					System.exit(0);
+
+				long start = System.currentTimeMillis();
+				ModelFile.Model model = ModelFile.map(fileName);
+				ca = ModelFile.load(model, trainData, testData);
+				prefetchThreshold = model.prefetchThreshold();
+				loaded = true;
+				System.out.println("Loaded " + ca.getClass().getName() + " in " + (System.currentTimeMillis() - start) + " ms");
+				break;
+			}
+			catch (IOException e) {
+				System.out.println("error occured while loading the model:" + e);
+			}
+		}
+	}
 	
+	// Trains a saved k-means or kohonen model again on the training data, starting from its prototypes (a warm
+	// start), which takes far less work than training from the start when the data changed a little
+	public static void refreshModel()
+	{
+		while (true) {
+			System.out.print("Model file ? ");
+			try {
+				String fileName = in.readLine();
+				if (fileName == null)
+					System.exit(0);
+
+				ModelFile.Model model = ModelFile.map(fileName);
+				if (model.dim() != dim)
+					throw new IOException(fileName + " has prototypes of size " + model.dim() + ", but the data has vectors of size " + dim);
+				float[][] prototypes = new float[model.clusters()][];
+				for (int i = 0; i < prototypes.length; i++)
+					prototypes[i] = model.prototype(i);
+
+				if (model.algorithm() == ModelFile.KMEANS) {
+					KMeans kmeans = new KMeans(model.clusters(), trainData, testData, dim);
+					kmeans.setInitialPrototypes(prototypes);
+					kmeans.setThreads(Runtime.getRuntime().availableProcessors());
+					ca = kmeans;
+				}
+				else if (model.algorithm() == ModelFile.KOHONEN) {
+					Kohonen kohonen = new Kohonen((int) model.parameter(0), (int) model.parameter(1), trainData, testData, dim);
+					kohonen.setInitialLearningRate(model.parameter(2));
+					kohonen.setBatch(model.parameter(3) != 0);
+					kohonen.setSchedule(Kohonen.Schedule.values()[(int) model.parameter(4)]);
+					kohonen.setInitialPrototypes(prototypes);
+					kohonen.setFineTuning(true);
+					// the map is already trained, so it soon stops changing
+					kohonen.setEarlyStopping(2, 1e-3);
+					kohonen.setThreads(Runtime.getRuntime().availableProcessors());
+					ca = kohonen;
+				}
+				else
+					throw new IOException("only k-means and kohonen models can be retrained");
+				ca.setPrefetchThreshold(model.prefetchThreshold());
+				prefetchThreshold = model.prefetchThreshold();
+				break;
+			}
+			catch (IOException e) {
+				System.out.println("error occured while loading the model:" + e);
+			}
+		}
+	}
+
 	public static void kmeansInit()
 	{
 		int k = 0;
@@ -140,9 +250,83 @@ public class RunClustering
 			} 
 		}
 		
+		int seeding = 0;
+		while (true) {  // get the seeding
+			System.out.print("Initial prototypes from random partition (1), k-means++ (2) or k-means|| (3) ? ");
+			try{ 
+				seeding = Integer.parseInt(in.readLine().trim()); 
+				if ((seeding > 0) && (seeding < 4))
+					break;
+			}
+			catch (Exception e){
+				System.out.println();
+			} 
+		}
+		
+		int restarts = 0;
+		while (true) {  // get the number of restarts
+			System.out.print("How many restarts, the best one is kept (1 for a single run) ? ");
+			try{ 
+				restarts = Integer.parseInt(in.readLine().trim()); 
+				if (restarts > 0)
+					break;
+			}
+			catch (Exception e){
+				System.out.println();
+			} 
+		}
+
+		int selection = 1;
+		while (restarts > 1) {  // get how the best restart is chosen
+			System.out.print("Keep the restart with the lowest sum of squares (1) or the highest hitrate+accuracy (2) ? ");
+			try{ 
+				selection = Integer.parseInt(in.readLine().trim()); 
+				if ((selection > 0) && (selection < 3))
+					break;
+			}
+			catch (Exception e){
+				System.out.println();
+			} 
+		}
+		
 		// The k-means model is now created
-		// java doesn't have a 'const' specifier, so for safety objects are copied
-		ca = new KMeans(k, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim);
+		// the data matrices are read-only, so all algorithms share the same copy
+		KMeans kmeans = new KMeans(k, trainData, testData, dim);
+		kmeans.setThreads(Runtime.getRuntime().availableProcessors());
+		kmeans.setSeeding(KMeans.Seeding.values()[seeding - 1]);
+		kmeans.setRestarts(restarts);
+		kmeans.setSelection(KMeans.Selection.values()[selection - 1]);
+		ca = kmeans;
+	}
+	
+	public static void miniBatchKMeansInit()
+	{
+		int k = 0;
+		int batchSize = 0;
+		while (true) {  // get k
+			System.out.print("How many clusters (k) ? ");
+			try{ 
+				k = Integer.parseInt(in.readLine().trim()); 
+				break;
+			}
+			catch (Exception e){
+				System.out.println();
+			} 
+		}
+
+		while (true) {
+			System.out.print("Batch size ? ");
+			try{ 
+				batchSize = Integer.parseInt(in.readLine().trim()); 
+				break;
+			}
+			catch (Exception e){
+				System.out.println();
+			} 
+		}
+
+		// The mini-batch k-means model reads the data files itself, one batch at a time
+		ca = new MiniBatchKMeans(k, trainFileName, testFileName, batchSize, dim);
 	}
 	
 	public static void leaderFollowerInit()
@@ -160,8 +344,8 @@ public class RunClustering
 		}
 		
 		// The leader-follower model is now created
-		// java doesn't have a 'const' specifier, so for safety objects are passed by reference
-		ca = new LeaderFollower(dis, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim);
+		// the data matrices are read-only, so all algorithms share the same copy
+		ca = new LeaderFollower(dis, trainData, testData, dim);
 	}
 	
 	public static void kohonenInit()
@@ -191,9 +375,53 @@ public class RunClustering
 			}
 		}
 		
+		int training = 0;
+		while (true) {
+			System.out.print("Online (1) or parallel batch (2) training ? ");
+			try{ 
+				training = Integer.parseInt(in.readLine().trim()); 
+				if ((training > 0) && (training < 3))
+					break;
+			}
+			catch(Exception e){ 
+				System.out.println();
+			}
+		}
+		
+		int schedule = 0;
+		while (true) {
+			System.out.print("Learning rate and radius decrease linear (1), exponential (2) or inverse time (3) ? ");
+			try{ 
+				schedule = Integer.parseInt(in.readLine().trim()); 
+				if ((schedule > 0) && (schedule < 4))
+					break;
+			}
+			catch(Exception e){ 
+				System.out.println();
+			}
+		}
+
+		int patience = 0;
+		while (true) {
+			System.out.print("Stop after how many epochs in a row without progress (0 to train all epochs) ? ");
+			try{ 
+				patience = Integer.parseInt(in.readLine().trim()); 
+				if (patience >= 0)
+					break;
+			}
+			catch(Exception e){ 
+				System.out.println();
+			}
+		}
+		
 		// The kohonen model is now created
-		// java doesn't have a 'const' specifier, so for safety objects are passed by reference
-		ca = new Kohonen(n, epochs, new Vector<float[]>(trainData), new Vector<float[]>(testData), dim);
+		// the data matrices are read-only, so all algorithms share the same copy
+		Kohonen kohonen = new Kohonen(n, epochs, trainData, testData, dim);
+		kohonen.setBatch(training == 2);
+		kohonen.setSchedule(Kohonen.Schedule.values()[schedule - 1]);
+		kohonen.setEarlyStopping(patience, 1e-3);
+		kohonen.setThreads(Runtime.getRuntime().availableProcessors());
+		ca = kohonen;
 	}
 	
 	public static boolean showResult()
@@ -215,97 +443,128 @@ public class RunClustering
 			case 5:
 				try {
 					System.out.print("PrefetchThreshold = ");                    
-					double prefetchThreshold = (new Double(in.readLine())).doubleValue();
+					prefetchThreshold = (new Double(in.readLine())).doubleValue();
 					ca.setPrefetchThreshold(prefetchThreshold);
 					System.out.println("Testing algorithm with prefetchThreshold = "+prefetchThreshold+"...");               
 					ca.test();
 				}
 				catch (Exception e){}
+				break;
+			case 6:
+				// all thresholds in one pass, instead of a test() per threshold
+				ca.thresholdCurve().show();
+				break;
+			case 7:
+				showRecommendations();
+				break;
+			case 8:
+				try {
+					System.out.print("Model file ? ");
+					String fileName = in.readLine();
+					ca.save(fileName);
+					System.out.println("Saved the model in " + fileName);
+				}
+				catch (IOException e) {
+					System.out.println("error occured while saving the model:" + e);
+				}
+				break;
+			case 9:
+				metrics.show();
+				break;
+			case 10:
+				// of the last test, every algorithm is tested right after training
+				if (ca.getEvaluation() != null)
+					ca.getEvaluation().show();
 		}  
 		return ret_val;
 	}
 
-	public static void readData()
+	// Asks for hostnames and shows the urls to prefetch for them, until an empty line
+	private static void showRecommendations()
 	{
-		trainData = new Vector<float[]>();
-		readTrainData("train.dat");
+		PrefetchService service = new PrefetchService(ca, prefetchThreshold, requestsVector, clientsVector);
+		try {
+			while (true) {
+				System.out.print("Client hostname (empty line to stop) ? ");
+				String hostname = in.readLine();
+				if (hostname == null || hostname.isEmpty())
+					break;
+
+				int cluster = service.cluster(hostname);
+				if (cluster < 0)
+					System.out.println("Unknown client");
+				else
+					System.out.println("Cluster " + cluster + ", prefetch: " + service.recommendations(cluster));
+			}
+		}
+		catch (IOException e) {
+			System.out.println();
+		}
+	}
 
-		testData  = new Vector<float[]>();
-		readTestData("test.dat");
+	public static void readData()
+	{
+		readData("train.dat", "test.dat", "requests.dat", "clients.dat");
 	}
 
 	public static void readData(String trainFileName, String testFileName, String requestFileName, String clientFileName)
 	{
+		RunClustering.trainFileName = trainFileName;
+		RunClustering.testFileName = testFileName;
+
 		requestsVector = new Vector<String>();
 		readRequests(requestFileName);
 
 		clientsVector  = new Vector<String>();
 		readClients(clientFileName);
 		
-		trainData = new Vector<float[]>();
-		readTrainData(trainFileName);
-		
-		testData  = new Vector<float[]>();
-		readTestData(testFileName);
+		dim = readDim(trainFileName, "traindata");
+		if (readDim(testFileName, "testdata") != dim) {
+			System.out.println("testdata vectors have different size");
+			System.exit(1);
+		}
 	}
-	 
-	private static void readTrainData(String trainFileName)
+
+	// Size of the vectors of a data file, without reading the whole file
+	private static int readDim(String fileName, String name)
 	{
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(trainFileName));
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
-				
-				if (dim == 0)
-					dim = st.countTokens();
-
-				else if (dim != st.countTokens()) {
-					System.out.println("traindata vectors have different size");
-					System.exit(1);
-				}
-
-				float[] data = new float[dim];
-				for (int i = 0; i < dim; i++)
-					data[i] = Float.parseFloat(st.nextToken());
-				
-				trainData.addElement(data);
-			}
-			
-			br.close();
+			return DatasetFile.dim(fileName);
 		}
-		catch(Exception e){
-			System.out.println("error occured while reading traindata:"+e);
+		catch (Exception e) {
+			System.out.println("error occured while reading " + name + ":" + e);
 			System.exit(1);
+			return 0;
 		}
 	}
+	 
+	private static DataMatrix readTrainData(String trainFileName)
+	{
+		return readMatrix(trainFileName, "traindata");
+	}
 	
-	private static void readTestData(String testFileName)
+	private static DataMatrix readTestData(String testFileName)
 	{
-		try{
-			BufferedReader br = new BufferedReader(new FileReader(testFileName));
-			String line = "";
-			while ((line = br.readLine()) != null) {
-				StringTokenizer st = new StringTokenizer(line, " \t\n\r\f,");
-				if (dim == 0)
-					dim = st.countTokens();
-
-				else if (dim != st.countTokens()) {
-					System.out.println("test vectors have different size");
-					System.exit(1);
-				}
+		return readMatrix(testFileName, "testdata");
+	}
 
-				float[] data = new float[dim];
-				for (int i = 0; i < dim; i++)
-					data[i] = Float.parseFloat(st.nextToken());
+	// Reads all vectors of a file into one contiguous block, or maps a binary data file (*.bin)
+	private static DataMatrix readMatrix(String fileName, String name)
+	{
+		try {
+			DataMatrix matrix = DatasetFile.load(fileName);
 
-				testData.addElement(data);
+			if (dim != matrix.dim()) {
+				System.out.println(name + " vectors have different size");
+				System.exit(1);
 			}
-			br.close();
+
+			return matrix;
 		}
-		catch (Exception e) {
-			System.out.println("error occured while reading testdata:"+e);
+		catch(Exception e){
+			System.out.println("error occured while reading " + name + ":"+e);
 			System.exit(1);
+			return null;
 		}
 	}
 
@@ -0,0 +1,206 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+public class SparseMatrix extends DataMatrix
+{
+	// Matrix in which most elements are 0 (a client requested a few of many htmls), in compressed sparse row form:
+	// the elements of row r that are not 0 are at the positions offsets[r] .. offsets[r+1]-1 of columns (their
+	// column, increasing) and values. Without values every stored element is 1, like in a BinaryMatrix.
+	// Distances and sums only visit the stored elements, so they take time proportional to the requests of
+	// a client instead of to dim. Moving a prototype still changes all of its dim elements.
+	private final IntBuffer offsets;
+	private final IntBuffer columns;
+	private final FloatBuffer values;
+
+	// Data is stored sparse when less than 1 in SPARSE_DENSITY elements is not 0, from there a sparse row
+	// takes less memory than the bits of a BinaryMatrix row
+	public static final int SPARSE_DENSITY = 32;
+
+	public SparseMatrix(IntBuffer offsets, IntBuffer columns, FloatBuffer values, int rows, int dim)
+	{
+		super(rows, dim);
+		if (offsets.capacity() < (long) rows + 1)
+			throw new IllegalArgumentException("offsets hold " + offsets.capacity() + " rows, need " + (rows + 1));
+		int nonZeros = offsets.get(rows);
+		if (columns.capacity() < nonZeros || (values != null && values.capacity() < nonZeros))
+			throw new IllegalArgumentException("buffers hold " + columns.capacity() + " elements, need " + nonZeros);
+		this.offsets = offsets;
+		this.columns = columns;
+		this.values = values;
+	}
+
+	// values can be null when all elements are 1
+	public SparseMatrix(int[] offsets, int[] columns, float[] values, int rows, int dim)
+	{
+		this(IntBuffer.wrap(offsets), IntBuffer.wrap(columns), values == null ? null : FloatBuffer.wrap(values), rows, dim);
+	}
+
+	// Stores the elements of a matrix that are not 0, without values when they are all 1
+	public static SparseMatrix pack(DataMatrix matrix)
+	{
+		int[] offsets = new int[matrix.rows() + 1];
+		int[] row = new int[matrix.dim()];
+		long nonZeros = 0;
+		for (int r = 0; r < matrix.rows(); r++) {
+			nonZeros += matrix.nonZeros(r, row);
+			if (nonZeros > Integer.MAX_VALUE)
+				throw new IllegalArgumentException("more than " + Integer.MAX_VALUE + " elements are not 0");
+			offsets[r + 1] = (int) nonZeros;
+		}
+
+		int[] columns = new int[(int) nonZeros];
+		float[] values = new float[(int) nonZeros];
+		boolean ones = true;
+		for (int r = 0; r < matrix.rows(); r++) {
+			int count = matrix.nonZeros(r, row);
+			for (int i = 0; i < count; i++) {
+				columns[offsets[r] + i] = row[i];
+				values[offsets[r] + i] = matrix.get(r, row[i]);
+				ones &= values[offsets[r] + i] == 1;
+			}
+		}
+		return new SparseMatrix(offsets, columns, ones ? null : values, matrix.rows(), matrix.dim());
+	}
+
+	// Whether data with this many elements that are not 0 should be stored sparse (see SPARSE_DENSITY)
+	public static boolean isSparse(long nonZeros, int rows, int dim)
+	{
+		return nonZeros * SPARSE_DENSITY < (long) rows * dim;
+	}
+
+	// Number of stored elements
+	public int nonZeros()
+	{
+		return offsets.get(rows);
+	}
+
+	// False when every stored element is 1
+	public boolean hasValues()
+	{
+		return values != null;
+	}
+
+	// Position of the first element of a row in columns/values, offset(rows) is the number of elements
+	public int offset(int row)
+	{
+		return offsets.get(row);
+	}
+
+	public int column(int position)
+	{
+		return columns.get(position);
+	}
+
+	public float value(int position)
+	{
+		return values == null ? 1 : values.get(position);
+	}
+
+	public float get(int row, int col)
+	{
+		// binary search in the columns of the row
+		int low = offsets.get(row);
+		int high = offsets.get(row + 1) - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int column = columns.get(middle);
+			if (column < col)
+				low = middle + 1;
+			else if (column > col)
+				high = middle - 1;
+			else
+				return value(middle);
+		}
+		return 0;
+	}
+
+	public int nonZeros(int row, int[] columns)
+	{
+		int from = offsets.get(row);
+		int count = offsets.get(row + 1) - from;
+		for (int i = 0; i < count; i++)
+			columns[i] = this.columns.get(from + i);
+		return count;
+	}
+
+	public double squaredNorm(int row)
+	{
+		if (values == null)
+			return offsets.get(row + 1) - offsets.get(row);
+		double norm = 0;
+		for (int i = offsets.get(row); i < offsets.get(row + 1); i++)
+			norm += (double) values.get(i) * values.get(i);
+		return norm;
+	}
+
+	public float squaredDistance(int row, float[] prototype)
+	{
+		return squaredDistance(row, prototype, squaredNorm(prototype));
+	}
+
+	// |x-p|^2 = |p|^2 + sum over the stored elements of x of (x[i]^2 - 2*x[i]*p[i]), which for 0/1 vectors
+	// is the same sum in the same order as in BinaryMatrix, so both give exactly the same distances
+	public float squaredDistance(int row, float[] prototype, float norm)
+	{
+		float distance = norm;
+		int to = offsets.get(row + 1);
+		if (values == null) {
+			for (int i = offsets.get(row); i < to; i++)
+				distance += 1 - 2 * prototype[columns.get(i)];
+		}
+		else {
+			for (int i = offsets.get(row); i < to; i++) {
+				float value = values.get(i);
+				distance += value * (value - 2 * prototype[columns.get(i)]);
+			}
+		}
+		// rounding can make the distance of a (nearly) equal prototype slightly negative
+		return Math.max(distance, 0);
+	}
+
+	public double[] variances()
+	{
+		double[] sum = new double[dim];
+		double[] sumOfSquares = new double[dim];
+		for (int i = 0; i < nonZeros(); i++) {
+			float value = value(i);
+			sum[columns.get(i)] += value;
+			sumOfSquares[columns.get(i)] += value * value;
+		}
+		double[] variances = new double[dim];
+		for (int i = 0; i < dim && rows > 0; i++)
+			variances[i] = sumOfSquares[i] / rows - (sum[i] / rows) * (sum[i] / rows);
+		return variances;
+	}
+
+	public void addTo(int row, double[] sum)
+	{
+		for (int i = offsets.get(row); i < offsets.get(row + 1); i++)
+			sum[columns.get(i)] += value(i);
+	}
+
+	public float moveTowards(int row, float[] prototype, double rate)
+	{
+		int next = offsets.get(row);
+		int to = offsets.get(row + 1);
+		float norm = 0;
+		for (int i = 0; i < dim; i++) {
+			float element = 0;
+			if (next < to && columns.get(next) == i)
+				element = value(next++);
+			float value = (float) (1-rate) * prototype[i] + (float) rate * element;
+			// repeatedly moving away from a 0 ends in subnormal floats, which are very slow to compute with
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	public float[] copyRow(int row)
+	{
+		float[] vector = new float[dim];
+		for (int i = offsets.get(row); i < offsets.get(row + 1); i++)
+			vector[columns.get(i)] = value(i);
+		return vector;
+	}
+}
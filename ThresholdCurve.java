@@ -0,0 +1,242 @@
+import java.util.*;
+
+public class ThresholdCurve
+{
+	// Hitrate and accuracy for every possible prefetch threshold, computed in a single pass over the test data
+	// instead of one test() per threshold. An html is prefetched for a cluster when its prototype value is
+	// at least the threshold, so only the distinct prototype values give different results.
+	//
+	// For every cluster c and html j the pass counts requested[c][j], the number of members of c that requested j,
+	// and hitWeight[c][j], the sum of 1/(number of requests) over those members. With P(c) the htmls prefetched for c:
+	//   sum of the hitrates of the members of c   = sum over j in P(c) of hitWeight[c][j]
+	//   sum of the accuracies of the members of c = sum over j in P(c) of requested[c][j], divided by |P(c)|
+	// Lowering the threshold step by step only adds htmls to the P(c), so both sums can be updated incrementally.
+	//
+	// A cluster only has counts for the htmls its members requested, a few of the dim htmls with sparse data,
+	// so the counts are kept for the (cluster, html) pairs that occur: in an open addressing hash table on
+	// c*dim + j, which grows when it is half full. Memory depends on the requested pairs, not on k*dim.
+	// A client without a cluster (-1, see ModelFile) counts as hitrate 0 and accuracy 0, like in Evaluation.
+
+	private final float[][] prototypes;
+	private final int dim;
+
+	// pairs[slot] is c*dim + j + 1 of the pair in the slot, 0 for an empty slot
+	private long[] pairs;
+	private int[] requested;
+	private double[] hitWeight;
+	private int size;
+
+	// The columns of a test client that are not 0, only these can be requested htmls
+	private final int[] nonZeros;
+
+	// Number of test clients added
+	private int clients;
+
+	// The curve, ordered from the highest to the lowest threshold
+	private double[] thresholds;
+	private double[] hitrates;
+	private double[] accuracies;
+
+	public ThresholdCurve(float[][] prototypes)
+	{
+		this.prototypes = prototypes;
+		this.dim = prototypes.length == 0 ? 0 : prototypes[0].length;
+		pairs = new long[1024];
+		requested = new int[pairs.length];
+		hitWeight = new double[pairs.length];
+		nonZeros = new int[dim];
+	}
+
+	// Curve of a model with the cluster of every client in assignment, tested on testData
+	public static ThresholdCurve of(float[][] prototypes, int[] assignment, DataMatrix testData)
+	{
+		ThresholdCurve curve = new ThresholdCurve(prototypes);
+		for (int member = 0; member < testData.rows(); member++)
+			curve.add(assignment[member], testData, member);
+		curve.compute();
+		return curve;
+	}
+
+	// Adds a test client that is a member of cluster
+	public void add(int cluster, DataMatrix testData, int row)
+	{
+		int count = testData.nonZeros(row, nonZeros);
+		int requests = 0;
+		for (int n = 0; n < count; n++)
+			if (testData.get(row, nonZeros[n]) == 1.0)
+				requests++;
+
+		boolean member = cluster >= 0 && cluster < prototypes.length;
+		for (int n = 0; n < count && requests > 0 && member; n++) {
+			int i = nonZeros[n];
+			if (testData.get(row, i) == 1.0) {
+				int slot = slot((long) cluster * dim + i, true);
+				requested[slot]++;
+				hitWeight[slot] += 1.0 / requests;
+			}
+		}
+		clients++;
+	}
+
+	// Slot of the pair with index c*dim + j, -1 if it was never requested and add is false
+	private int slot(long index, boolean add)
+	{
+		long key = index + 1;
+		int mask = pairs.length - 1;
+		long hash = key * 0x9E3779B97F4A7C15L;
+		int slot = (int) (hash ^ (hash >>> 32)) & mask;
+		while (pairs[slot] != key) {
+			if (pairs[slot] == 0) {
+				if (!add)
+					return -1;
+				if (2 * (size + 1) > pairs.length) {
+					grow();
+					return slot(index, true);
+				}
+				pairs[slot] = key;
+				size++;
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void grow()
+	{
+		long[] oldPairs = pairs;
+		int[] oldRequested = requested;
+		double[] oldHitWeight = hitWeight;
+		pairs = new long[2 * oldPairs.length];
+		requested = new int[pairs.length];
+		hitWeight = new double[pairs.length];
+		size = 0;
+		for (int old = 0; old < oldPairs.length; old++) {
+			if (oldPairs[old] == 0)
+				continue;
+			int slot = slot(oldPairs[old] - 1, true);
+			requested[slot] = oldRequested[old];
+			hitWeight[slot] = oldHitWeight[old];
+		}
+	}
+
+	// Computes the curve from the clients added so far
+	public void compute()
+	{
+		int k = prototypes.length;
+
+		// sort all prototype values (from high to low when read backwards), NaN (empty clusters) is never prefetched
+		long[] keys = new long[k * dim];
+		int entries = 0;
+		for (int c = 0; c < k; c++) {
+			for (int j = 0; j < dim; j++) {
+				float value = prototypes[c][j];
+				if (Float.isNaN(value))
+					continue;
+				// order preserving int for the float, the index in the low bits
+				int bits = Float.floatToIntBits(value);
+				bits ^= (bits >> 31) & 0x7fffffff;
+				keys[entries++] = ((long) bits << 32) | (c * dim + j);
+			}
+		}
+		Arrays.sort(keys, 0, entries);
+
+		double[] curveThresholds = new double[entries];
+		double[] curveHitrates = new double[entries];
+		double[] curveAccuracies = new double[entries];
+		int points = 0;
+
+		long[] requestedPrefetched = new long[k];
+		int[] totalPrefetched = new int[k];
+		double hitrateSum = 0;
+		double accuracySum = 0;
+
+		for (int e = entries - 1; e >= 0; ) {
+			float threshold = prototypes[index(keys[e]) / dim][index(keys[e]) % dim];
+
+			// prefetch every html with this value
+			for (; e >= 0; e--) {
+				int c = index(keys[e]) / dim;
+				int j = index(keys[e]) % dim;
+				if (prototypes[c][j] != threshold)
+					break;
+
+				int slot = slot((long) c * dim + j, false);
+				if (totalPrefetched[c] > 0)
+					accuracySum -= (double) requestedPrefetched[c] / totalPrefetched[c];
+				if (slot >= 0)
+					requestedPrefetched[c] += requested[slot];
+				totalPrefetched[c]++;
+				accuracySum += (double) requestedPrefetched[c] / totalPrefetched[c];
+				if (slot >= 0)
+					hitrateSum += hitWeight[slot];
+			}
+
+			curveThresholds[points] = threshold;
+			curveHitrates[points] = clients == 0 ? 0 : hitrateSum / clients;
+			curveAccuracies[points] = clients == 0 ? 0 : accuracySum / clients;
+			points++;
+		}
+
+		thresholds = Arrays.copyOf(curveThresholds, points);
+		hitrates = Arrays.copyOf(curveHitrates, points);
+		accuracies = Arrays.copyOf(curveAccuracies, points);
+	}
+
+	private static int index(long key)
+	{
+		return (int) key;
+	}
+
+	// Number of points on the curve
+	public int size()
+	{
+		return thresholds.length;
+	}
+
+	public double threshold(int point)
+	{
+		return thresholds[point];
+	}
+
+	public double hitrate(int point)
+	{
+		return hitrates[point];
+	}
+
+	public double accuracy(int point)
+	{
+		return accuracies[point];
+	}
+
+	// Point with the same result as this threshold (the lowest threshold on the curve that is at least as high),
+	// or -1 if the threshold is higher than every prototype value, in which case nothing is prefetched
+	public int at(double threshold)
+	{
+		int point = -1;
+		for (int i = 0; i < size() && thresholds[i] >= threshold; i++)
+			point = i;
+		return point;
+	}
+
+	// Point with the highest hitrate+accuracy, or -1 for an empty curve
+	public int best()
+	{
+		int best = -1;
+		for (int point = 0; point < size(); point++)
+			if (best == -1 || hitrates[point] + accuracies[point] > hitrates[best] + accuracies[best])
+				best = point;
+		return best;
+	}
+
+	public void show()
+	{
+		System.out.println("Threshold\tHitrate\tAccuracy\tHitrate+Accuracy");
+		for (int point = 0; point < size(); point++)
+			System.out.println(thresholds[point] + "\t" + hitrates[point] + "\t" + accuracies[point] + "\t" + (hitrates[point] + accuracies[point]));
+
+		int best = best();
+		if (best >= 0)
+			System.out.println("Best prefetch threshold=" + thresholds[best] + " (Hitrate+Accuracy=" + (hitrates[best] + accuracies[best]) + ")");
+	}
+}
@@ -0,0 +1,244 @@
+import java.io.*;
+import java.util.*;
+
+public class ClusteringWorkload implements bench.Workload
+{
+	// Drives the clustering algorithms for the benchmarks in package bench (see bench.Workload)
+
+	// The algorithms print their progress and members, which is not what we want to measure
+	private static final PrintStream QUIET = new PrintStream(OutputStream.nullOutputStream());
+
+	private DataMatrix trainData;
+	private DataMatrix testData;
+
+	private ClusteringAlgorithm algorithm;
+
+	// The prefetch service, the hostname of every client and the urls requested by every test client
+	private PrefetchService service;
+	private String[] hostnames;
+	private int[][] requestedUrls;
+
+	private String textFileName;
+	private String binaryFileName;
+	private String modelFileName;
+
+	private Random random;
+
+	public void generate(int clients, int dim, int groups, long seed, String encoding)
+	{
+		random = new Random(seed);
+
+		// every group requests its own 10% of the htmls often and the rest rarely
+		float[][] profiles = new float[groups][dim];
+		for (float[] profile : profiles)
+			for (int i = 0; i < dim; i++)
+				profile[i] = random.nextInt(10) == 0 ? 0.6f : 0.02f;
+
+		float[] train = new float[clients * dim];
+		float[] test = new float[clients * dim];
+		for (int client = 0; client < clients; client++) {
+			float[] profile = profiles[random.nextInt(groups)];
+			for (int i = 0; i < dim; i++) {
+				train[client * dim + i] = random.nextFloat() < profile[i] ? 1 : 0;
+				test[client * dim + i] = random.nextFloat() < profile[i] ? 1 : 0;
+			}
+		}
+
+		trainData = new FloatMatrix(train, clients, dim);
+		testData = new FloatMatrix(test, clients, dim);
+		if (encoding.equals("bits")) {
+			trainData = BinaryMatrix.pack(trainData);
+			testData = BinaryMatrix.pack(testData);
+		}
+	}
+
+	public void train(String name, int size, int threads)
+	{
+		int dim = trainData.dim();
+		switch (name) {
+			case "kmeans":
+				KMeans kmeans = new KMeans(size, trainData, testData, dim);
+				kmeans.setSeed(1);
+				kmeans.setThreads(threads);
+				algorithm = kmeans;
+				break;
+			case "kohonen":
+				algorithm = new Kohonen((int) Math.round(Math.sqrt(size)), 10, trainData, testData, dim);
+				break;
+			case "kohonenbatch":
+				Kohonen kohonen = new Kohonen((int) Math.round(Math.sqrt(size)), 10, trainData, testData, dim);
+				kohonen.setBatch(true);
+				kohonen.setThreads(threads);
+				algorithm = kohonen;
+				break;
+			case "leaderfollower":
+				// about the distance between two clients of the same group
+				algorithm = new LeaderFollower(Math.sqrt(dim * 0.1), trainData, testData, dim);
+				break;
+			default:
+				throw new IllegalArgumentException("unknown algorithm " + name);
+		}
+
+		// only the training is measured, not building the member lists to print
+		algorithm.setVerbose(false);
+		PrintStream out = System.out;
+		System.setOut(QUIET);
+		try {
+			algorithm.train();
+		}
+		finally {
+			System.setOut(out);
+		}
+	}
+
+	public void test()
+	{
+		algorithm.test();
+	}
+
+	public void prefetchService(double prefetchThreshold)
+	{
+		List<String> urls = new ArrayList<>();
+		for (int i = 0; i < trainData.dim(); i++)
+			urls.add("/html" + i + ".html");
+		hostnames = new String[trainData.rows()];
+		for (int client = 0; client < hostnames.length; client++)
+			hostnames[client] = "client" + client + ".example.com";
+		service = new PrefetchService(algorithm, prefetchThreshold, urls, Arrays.asList(hostnames));
+
+		requestedUrls = new int[testData.rows()][];
+		for (int client = 0; client < testData.rows(); client++) {
+			List<Integer> requested = new ArrayList<>();
+			for (int i = 0; i < testData.dim(); i++)
+				if (testData.get(client, i) == 1)
+					requested.add(i);
+			requestedUrls[client] = requested.stream().mapToInt(Integer::intValue).toArray();
+		}
+	}
+
+	public int recommendKnown(int client)
+	{
+		return service.recommend(hostnames[client]).size();
+	}
+
+	public int recommendUnknown(int client)
+	{
+		return service.recommend("unknown.example.com", requestedUrls[client]).size();
+	}
+
+	public int scan(int prototypes)
+	{
+		float[][] centers = new float[prototypes][];
+		for (int i = 0; i < prototypes; i++)
+			centers[i] = trainData.copyRow(random.nextInt(trainData.rows()));
+
+		NearestPrototype search = new NearestPrototype(trainData);
+		search.setPrototypes(centers);
+		int checksum = 0;
+		for (int row = 0; row < trainData.rows(); row++)
+			checksum += search.nearest(row);
+		return checksum;
+	}
+
+	public double update(double rate)
+	{
+		float[] prototype = trainData.copyRow(0);
+		double[] sum = new double[trainData.dim()];
+		double checksum = 0;
+		for (int row = 0; row < trainData.rows(); row++) {
+			checksum += trainData.moveTowards(row, prototype, rate);
+			trainData.addTo(row, sum);
+		}
+		return checksum + sum[0];
+	}
+
+	public void writeFiles(String directory)
+	{
+		textFileName = new File(directory, "train.dat").getPath();
+		binaryFileName = new File(directory, "train.bin").getPath();
+		try (PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(textFileName)))) {
+			for (int row = 0; row < trainData.rows(); row++) {
+				for (int i = 0; i < trainData.dim(); i++)
+					writer.print(trainData.get(row, i) + " ");
+				writer.println();
+			}
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+
+		try {
+			DatasetFile.write(trainData, binaryFileName, trainData instanceof BinaryMatrix ? DatasetFile.BITS : DatasetFile.FLOAT32);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int loadText()
+	{
+		try {
+			BatchReader reader = new BatchReader(textFileName, Integer.MAX_VALUE);
+			DataMatrix matrix = reader.next();
+			reader.close();
+			return checksum(matrix);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int loadBinary()
+	{
+		try {
+			return checksum(DatasetFile.map(binaryFileName));
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void saveModel(String directory)
+	{
+		modelFileName = new File(directory, "model.bin").getPath();
+		try {
+			algorithm.save(modelFileName);
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int mapModel()
+	{
+		try {
+			ModelFile.Model model = ModelFile.map(modelFileName);
+			int checksum = 0;
+			for (int client = 0; client < model.clients(); client++)
+				checksum += model.cluster(client);
+			return checksum;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public int loadModel()
+	{
+		try {
+			return ModelFile.load(modelFileName, trainData, testData).prototypes().length;
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// reads the first and last element of every row, so every page of the data is touched
+	private static int checksum(DataMatrix matrix)
+	{
+		float sum = 0;
+		for (int row = 0; row < matrix.rows(); row++)
+			sum += matrix.get(row, 0) + matrix.get(row, matrix.dim() - 1);
+		return (int) sum;
+	}
+}
@@ -0,0 +1,43 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The distance kernel: nearest prototype search for every client, on dense and bit-packed data
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DistanceBenchmark
+{
+	@Param({"20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	// number of prototypes
+	@Param({"8", "32", "128"})
+	public int size;
+
+	@Param({"float", "bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, encoding);
+	}
+
+	@Benchmark
+	public int scan()
+	{
+		return workload.scan(size);
+	}
+}
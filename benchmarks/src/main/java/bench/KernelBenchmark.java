@@ -0,0 +1,64 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The kernels of the training (see Kernels) one element at a time and with the Vector API. Which kernels are
+// used is decided once per JVM, so every variant runs in its own fork, the vector one on Java 17 or later.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class KernelBenchmark
+{
+	@Param({"20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	@Param({"32"})
+	public int size;
+
+	@Param({"float", "bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, encoding);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dkernels=scalar")
+	public int scanScalar()
+	{
+		return workload.scan(size);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+	public int scanVector()
+	{
+		return workload.scan(size);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = "-Dkernels=scalar")
+	public double updateScalar()
+	{
+		return workload.update(0.01);
+	}
+
+	@Benchmark
+	@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+	public double updateVector()
+	{
+		return workload.update(0.01);
+	}
+}
@@ -0,0 +1,68 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Loading the training data: parsing the text format versus mapping the binary format
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoadBenchmark
+{
+	@Param({"2000", "20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	@Param({"float", "bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	private Path directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory("clustering-bench");
+		workload = Workload.create();
+		workload.generate(clients, dim, 8, 42, encoding);
+		workload.writeFiles(directory.toString());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		try (var files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> {
+				try {
+					Files.delete(file);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public int loadText()
+	{
+		return workload.loadText();
+	}
+
+	@Benchmark
+	public int loadBinary()
+	{
+		return workload.loadBinary();
+	}
+}
@@ -0,0 +1,69 @@
+package bench;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.*;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Starting from a saved model: mapping the model file versus loading it in its algorithm
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ModelBenchmark
+{
+	@Param({"20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	@Param({"16", "256"})
+	public int k;
+
+	private Workload workload;
+
+	private Path directory;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException
+	{
+		directory = Files.createTempDirectory("clustering-bench");
+		workload = Workload.create();
+		workload.generate(clients, dim, 8, 42, "float");
+		workload.train("kmeans", k, Runtime.getRuntime().availableProcessors());
+		workload.saveModel(directory.toString());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException
+	{
+		try (var files = Files.walk(directory)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> {
+				try {
+					Files.delete(file);
+				}
+				catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			});
+		}
+	}
+
+	@Benchmark
+	public int mapModel()
+	{
+		return workload.mapModel();
+	}
+
+	@Benchmark
+	public int loadModel()
+	{
+		return workload.loadModel();
+	}
+}
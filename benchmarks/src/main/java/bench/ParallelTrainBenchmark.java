@@ -0,0 +1,50 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Complete training runs of the algorithms that train on several threads: k-means and the
+// batch training of kohonen. The models are the same for any number of threads, only the time differs.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelTrainBenchmark
+{
+	@Param({"kmeans", "kohonenbatch"})
+	public String algorithm;
+
+	@Param({"2000", "20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	// k for kmeans, number of nodes for kohonen
+	@Param({"8", "32"})
+	public int size;
+
+	@Param({"1", "4"})
+	public int threads;
+
+	@Param({"bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, encoding);
+	}
+
+	@Benchmark
+	public void train()
+	{
+		workload.train(algorithm, size, threads);
+	}
+}
@@ -0,0 +1,55 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Latency of a single prefetch recommendation, sampled so the report has percentiles (p99).
+// A known client is found by hostname, an unknown one by a nearest prototype search over its urls.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PrefetchBenchmark
+{
+	@Param({"kmeans"})
+	public String algorithm;
+
+	@Param({"20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	@Param({"32", "256"})
+	public int size;
+
+	private Workload workload;
+
+	private int client;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, "bits");
+		workload.train(algorithm, size, 1);
+		workload.prefetchService(0.5);
+	}
+
+	@Benchmark
+	public int known()
+	{
+		client = client + 1 == clients ? 0 : client + 1;
+		return workload.recommendKnown(client);
+	}
+
+	@Benchmark
+	public int unknown()
+	{
+		client = client + 1 == clients ? 0 : client + 1;
+		return workload.recommendUnknown(client);
+	}
+}
@@ -0,0 +1,46 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// The test phase (hitrate and accuracy) of a model that is trained once per trial
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TestBenchmark
+{
+	@Param({"kmeans", "kohonen", "leaderfollower"})
+	public String algorithm;
+
+	@Param({"2000", "20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	@Param({"8", "32"})
+	public int size;
+
+	@Param({"bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, encoding);
+		workload.train(algorithm, size, 1);
+	}
+
+	@Benchmark
+	public void test()
+	{
+		workload.test();
+	}
+}
@@ -0,0 +1,48 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+// Complete training runs on synthetic data. Every invocation trains a new model, so this
+// is measured as single shots. The algorithms train on one thread, see ParallelTrainBenchmark
+// for the ones that use more.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrainBenchmark
+{
+	@Param({"kmeans", "kohonen", "leaderfollower"})
+	public String algorithm;
+
+	@Param({"2000", "20000"})
+	public int clients;
+
+	@Param({"200", "1000"})
+	public int dim;
+
+	// k for kmeans, number of nodes for kohonen
+	@Param({"8", "32"})
+	public int size;
+
+	@Param({"bits"})
+	public String encoding;
+
+	private Workload workload;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		workload = Workload.create();
+		workload.generate(clients, dim, size, 42, encoding);
+	}
+
+	@Benchmark
+	public void train()
+	{
+		workload.train(algorithm, size, 1);
+	}
+}
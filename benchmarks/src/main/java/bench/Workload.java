@@ -0,0 +1,60 @@
+package bench;
+
+// JMH benchmarks have to be in a named package, and the clustering classes are in the default package,
+// which can not be imported from a named package. ClusteringWorkload (default package) implements
+// this interface and is loaded by name once, after that the benchmarks call it like any other object.
+public interface Workload
+{
+	// Creates synthetic train/test data shaped like train.dat/test.dat: 0/1 vectors of clients that
+	// belong to one of a number of groups, each group with its own set of popular htmls.
+	void generate(int clients, int dim, int groups, long seed, String encoding);
+
+	// Creates and trains a new model; size is k (kmeans), the number of nodes (kohonen and kohonenbatch,
+	// rounded to a square map) or the expected number of clusters (leaderfollower). Only kmeans and
+	// kohonenbatch (batch training) use more than one thread, the others ignore threads.
+	void train(String algorithm, int size, int threads);
+
+	// Tests the last trained model
+	void test();
+
+	// Nearest prototype search for every training vector against the given number of prototypes,
+	// returns a checksum of the results
+	int scan(int prototypes);
+
+	// Moves a prototype towards every training vector and adds every training vector to a sum, the updates
+	// of kohonen and k-means, returns a checksum
+	double update(double rate);
+
+	// Writes the training data as text and as a binary data file to the directory
+	void writeFiles(String directory);
+
+	// Loads the files written by writeFiles, returns a checksum that touches every row
+	int loadText();
+	int loadBinary();
+
+	// Saves the last trained model in the directory (see ModelFile)
+	void saveModel(String directory);
+
+	// Maps the saved model and reads the cluster of every client, or loads it in its algorithm,
+	// returns a checksum
+	int mapModel();
+	int loadModel();
+
+	// Builds a prefetch service on the last trained model, with a hostname for every training client
+	void prefetchService(double prefetchThreshold);
+
+	// Recommendation for a training client (by hostname) or for a client that is unknown to the service
+	// (by the urls of test client i), returns the number of recommended urls
+	int recommendKnown(int client);
+	int recommendUnknown(int client);
+
+	static Workload create()
+	{
+		try {
+			return (Workload) Class.forName("ClusteringWorkload").getDeclaredConstructor().newInstance();
+		}
+		catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("ClusteringWorkload is missing from the classpath", e);
+		}
+	}
+}
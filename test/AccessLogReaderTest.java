@@ -0,0 +1,141 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.time.*;
+import java.util.*;
+import java.util.zip.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class AccessLogReaderTest
+{
+	@TempDir
+	Path directory;
+
+	private static AccessLogReader.Request parse(String line)
+	{
+		byte[] data = ("x" + line + "x").getBytes(StandardCharsets.ISO_8859_1);
+		AccessLogReader.Request request = new AccessLogReader.Request();
+		// the line is a range of the array, like the lines of a read buffer
+		return AccessLogReader.parse(data, 1, data.length - 1, request) ? request : null;
+	}
+
+	private static long parseTime(String time)
+	{
+		byte[] data = time.getBytes(StandardCharsets.ISO_8859_1);
+		return AccessLogReader.parseTime(data, 0, data.length);
+	}
+
+	private static long epochSecond(int year, int month, int day, int hour, int minute, int second, ZoneOffset zone)
+	{
+		return OffsetDateTime.of(year, month, day, hour, minute, second, 0, zone).toEpochSecond();
+	}
+
+	@Test
+	public void parsesAGoodLine()
+	{
+		String line = "piweba3y.prodigy.com - - [01/Jul/1995:00:00:01 -0400] \"GET /shuttle/countdown/index.html HTTP/1.0\" 200 3985";
+		AccessLogReader.Request request = parse(line);
+		assertNotNull(request);
+		assertEquals("piweba3y.prodigy.com", line.substring(request.hostFrom - 1, request.hostTo - 1));
+		assertEquals("/shuttle/countdown/index.html", line.substring(request.pathFrom - 1, request.pathTo - 1));
+		assertEquals(epochSecond(1995, 7, 1, 0, 0, 1, ZoneOffset.ofHours(-4)), request.time);
+	}
+
+	@Test
+	public void rejectsAMalformedLine()
+	{
+		assertNull(parse("this is not a log line"));
+		assertNull(parse("host - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\""));
+		assertNull(parse("host - - [yesterday] \"GET /a.html HTTP/1.0\" 200 10"));
+		assertNull(parse(" - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\" 200 10"));
+	}
+
+	// Lines in the format that do not count are parsed, but get no time
+	@Test
+	public void onlySuccessfulGetsCount()
+	{
+		assertEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"POST /a.html HTTP/1.0\" 200 10").time);
+		assertEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"HEAD /a.html HTTP/1.0\" 200 10").time);
+		assertEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\" 404 10").time);
+		assertEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\" 302 10").time);
+		assertNotEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\" 304 0").time);
+		assertNotEquals(Long.MIN_VALUE, parse("host - - [01/Jul/1995:00:00:01 -0400] \"GET /a.html HTTP/1.0\" 204 -").time);
+	}
+
+	@Test
+	public void leavesOutTheQueryString()
+	{
+		String line = "host - - [01/Jul/1995:00:00:01 -0400] \"GET /search/find.html?q=shuttle HTTP/1.0\" 200 10";
+		AccessLogReader.Request request = parse(line);
+		assertEquals("/search/find.html", line.substring(request.pathFrom - 1, request.pathTo - 1));
+	}
+
+	@Test
+	public void parsesTimesWithAndWithoutZone()
+	{
+		assertEquals(epochSecond(1995, 7, 1, 13, 5, 9, ZoneOffset.ofHours(-4)), parseTime("01/Jul/1995:13:05:09 -0400"));
+		assertEquals(epochSecond(1995, 12, 31, 23, 59, 59, ZoneOffset.ofHoursMinutes(5, 30)), parseTime("31/Dec/1995:23:59:59 +0530"));
+		assertEquals(epochSecond(1995, 1, 15, 8, 0, 0, ZoneOffset.UTC), parseTime("15/Jan/1995:08:00:00"));
+	}
+
+	@Test
+	public void rejectsBadMonthsAndDays()
+	{
+		assertEquals(Long.MIN_VALUE, parseTime("01/Jux/1995:00:00:00 -0400"));
+		assertEquals(Long.MIN_VALUE, parseTime("01/anF/1995:00:00:00 -0400"));
+		assertEquals(Long.MIN_VALUE, parseTime("32/Jul/1995:00:00:00 -0400"));
+		assertEquals(Long.MIN_VALUE, parseTime("00/Jul/1995:00:00:00 -0400"));
+		assertEquals(Long.MIN_VALUE, parseTime("31/Jun/1995:00:00:00 -0400"));
+		assertEquals(Long.MIN_VALUE, parseTime("01/Jul/1995:00:00:00 -04x0"));
+	}
+
+	// A plain and a gzipped log: the top urls and clients over both files, split in train and test data by time
+	@Test
+	public void readsPlainAndGzippedLogs() throws Exception
+	{
+		Path plain = directory.resolve("first.log");
+		Files.write(plain, List.of(
+			"h1 - - [01/Jul/1995:00:00:01 -0400] \"GET /x.html HTTP/1.0\" 200 10",
+			"h1 - - [01/Jul/1995:00:00:02 -0400] \"GET /y.html HTTP/1.0\" 200 10",
+			"h2 - - [01/Jul/1995:00:00:03 -0400] \"GET /x.html HTTP/1.0\" 304 0",
+			"h3 - - [01/Jul/1995:00:00:04 -0400] \"GET /z.gif HTTP/1.0\" 200 10",
+			"not a log line"), StandardCharsets.ISO_8859_1);
+		Path gzipped = directory.resolve("second.log.gz");
+		try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(gzipped)), StandardCharsets.ISO_8859_1)) {
+			writer.write("h2 - - [02/Jul/1995:00:00:01 -0400] \"GET /y.html?q=1 HTTP/1.0\" 200 10\r\n");
+			writer.write("h1 - - [02/Jul/1995:00:00:02 -0400] \"GET /x.html HTTP/1.0\" 200 10\r\n");
+			writer.write("h3 - - [02/Jul/1995:00:00:03 -0400] \"GET /w.html HTTP/1.0\" 404 10\r\n");
+			writer.write("h3 - - [02/Jul/1995:00:00:04 -0400] \"POST /w.html HTTP/1.0\" 200 10\r\n");
+			// the last line has no newline
+			writer.write("h4 - - [02/Jul/1995:00:00:05 -0400] \"GET /w.html HTTP/1.0\" 200 10");
+		}
+
+		AccessLogReader reader = new AccessLogReader();
+		reader.setUrls(2);
+		reader.setClients(2);
+		reader.setThreads(2);
+		reader.setSplit("02/Jul/1995:00:00:00 -0400");
+		reader.read(List.of(plain.toString(), gzipped.toString()));
+
+		assertEquals(10, reader.lines());
+		assertEquals(1, reader.skipped());
+		assertEquals(6, reader.requests());
+		// h1 has 3 requests, h2 2 and h4 1; /x.html has 3, /y.html 2 and /w.html 1
+		assertEquals(List.of("h1", "h2"), reader.clients());
+		assertEquals(List.of("/x.html", "/y.html"), reader.urls());
+
+		assertMatrix(new float[][] {{1, 1}, {1, 0}}, reader.trainData());
+		assertMatrix(new float[][] {{1, 0}, {0, 1}}, reader.testData());
+	}
+
+	private static void assertMatrix(float[][] expected, DataMatrix actual)
+	{
+		assertEquals(expected.length, actual.rows());
+		for (int row = 0; row < expected.length; row++)
+			assertArrayEquals(expected[row], actual.copyRow(row));
+	}
+}
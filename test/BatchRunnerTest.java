@@ -0,0 +1,99 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BatchRunnerTest
+{
+	private static final int ROWS = 600;
+	private static final int DIM = 30;
+
+	@TempDir
+	Path directory;
+
+	private String train;
+	private String test;
+
+	@BeforeEach
+	public void writeData() throws Exception
+	{
+		train = directory.resolve("train.bin").toString();
+		test = directory.resolve("test.bin").toString();
+		DatasetFile.write(TestData.generate(ROWS, DIM, 4, true, 1), train, DatasetFile.BITS);
+		DatasetFile.write(TestData.generate(ROWS, DIM, 4, true, 2), test, DatasetFile.BITS);
+	}
+
+	// Runs a sweep, returns what it reported on the console
+	private String sweep(String... args)
+	{
+		List<String> arguments = new ArrayList<>(List.of("--train", train, "--test", test, "--parallel", "3"));
+		arguments.addAll(List.of(args));
+		ByteArrayOutputStream console = new ByteArrayOutputStream();
+		PrintStream out = System.out;
+		BatchRunner.main(arguments.toArray(new String[0]), new PrintStream(console, true));
+		assertSame(out, System.out);
+		return console.toString();
+	}
+
+	// Every combination of the parameters of an algorithm, and one line per threshold
+	@Test
+	public void csvHasEveryCombination() throws Exception
+	{
+		Path out = directory.resolve("results.csv");
+		String console = sweep("--algorithms", "kmeans,leaderfollower", "--k", "2,3", "--seeds", "1,2", "--maxDis", "3,4",
+			"--thresholds", "0.3,0.5", "--out", out.toString());
+		assertTrue(console.contains("Finished 6 runs"), console);
+
+		List<String> lines = Files.readAllLines(out);
+		List<String> columns = List.of(lines.get(0).split(","));
+		assertEquals(1 + 6 * 2, lines.size());
+
+		Set<String> kmeans = new HashSet<>();
+		Set<String> leaderFollower = new HashSet<>();
+		Set<String> runs = new HashSet<>();
+		for (String line : lines.subList(1, lines.size())) {
+			String[] values = line.split(",", -1);
+			assertEquals(columns.size(), values.length);
+			String algorithm = values[columns.indexOf("algorithm")];
+			if (algorithm.equals("kmeans"))
+				kmeans.add(values[columns.indexOf("k")] + "/" + values[columns.indexOf("seed")] + "/" + values[columns.indexOf("threshold")]);
+			else
+				leaderFollower.add(values[columns.indexOf("maxDis")] + "/" + values[columns.indexOf("threshold")]);
+			runs.add(values[columns.indexOf("run")]);
+			double hitrate = Double.parseDouble(values[columns.indexOf("hitrate")]);
+			assertTrue(hitrate >= 0 && hitrate <= 1);
+		}
+		assertEquals(Set.of("2/1/0.3", "2/1/0.5", "2/2/0.3", "2/2/0.5", "3/1/0.3", "3/1/0.5", "3/2/0.3", "3/2/0.5"), kmeans);
+		assertEquals(Set.of("3/0.3", "3/0.5", "4/0.3", "4/0.5"), leaderFollower);
+		assertEquals(Set.of("0", "1", "2", "3", "4", "5"), runs);
+	}
+
+	// One object per line, strings quoted and numbers bare, columns without a value left out
+	@Test
+	public void jsonLinesAreObjects() throws Exception
+	{
+		Path out = directory.resolve("results.json");
+		sweep("--algorithms", "kmeans,kohonen", "--seeding", "random,kmeans++", "--n", "2", "--epochs", "3",
+			"--training", "batch", "--format", "json", "--out", out.toString());
+
+		List<String> lines = Files.readAllLines(out);
+		assertEquals(3, lines.size());
+		for (String line : lines) {
+			assertTrue(line.startsWith("{\"run\": ") && line.endsWith("}"), line);
+			assertFalse(line.contains("\"\""), line);
+			if (line.contains("\"algorithm\": \"kmeans\"")) {
+				assertTrue(line.matches(".*\"seeding\": \"(random|kmeans\\+\\+)\", \"restarts\": 1,.*"), line);
+				assertFalse(line.contains("\"epochs\""), line);
+			}
+			else {
+				assertTrue(line.contains("\"algorithm\": \"kohonen\", \"n\": 2, \"epochs\": 3,"), line);
+				assertTrue(line.contains("\"training\": \"batch\", \"schedule\": \"linear\""), line);
+				assertTrue(line.matches(".*\"epochsTrained\": 3,.*\"hitrate\": [0-9.E-]+,.*"), line);
+			}
+		}
+	}
+}
@@ -0,0 +1,82 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryMatrixTest
+{
+	// Dimensions within one word, at a word boundary and over several words with bits left over
+	private static final int[] DIMS = {5, 64, 200};
+
+	private static final int ROWS = 50;
+
+	private static float[] prototype(int dim, long seed)
+	{
+		Random random = new Random(seed);
+		float[] prototype = new float[dim];
+		for (int i = 0; i < dim; i++)
+			prototype[i] = random.nextFloat();
+		return prototype;
+	}
+
+	// |x-p|^2 = |p|^2 + sum over the ones in x of (1 - 2p) gives the distance of the floats, up to rounding
+	@Test
+	public void distanceSameAsFloats()
+	{
+		for (int dim : DIMS) {
+			FloatMatrix floats = new FloatMatrix(TestData.values(ROWS, dim, 3, true, dim), ROWS, dim);
+			BinaryMatrix bits = BinaryMatrix.pack(floats);
+			float[] prototype = prototype(dim, 1);
+			float norm = DataMatrix.squaredNorm(prototype);
+			for (int row = 0; row < ROWS; row++) {
+				float expected = floats.squaredDistance(row, prototype);
+				double tolerance = dim * Math.pow(2, -24) * (norm + bits.bitCount(row) + expected);
+				assertEquals(expected, bits.squaredDistance(row, prototype), tolerance);
+				assertEquals(expected, bits.squaredDistance(row, prototype, norm), tolerance);
+				assertEquals(floats.squaredNorm(row), bits.squaredNorm(row));
+			}
+			// a prototype equal to a row is at distance 0, not slightly below
+			assertEquals(0, bits.squaredDistance(0, floats.copyRow(0)));
+		}
+	}
+
+	@Test
+	public void sameElementsAsFloats()
+	{
+		for (int dim : DIMS) {
+			FloatMatrix floats = new FloatMatrix(TestData.values(ROWS, dim, 3, true, dim), ROWS, dim);
+			BinaryMatrix bits = BinaryMatrix.pack(floats);
+			double[] expected = new double[dim];
+			double[] sum = new double[dim];
+			int[] expectedColumns = new int[dim];
+			int[] columns = new int[dim];
+			for (int row = 0; row < ROWS; row++) {
+				assertArrayEquals(floats.copyRow(row), bits.copyRow(row));
+				int count = floats.nonZeros(row, expectedColumns);
+				assertEquals(count, bits.nonZeros(row, columns));
+				assertArrayEquals(Arrays.copyOf(expectedColumns, count), Arrays.copyOf(columns, count));
+				floats.addTo(row, expected);
+				bits.addTo(row, sum);
+			}
+			assertArrayEquals(expected, sum);
+		}
+	}
+
+	// Moving a prototype towards a row changes the same elements in the same way
+	@Test
+	public void moveTowardsSameAsFloats()
+	{
+		for (int dim : DIMS) {
+			FloatMatrix floats = new FloatMatrix(TestData.values(ROWS, dim, 3, true, dim), ROWS, dim);
+			BinaryMatrix bits = BinaryMatrix.pack(floats);
+			float[] expected = prototype(dim, 2);
+			float[] moved = expected.clone();
+			for (int row = 0; row < ROWS; row++) {
+				float norm = floats.moveTowards(row, expected, 0.2);
+				assertEquals(norm, bits.moveTowards(row, moved, 0.2), dim * Math.pow(2, -24) * norm);
+				assertArrayEquals(expected, moved);
+			}
+		}
+	}
+}
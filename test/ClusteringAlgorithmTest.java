@@ -0,0 +1,48 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ClusteringAlgorithmTest
+{
+	// Every datapoint is a member of the cluster in its assignment, datapoints without a cluster of none
+	@Test
+	public void membersFromAssignment()
+	{
+		int[] assignment = {2, -1, 0, 2, 5, 0};
+		List<List<Integer>> members = ClusteringAlgorithm.members(assignment, 3);
+		assertEquals(List.of(List.of(2, 5), List.of(), List.of(0, 3)), members);
+	}
+
+	// After k-means converged the prototype of every cluster is the mean of the members in the assignment
+	@Test
+	public void kmeansPrototypesAreMeansOfAssignment()
+	{
+		int rows = 3000;
+		int dim = 40;
+		int k = 8;
+		DataMatrix data = TestData.generate(rows, dim, k, true, 4);
+		KMeans kmeans = new KMeans(k, data, data, dim);
+		kmeans.setVerbose(false);
+		kmeans.setSeed(2);
+		assertTrue(kmeans.train());
+
+		int[] assignment = kmeans.assignment();
+		List<List<Integer>> members = ClusteringAlgorithm.members(assignment, k);
+		assertEquals(rows, members.stream().mapToInt(List::size).sum());
+		float[][] prototypes = kmeans.prototypes();
+		for (int c = 0; c < k; c++) {
+			if (members.get(c).isEmpty())
+				continue;
+			double[] sums = new double[dim];
+			for (int row : members.get(c)) {
+				float[] values = data.copyRow(row);
+				for (int i = 0; i < dim; i++)
+					sums[i] += values[i];
+			}
+			for (int i = 0; i < dim; i++)
+				assertEquals((float) (sums[i] / members.get(c).size()), prototypes[c][i]);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DatasetFileTest
+{
+	private static final int ROWS = 500;
+	private static final int DIM = 70;
+
+	@TempDir
+	Path directory;
+
+	private String file(String name)
+	{
+		return directory.resolve(name).toString();
+	}
+
+	// Few elements that are not 0, with other values than 1 unless ones is true
+	private static FloatMatrix sparse(boolean ones, long seed)
+	{
+		Random random = new Random(seed);
+		float[] values = new float[ROWS * DIM];
+		for (int i = 0; i < values.length; i++)
+			if (random.nextInt(50) == 0)
+				values[i] = ones ? 1 : random.nextInt(9) + 1;
+		return new FloatMatrix(values, ROWS, DIM);
+	}
+
+	private static void assertSameElements(DataMatrix expected, DataMatrix actual)
+	{
+		assertEquals(expected.rows(), actual.rows());
+		assertEquals(expected.dim(), actual.dim());
+		for (int row = 0; row < expected.rows(); row++)
+			assertArrayEquals(expected.copyRow(row), actual.copyRow(row));
+	}
+
+	private void writeText(DataMatrix matrix, String fileName) throws IOException
+	{
+		try (PrintWriter writer = new PrintWriter(new FileWriter(fileName))) {
+			for (int row = 0; row < matrix.rows(); row++) {
+				StringBuilder line = new StringBuilder();
+				for (float value : matrix.copyRow(row))
+					line.append(line.length() == 0 ? "" : " ").append(value);
+				writer.println(line);
+			}
+		}
+	}
+
+	private List<String> temporaryFiles() throws IOException
+	{
+		List<String> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.values")) {
+			for (Path path : stream)
+				files.add(path.toString());
+		}
+		return files;
+	}
+
+	@Test
+	public void floatRoundTrip() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 4, false, 1);
+		DatasetFile.write(data, file("floats.bin"), DatasetFile.FLOAT32);
+		DataMatrix loaded = DatasetFile.load(file("floats.bin"));
+		assertTrue(loaded instanceof FloatMatrix);
+		assertSameElements(data, loaded);
+		assertEquals(ROWS, DatasetFile.rows(file("floats.bin")));
+		assertEquals(DIM, DatasetFile.dim(file("floats.bin")));
+	}
+
+	@Test
+	public void bitsRoundTrip() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 4, true, 2);
+		DatasetFile.write(data, file("bits.bin"), DatasetFile.BITS);
+		DataMatrix loaded = DatasetFile.load(file("bits.bin"));
+		assertTrue(loaded instanceof BinaryMatrix);
+		assertSameElements(data, loaded);
+
+		// a range of rows, like the shard of a worker
+		assertSameElements(new FloatMatrix(Arrays.copyOfRange(TestData.values(ROWS, DIM, 4, true, 2), 100 * DIM, 150 * DIM), 50, DIM),
+			DatasetFile.load(file("bits.bin"), 100, 50));
+	}
+
+	@Test
+	public void sparseRoundTrip() throws Exception
+	{
+		for (boolean ones : new boolean[] {true, false}) {
+			FloatMatrix data = sparse(ones, 3);
+			DatasetFile.write(data, file("sparse.bin"), DatasetFile.SPARSE);
+			DataMatrix loaded = DatasetFile.load(file("sparse.bin"));
+			assertTrue(loaded instanceof SparseMatrix);
+			assertEquals(!ones, ((SparseMatrix) loaded).hasValues());
+			assertSameElements(data, loaded);
+			assertSameElements(new FloatMatrix(Arrays.copyOfRange(flatten(data), 200 * DIM, 300 * DIM), 100, DIM),
+				DatasetFile.load(file("sparse.bin"), 200, 100));
+		}
+		assertEquals(List.of(), temporaryFiles());
+	}
+
+	private static float[] flatten(DataMatrix matrix)
+	{
+		float[] values = new float[matrix.rows() * matrix.dim()];
+		for (int row = 0; row < matrix.rows(); row++)
+			System.arraycopy(matrix.copyRow(row), 0, values, row * matrix.dim(), matrix.dim());
+		return values;
+	}
+
+	// Converting a text file gives the same elements in every encoding, the encoding is picked from the data
+	@Test
+	public void convertText() throws Exception
+	{
+		DataMatrix floats = TestData.generate(ROWS, DIM, 4, false, 4);
+		DataMatrix bits = TestData.generate(ROWS, DIM, 4, true, 5);
+		DataMatrix sparse = sparse(true, 6);
+		writeText(floats, file("floats.dat"));
+		writeText(bits, file("bits.dat"));
+		writeText(sparse, file("sparse.dat"));
+
+		assertTrue(DatasetFile.convert(file("floats.dat"), file("floats.bin"), -1) instanceof FloatMatrix);
+		assertTrue(DatasetFile.convert(file("bits.dat"), file("bits.bin"), -1) instanceof BinaryMatrix);
+		assertTrue(DatasetFile.convert(file("sparse.dat"), file("sparse.bin"), -1) instanceof SparseMatrix);
+		assertSameElements(floats, DatasetFile.load(file("floats.bin")));
+		assertSameElements(bits, DatasetFile.load(file("bits.bin")));
+		assertSameElements(sparse, DatasetFile.load(file("sparse.bin")));
+
+		assertSameElements(bits, DatasetFile.convert(file("bits.dat"), file("bits.bin"), DatasetFile.FLOAT32));
+		assertSameElements(bits, DatasetFile.convert(file("bits.dat"), file("bits.bin"), DatasetFile.SPARSE));
+		assertSameElements(sparse, DatasetFile.convert(file("sparse.dat"), file("sparse.bin"), DatasetFile.BITS));
+		assertEquals(List.of(), temporaryFiles());
+	}
+
+	// Values that are not 0/1 would become 1 as bits, so asking for bits fails
+	@Test
+	public void bitsOnlyFor01Data() throws Exception
+	{
+		DataMatrix floats = TestData.generate(ROWS, DIM, 4, false, 7);
+		writeText(floats, file("floats.dat"));
+		IOException e = assertThrows(IOException.class, () -> DatasetFile.convert(file("floats.dat"), file("floats.bin"), DatasetFile.BITS));
+		assertTrue(e.getMessage().contains("line 1"), e.getMessage());
+		assertThrows(IOException.class, () -> DatasetFile.write(floats, file("floats.bin"), DatasetFile.BITS));
+	}
+
+	// A conversion that fails halfway leaves no temporary file behind
+	@Test
+	public void failedConversionRemovesTemporaryFile() throws Exception
+	{
+		try (PrintWriter writer = new PrintWriter(new FileWriter(file("broken.dat")))) {
+			for (int row = 0; row < 5000; row++)
+				writer.println(row == 4500 ? "0 2" : "0 0 3 0");
+		}
+		IOException e = assertThrows(IOException.class, () -> DatasetFile.convert(file("broken.dat"), file("broken.bin"), DatasetFile.SPARSE));
+		assertTrue(e.getMessage().contains("line 4501"), e.getMessage());
+		assertEquals(List.of(), temporaryFiles());
+	}
+}
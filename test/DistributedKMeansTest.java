@@ -0,0 +1,113 @@
+import java.net.*;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class DistributedKMeansTest
+{
+	// The data is 0/1, so the sums of the workers are exact and the result does not depend on the sharding
+	private static final int ROWS = 3000;
+	private static final int DIM = 64;
+	private static final int K = 6;
+
+	private final List<Thread> servers = new ArrayList<>();
+	private final List<String> workers = new ArrayList<>();
+
+	// Two in-process workers on ephemeral ports of the loopback address, like --local, each with half of the rows
+	private void startWorkers(float[] values) throws Exception
+	{
+		int[] bounds = {0, ROWS / 2, ROWS};
+		for (int shard = 0; shard < 2; shard++) {
+			int first = bounds[shard];
+			int rows = bounds[shard + 1] - first;
+			DataMatrix data = new FloatMatrix(Arrays.copyOfRange(values, first * DIM, (first + rows) * DIM), rows, DIM);
+			KMeansWorker worker = new KMeansWorker(data, first, 2);
+			ServerSocket server = new ServerSocket(0, 0, InetAddress.getLoopbackAddress());
+			workers.add(server.getInetAddress().getHostAddress() + ":" + server.getLocalPort());
+			Thread thread = new Thread(() -> {
+				try (server) {
+					worker.serve(server);
+				}
+				catch (Exception e) {
+					throw new RuntimeException(e);
+				}
+			});
+			thread.start();
+			servers.add(thread);
+		}
+	}
+
+	@AfterEach
+	public void stopWorkers() throws Exception
+	{
+		DistributedKMeans.shutdown(workers);
+		for (Thread thread : servers) {
+			thread.join(10000);
+			assertFalse(thread.isAlive());
+		}
+	}
+
+	// With the same initial prototypes the workers give exactly the prototypes and assignment of KMeans
+	@Test
+	public void sameAsKMeans() throws Exception
+	{
+		float[] values = TestData.values(ROWS, DIM, K, true, 1);
+		DataMatrix data = new FloatMatrix(values, ROWS, DIM);
+		startWorkers(values);
+
+		float[][] initial = new float[K][];
+		for (int c = 0; c < K; c++)
+			initial[c] = data.copyRow(c * 97);
+
+		KMeans kmeans = new KMeans(K, data, data, DIM);
+		kmeans.setVerbose(false);
+		kmeans.setThreads(3);
+		kmeans.setInitialPrototypes(initial);
+		assertTrue(kmeans.train());
+
+		DistributedKMeans distributed = new DistributedKMeans(K, workers, data);
+		distributed.setVerbose(false);
+		distributed.setInitialPrototypes(initial);
+		assertTrue(distributed.train());
+
+		assertTrue(distributed.isConverged());
+		assertTrue(distributed.getIterations() > 2);
+		assertArrayEquals(kmeans.assignment(), distributed.assignment());
+		for (int c = 0; c < K; c++)
+			assertArrayEquals(kmeans.prototypes()[c], distributed.prototypes()[c]);
+		assertTrue(distributed.test());
+	}
+
+	// The k-means++ seeding samples the workers, and a second coordinator can use them after the first closed
+	@Test
+	public void seededTrainingsOneAfterTheOther() throws Exception
+	{
+		float[] values = TestData.values(ROWS, DIM, K, true, 2);
+		DataMatrix data = new FloatMatrix(values, ROWS, DIM);
+		startWorkers(values);
+
+		int[] previous = null;
+		for (int run = 0; run < 2; run++) {
+			DistributedKMeans distributed = new DistributedKMeans(K, workers, data);
+			distributed.setVerbose(false);
+			distributed.setSeed(7);
+			assertTrue(distributed.train());
+			assertTrue(distributed.isConverged());
+
+			// every row is in the cluster of its nearest prototype
+			NearestPrototype search = new NearestPrototype(data);
+			search.setPrototypes(distributed.prototypes());
+			int[] assignment = distributed.assignment();
+			assertEquals(ROWS, assignment.length);
+			for (int row = 0; row < ROWS; row++)
+				assertEquals(search.distance(row, search.nearest(row)), search.distance(row, assignment[row]));
+
+			// the same seed gives the same result
+			if (previous != null)
+				assertArrayEquals(previous, assignment);
+			previous = assignment;
+		}
+	}
+}
@@ -0,0 +1,81 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class EvaluationTest
+{
+	// A client whose cluster prefetches nothing counts as accuracy 0, like in ThresholdCurve
+	@Test
+	public void nothingPrefetchedCountsAsZeroAccuracy() throws Exception
+	{
+		float[][] prototypes = {{0.9f, 0.8f, 0.1f, 0.1f}, {0.2f, 0.2f, 0.2f, 0.2f}};
+		DataMatrix testData = new FloatMatrix(new float[] {1, 0, 1, 0, 1, 0, 0, 0}, 2, 4);
+		int[] assignment = {0, 1};
+
+		Evaluation evaluation = Evaluation.of(prototypes, 0.5, assignment, testData);
+		assertEquals(0, evaluation.prefetched(1));
+		// client 0: 1 hit of 2 requests and 2 prefetched htmls, client 1: no hits and nothing prefetched
+		assertEquals(0.25, evaluation.hitrate());
+		assertEquals(0.25, evaluation.accuracy());
+		assertEquals(0, evaluation.accuracy(1));
+
+		ThresholdCurve curve = ThresholdCurve.of(prototypes, assignment, testData);
+		int point = curve.at(0.5);
+		assertEquals(evaluation.hitrate(), curve.hitrate(point), 1e-12);
+		assertEquals(evaluation.accuracy(), curve.accuracy(point), 1e-12);
+	}
+
+	// A client without a cluster (-1 in a saved model) gets nothing prefetched, it counts as 0 like above
+	@Test
+	public void clientWithoutClusterCountsAsZero() throws Exception
+	{
+		float[][] prototypes = {{0.9f, 0.8f, 0.1f, 0.1f}, {0.2f, 0.2f, 0.2f, 0.2f}};
+		DataMatrix testData = new FloatMatrix(new float[] {1, 0, 1, 0, 1, 1, 0, 0}, 2, 4);
+		int[] assignment = {0, -1};
+
+		for (DataMatrix data : new DataMatrix[] {testData, BinaryMatrix.pack(testData)}) {
+			Evaluation evaluation = Evaluation.of(prototypes, 0.5, assignment, data);
+			assertEquals(2, evaluation.clients());
+			assertEquals(1, evaluation.unassigned());
+			assertEquals(1, evaluation.clients(0));
+			assertEquals(0.25, evaluation.hitrate());
+			assertEquals(0.25, evaluation.accuracy());
+		}
+	}
+
+	// Enough clients for several chunks: the same sums for any number of threads and for packed bits
+	@Test
+	public void sameResultForAnyThreads() throws Exception
+	{
+		int rows = 10000;
+		int dim = 100;
+		int k = 7;
+		Random random = new Random(1);
+		float[] values = new float[rows * dim];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextInt(8) == 0 ? 1 : 0;
+		float[][] prototypes = new float[k][dim];
+		for (float[] prototype : prototypes)
+			for (int i = 0; i < dim; i++)
+				prototype[i] = random.nextFloat();
+		int[] assignment = new int[rows];
+		for (int row = 0; row < rows; row++)
+			assignment[row] = random.nextInt(k);
+		DataMatrix floats = new FloatMatrix(values, rows, dim);
+
+		Evaluation single = new Evaluation(prototypes, 0.7);
+		single.setThreads(1);
+		single.add(assignment, floats, rows);
+		for (DataMatrix testData : new DataMatrix[] {floats, BinaryMatrix.pack(floats)}) {
+			Evaluation parallel = new Evaluation(prototypes, 0.7);
+			parallel.setThreads(5);
+			parallel.add(assignment, testData, rows);
+			assertEquals(single.hitrate(), parallel.hitrate());
+			assertEquals(single.accuracy(), parallel.accuracy());
+			for (int c = 0; c < k; c++)
+				assertEquals(single.hits(c), parallel.hits(c));
+		}
+	}
+}
@@ -0,0 +1,161 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KMeansTest
+{
+	// More rows than one chunk, so the assignment is split over several chunks
+	private static final int ROWS = 5000;
+	private static final int DIM = 100;
+
+	private static final long[] SEEDS = {1, 2, 3};
+
+	private static KMeans train(DataMatrix data, int k, long seed, int threads, boolean bounds)
+	{
+		KMeans kmeans = new KMeans(k, data, data, DIM);
+		kmeans.setVerbose(false);
+		kmeans.setSeed(seed);
+		kmeans.setThreads(threads);
+		kmeans.setBounds(bounds);
+		assertTrue(kmeans.train());
+		return kmeans;
+	}
+
+	private static void assertSameModel(KMeans expected, KMeans actual)
+	{
+		assertEquals(expected.getIterations(), actual.getIterations());
+		assertArrayEquals(expected.assignment(), actual.assignment());
+		for (int c = 0; c < expected.prototypes().length; c++)
+			assertArrayEquals(expected.prototypes()[c], actual.prototypes()[c]);
+		assertEquals(expected.getSumOfSquares(), actual.getSumOfSquares());
+	}
+
+	// The chunks are merged in the same order for any number of threads, so the model is exactly the same
+	@Test
+	public void sameModelForAnyThreads()
+	{
+		for (boolean binary : new boolean[] {false, true}) {
+			DataMatrix data = TestData.generate(ROWS, DIM, 12, binary, 10);
+			for (int k : new int[] {3, 20})
+				for (long seed : SEEDS)
+					assertSameModel(train(data, k, seed, 1, true), train(data, k, seed, 7, true));
+		}
+	}
+
+	// Without setSeeding the initial prototypes come from a random partition, like before k-means++ was added
+	@Test
+	public void randomPartitionByDefault()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 12, false, 30);
+		KMeans seeded = new KMeans(5, data, data, DIM);
+		seeded.setVerbose(false);
+		seeded.setSeed(1);
+		seeded.setSeeding(KMeans.Seeding.RANDOM_PARTITION);
+		assertTrue(seeded.train());
+		assertSameModel(seeded, train(data, 5, 1, 1, true));
+	}
+
+	private static KMeans restarts(DataMatrix data, long seed, int threads, double cancelMargin)
+	{
+		KMeans kmeans = new KMeans(8, data, data, DIM);
+		kmeans.setVerbose(false);
+		kmeans.setSeed(seed);
+		kmeans.setThreads(threads);
+		kmeans.setRestarts(6);
+		kmeans.setCancelMargin(cancelMargin);
+		assertTrue(kmeans.train());
+		return kmeans;
+	}
+
+	// The restarts are compared at the same checkpoints, so the same one is kept for any number of threads
+	@Test
+	public void restartsSameForAnyThreads()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 12, true, 40);
+		KMeans single = restarts(data, 1, 1, 0.05);
+		for (int threads : new int[] {3, 8})
+			assertSameModel(single, restarts(data, 1, threads, 0.05));
+	}
+
+	// Without cancelling, the restarts keep the run with the lowest sum of squares of the runs with their seeds
+	@Test
+	public void restartsKeepBestRun()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 12, false, 50);
+		Random seeds = new Random(9);
+		KMeans best = null;
+		for (int restart = 0; restart < 6; restart++) {
+			KMeans run = train(data, 8, seeds.nextLong(), 1, true);
+			if (best == null || run.getSumOfSquares() < best.getSumOfSquares())
+				best = run;
+		}
+		assertSameModel(best, restarts(data, 9, 4, Double.POSITIVE_INFINITY));
+	}
+
+	// The triangle-inequality bounds only skip distances that cannot change the nearest prototype, so the
+	// model is exactly the same as without them, also with many clusters and on several threads
+	@Test
+	public void boundsAreExact()
+	{
+		for (boolean binary : new boolean[] {false, true}) {
+			DataMatrix data = TestData.generate(ROWS, DIM, 12, binary, 20);
+			for (int k : new int[] {3, 20, 60})
+				for (long seed : SEEDS)
+					for (int threads : new int[] {1, 7})
+						assertSameModel(train(data, k, seed, threads, false), train(data, k, seed, threads, true));
+		}
+	}
+
+	// A warm start from the partition of a converged run is already converged: one iteration in which nobody
+	// changes cluster, and the same model as the run it started from. From its prototypes the first iteration
+	// assigns every row, and the second one confirms it.
+	@Test
+	public void warmStartReproducesSource()
+	{
+		for (boolean binary : new boolean[] {false, true}) {
+			DataMatrix data = TestData.generate(ROWS, DIM, 12, binary, 60);
+			KMeans source = train(data, 10, 3, 1, true);
+
+			KMeans fromAssignment = new KMeans(10, data, data, DIM);
+			fromAssignment.setVerbose(false);
+			fromAssignment.setInitialAssignment(source.assignment());
+			assertTrue(fromAssignment.train());
+			assertEquals(1, fromAssignment.getIterations());
+			assertArrayEquals(source.assignment(), fromAssignment.assignment());
+			for (int c = 0; c < 10; c++)
+				assertArrayEquals(source.prototypes()[c], fromAssignment.prototypes()[c]);
+			assertEquals(source.getSumOfSquares(), fromAssignment.getSumOfSquares());
+
+			KMeans fromPrototypes = new KMeans(10, data, data, DIM);
+			fromPrototypes.setVerbose(false);
+			fromPrototypes.setThreads(7);
+			fromPrototypes.setInitialPrototypes(source.prototypes());
+			assertTrue(fromPrototypes.train());
+			assertEquals(2, fromPrototypes.getIterations());
+			assertArrayEquals(source.assignment(), fromPrototypes.assignment());
+			for (int c = 0; c < 10; c++)
+				assertArrayEquals(source.prototypes()[c], fromPrototypes.prototypes()[c]);
+		}
+	}
+
+	// New clients past the end of the earlier assignment start in the nearest cluster, the others in their own
+	@Test
+	public void warmStartWithNewClients()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 12, true, 70);
+		KMeans source = train(data, 6, 4, 1, true);
+		int[] earlier = Arrays.copyOf(source.assignment(), ROWS - 300);
+		earlier[5] = -1;
+
+		KMeans warm = new KMeans(6, data, data, DIM);
+		warm.setVerbose(false);
+		warm.setInitialAssignment(earlier);
+		assertTrue(warm.train());
+		NearestPrototype search = new NearestPrototype(data);
+		search.setPrototypes(warm.prototypes());
+		for (int row = 0; row < ROWS; row++)
+			assertEquals(search.distance(row, search.nearest(row)), search.distance(row, warm.assignment()[row]));
+	}
+}
@@ -0,0 +1,168 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.*;
+
+public class KernelsTest
+{
+	// Dimensions below, at and above the vector sizes, with elements left over
+	private static final int[] DIMS = {3, 17, 200, 1000};
+
+	private static final int ROWS = 20;
+
+	private final Kernels scalar = Kernels.scalar();
+	private final Kernels kernels = Kernels.get();
+
+	// The rows as a heap array, and the same floats in a little endian off-heap buffer like a mapped data file
+	private float[] values;
+	private ByteBuffer bytes;
+
+	private void generate(int dim, long seed)
+	{
+		Random random = new Random(seed);
+		values = new float[ROWS * dim];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextInt(3) == 0 ? 0 : random.nextFloat() * 2 - 1;
+		bytes = ByteBuffer.allocateDirect(values.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+		bytes.asFloatBuffer().put(values);
+	}
+
+	private static float[] prototype(int dim, long seed)
+	{
+		Random random = new Random(seed);
+		float[] prototype = new float[dim];
+		for (int i = 0; i < dim; i++)
+			prototype[i] = random.nextFloat();
+		return prototype;
+	}
+
+	// The difference the order of the additions can make in a sum of n positive terms, see Kernels
+	private static void assertWithinRounding(float expected, float actual, double terms, int n)
+	{
+		assertEquals(expected, actual, n * Math.pow(2, -24) * terms);
+	}
+
+	@Test
+	public void vectorKernelsAreUsed()
+	{
+		assumeTrue(ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent());
+		assertNotEquals("scalar", kernels.toString());
+	}
+
+	@Test
+	public void squaredDistanceWithinRounding()
+	{
+		for (int dim : DIMS) {
+			generate(dim, dim);
+			float[] prototype = prototype(dim, 1);
+			for (int row = 0; row < ROWS; row++) {
+				double terms = 0;
+				for (int i = 0; i < dim; i++)
+					terms += (values[row * dim + i] - prototype[i]) * (values[row * dim + i] - prototype[i]);
+
+				float expected = scalar.squaredDistance(FloatBuffer.wrap(values), row * dim, prototype, 0, dim, 0);
+				assertWithinRounding(expected, kernels.squaredDistance(FloatBuffer.wrap(values), row * dim, prototype, 0, dim, 0), terms, dim);
+				assertWithinRounding(expected, kernels.squaredDistance(bytes, row * dim, prototype, 0, dim, 0), terms, dim);
+			}
+		}
+	}
+
+	@Test
+	public void orderedSquaredDistanceWithinRounding()
+	{
+		for (int dim : DIMS) {
+			generate(dim, dim);
+			float[] prototype = prototype(dim, 2);
+			List<Integer> shuffled = new ArrayList<>();
+			for (int i = 0; i < dim; i++)
+				shuffled.add(i);
+			Collections.shuffle(shuffled, new Random(dim));
+			int[] order = shuffled.stream().mapToInt(Integer::intValue).toArray();
+
+			for (int row = 0; row < ROWS; row++) {
+				double terms = 0;
+				for (int i = 0; i < dim; i++)
+					terms += (values[row * dim + i] - prototype[i]) * (values[row * dim + i] - prototype[i]);
+
+				float expected = scalar.squaredDistance(FloatBuffer.wrap(values), row * dim, prototype, order, 0, dim, 0);
+				float heap = kernels.squaredDistance(FloatBuffer.wrap(values), row * dim, prototype, order, 0, dim, 0);
+				assertWithinRounding(expected, heap, terms, dim);
+				// the same lanes are added in the same order for both kinds of buffer
+				assertEquals(heap, kernels.squaredDistance(bytes, row * dim, prototype, order, 0, dim, 0));
+			}
+		}
+	}
+
+	@Test
+	public void squaredNormWithinRounding()
+	{
+		for (int dim : DIMS) {
+			float[] prototype = prototype(dim, 3);
+			double terms = 0;
+			for (float value : prototype)
+				terms += value * value;
+			assertWithinRounding(scalar.squaredNorm(prototype), kernels.squaredNorm(prototype), terms, dim);
+		}
+	}
+
+	// Every element is the same as with the scalar kernels, only the norm may differ by rounding
+	@Test
+	public void moveTowardsSameElements()
+	{
+		for (int dim : DIMS) {
+			generate(dim, dim);
+			float[] expected = prototype(dim, 4);
+			float[] heap = expected.clone();
+			float[] mapped = expected.clone();
+			for (int row = 0; row < ROWS; row++) {
+				float norm = scalar.moveTowards(FloatBuffer.wrap(values), row * dim, expected, 0.3);
+				double terms = 0;
+				for (float value : expected)
+					terms += value * value;
+
+				assertWithinRounding(norm, kernels.moveTowards(FloatBuffer.wrap(values), row * dim, heap, 0.3), terms, dim);
+				assertWithinRounding(norm, kernels.moveTowards(bytes, row * dim, mapped, 0.3), terms, dim);
+				assertArrayEquals(expected, heap);
+				assertArrayEquals(expected, mapped);
+			}
+		}
+	}
+
+	@Test
+	public void addSameSums()
+	{
+		for (int dim : DIMS) {
+			generate(dim, dim);
+			double[] expected = new double[dim];
+			double[] heap = new double[dim];
+			double[] mapped = new double[dim];
+			for (int row = 0; row < ROWS; row++) {
+				scalar.add(FloatBuffer.wrap(values), row * dim, expected);
+				kernels.add(FloatBuffer.wrap(values), row * dim, heap);
+				kernels.add(bytes, row * dim, mapped);
+			}
+			assertArrayEquals(expected, heap);
+			assertArrayEquals(expected, mapped);
+		}
+	}
+
+	// A mapped matrix gives exactly what the same matrix on the heap gives
+	@Test
+	public void mappedMatrixSameAsHeap()
+	{
+		int dim = 200;
+		generate(dim, 5);
+		FloatMatrix heap = new FloatMatrix(values, ROWS, dim);
+		FloatMatrix mapped = new FloatMatrix(bytes, ROWS, dim);
+		float[] prototype = prototype(dim, 6);
+		for (int row = 0; row < ROWS; row++) {
+			assertEquals(heap.squaredDistance(row, prototype), mapped.squaredDistance(row, prototype));
+			assertEquals(heap.squaredDistance(row, prototype, 0, Float.MAX_VALUE, null), mapped.squaredDistance(row, prototype, 0, Float.MAX_VALUE, null));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KohonenTest
+{
+	// More rows than one chunk, so the BMUs are found in several chunks
+	private static final int ROWS = 4000;
+	private static final int DIM = 60;
+
+	private static Kohonen train(DataMatrix data, long seed, int threads)
+	{
+		Kohonen kohonen = new Kohonen(5, 8, data, data, DIM);
+		kohonen.setVerbose(false);
+		kohonen.setBatch(true);
+		kohonen.setSeed(seed);
+		kohonen.setThreads(threads);
+		assertTrue(kohonen.train());
+		return kohonen;
+	}
+
+	// The buffers of the chunks are added in chunk order, so the batch map is the same for any number of threads
+	@Test
+	public void batchMapSameForAnyThreads()
+	{
+		for (boolean binary : new boolean[] {false, true}) {
+			DataMatrix data = TestData.generate(ROWS, DIM, 10, binary, 3);
+			for (long seed = 1; seed <= 3; seed++) {
+				Kohonen single = train(data, seed, 1);
+				Kohonen parallel = train(data, seed, 7);
+				assertArrayEquals(single.assignment(), parallel.assignment());
+				for (int node = 0; node < single.prototypes().length; node++)
+					assertArrayEquals(single.prototypes()[node], parallel.prototypes()[node]);
+			}
+		}
+	}
+
+	// Every schedule starts at the initial value and decreases to its final value, inverse time the soonest
+	@Test
+	public void schedulesDecayToTheirEnd()
+	{
+		int epochs = 50;
+		for (Kohonen.Schedule schedule : Kohonen.Schedule.values()) {
+			assertEquals(1, schedule.factor(0, epochs), 1e-12);
+			for (int epoch = 1; epoch <= epochs; epoch++)
+				assertTrue(schedule.factor(epoch, epochs) < schedule.factor(epoch - 1, epochs));
+		}
+		assertEquals(0, Kohonen.Schedule.LINEAR.factor(epochs, epochs), 1e-12);
+		assertEquals(0.01, Kohonen.Schedule.EXPONENTIAL.factor(epochs, epochs), 1e-12);
+		assertEquals(0.01, Kohonen.Schedule.INVERSE_TIME.factor(epochs, epochs), 1e-12);
+		for (int epoch = 1; epoch < epochs; epoch++) {
+			assertTrue(Kohonen.Schedule.INVERSE_TIME.factor(epoch, epochs) < Kohonen.Schedule.EXPONENTIAL.factor(epoch, epochs));
+			assertTrue(Kohonen.Schedule.EXPONENTIAL.factor(epoch, epochs) < Kohonen.Schedule.LINEAR.factor(epoch, epochs));
+		}
+	}
+
+	private static Kohonen earlyStopping(DataMatrix data, int patience, boolean batch, Metrics metrics)
+	{
+		Kohonen kohonen = new Kohonen(4, 100, data, data, DIM);
+		kohonen.setVerbose(false);
+		kohonen.setBatch(batch);
+		kohonen.setSeed(1);
+		kohonen.setSchedule(Kohonen.Schedule.EXPONENTIAL);
+		kohonen.setEarlyStopping(patience, 1e-3);
+		kohonen.setMetrics(metrics);
+		assertTrue(kohonen.train());
+		return kohonen;
+	}
+
+	// Once the map has settled the training stops, and the last record has the quantization error of the
+	// map it ended with; without patience all epochs are trained
+	@Test
+	public void earlyStoppingStops()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 10, true, 4);
+		for (boolean batch : new boolean[] {true, false}) {
+			Metrics.MemorySink sink = new Metrics.MemorySink();
+			Kohonen stopped = earlyStopping(data, 3, batch, new Metrics(sink));
+			assertTrue(stopped.getEpochsTrained() > 3);
+			assertTrue(stopped.getEpochsTrained() < 100);
+
+			List<Metrics.Record> records = sink.records();
+			Metrics.Record training = records.get(records.size() - 1);
+			assertEquals(Metrics.TRAINING, training.phase);
+			assertEquals(ClusteringAlgorithm.quantizationError(data, stopped.prototypes(), stopped.assignment()), training.quantizationError, 1e-9);
+
+			assertEquals(100, earlyStopping(data, 0, batch, new Metrics()).getEpochsTrained());
+		}
+	}
+}
@@ -0,0 +1,108 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class LeaderFollowerTest
+{
+	private static final int ROWS = 4000;
+	private static final int DIM = 64;
+
+	// A leader that jumps between two rows (alpha 1 moves it exactly onto the row) while other threads search
+	// it: every distance is the distance to one of the two rows with its own norm, never to a mix of them
+	@Test
+	public void searchSeesCompletePrototypes() throws Exception
+	{
+		DataMatrix data = TestData.generate(3, DIM, 3, true, 1);
+		LeaderFollower.Cluster cluster = new LeaderFollower.Cluster(data.copyRow(0));
+		float toFirst = new LeaderFollower.Cluster(data.copyRow(0)).squaredDistance(data, 2, Float.MAX_VALUE);
+		float toSecond = new LeaderFollower.Cluster(data.copyRow(1)).squaredDistance(data, 2, Float.MAX_VALUE);
+		assertNotEquals(toFirst, toSecond);
+
+		AtomicBoolean done = new AtomicBoolean();
+		Thread leader = new Thread(() -> {
+			for (int i = 0; i < 200000; i++)
+				cluster.follow(data, i % 2 == 0 ? 1 : 0, 1.0);
+			done.set(true);
+		});
+		ExecutorService searchers = Executors.newFixedThreadPool(3);
+		List<Future<Integer>> searches = new ArrayList<>();
+		leader.start();
+		for (int t = 0; t < 3; t++) {
+			searches.add(searchers.submit(() -> {
+				int wrong = 0;
+				while (!done.get()) {
+					float distance = cluster.squaredDistance(data, 2, Float.MAX_VALUE);
+					if (distance != toFirst && distance != toSecond)
+						wrong++;
+					float[] copy = cluster.copy();
+					if (!Arrays.equals(copy, data.copyRow(0)) && !Arrays.equals(copy, data.copyRow(1)))
+						wrong++;
+				}
+				return wrong;
+			}));
+		}
+		leader.join();
+		for (Future<Integer> search : searches)
+			assertEquals(0, search.get());
+		searchers.shutdown();
+	}
+
+	// Many threads assign clients while clusters are added: every client gets a cluster that exists, and the
+	// clusters another thread sees at any moment are complete
+	@Test
+	public void concurrentAssignSeesConsistentClusters() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 20, true, 2);
+		LeaderFollower leaderFollower = new LeaderFollower(3, data, data, DIM);
+		int threads = 8;
+
+		AtomicBoolean done = new AtomicBoolean();
+		ExecutorService executor = Executors.newFixedThreadPool(threads + 1);
+		Future<Integer> observer = executor.submit(() -> {
+			int seen = 0;
+			while (!done.get()) {
+				float[][] prototypes = leaderFollower.prototypes();
+				assertTrue(prototypes.length >= seen);
+				seen = prototypes.length;
+				for (float[] prototype : prototypes) {
+					assertEquals(DIM, prototype.length);
+					// a leader only moves between 0/1 vectors
+					for (float value : prototype)
+						assertTrue(value >= 0 && value <= 1);
+				}
+			}
+			return seen;
+		});
+
+		int[] assigned = new int[ROWS];
+		List<Future<?>> workers = new ArrayList<>();
+		for (int t = 0; t < threads; t++) {
+			int first = t;
+			workers.add(executor.submit(() -> {
+				for (int row = first; row < ROWS; row += threads) {
+					assigned[row] = leaderFollower.assign(data.copyRow(row));
+					assertTrue(assigned[row] < leaderFollower.size());
+				}
+			}));
+		}
+		for (Future<?> worker : workers)
+			worker.get();
+		done.set(true);
+		assertTrue(observer.get() <= leaderFollower.size());
+		executor.shutdown();
+
+		int size = leaderFollower.size();
+		assertTrue(size > 1 && size < ROWS);
+		assertEquals(size, leaderFollower.prototypes().length);
+		boolean[] used = new boolean[size];
+		for (int row = 0; row < ROWS; row++)
+			used[assigned[row]] = true;
+		// every cluster was created for a client, which is its first member
+		for (boolean member : used)
+			assertTrue(member);
+	}
+}
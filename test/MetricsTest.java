@@ -0,0 +1,106 @@
+import java.nio.file.*;
+import java.util.*;
+
+import jdk.jfr.*;
+import jdk.jfr.consumer.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class MetricsTest
+{
+	private static final int ROWS = 2000;
+	private static final int DIM = 30;
+	private static final int K = 5;
+
+	private static KMeans kmeans(DataMatrix data, Metrics metrics)
+	{
+		KMeans kmeans = new KMeans(K, data, data, DIM);
+		kmeans.setVerbose(false);
+		kmeans.setSeed(1);
+		kmeans.setMetrics(metrics);
+		return kmeans;
+	}
+
+	// Seeding, then an update and an assignment per iteration, the training at the end and the evaluation of test()
+	@Test
+	public void phasesOfKMeans()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, K, true, 7);
+		Metrics.MemorySink sink = new Metrics.MemorySink();
+		KMeans kmeans = kmeans(data, new Metrics("run 1", sink));
+		assertTrue(kmeans.train());
+
+		List<Metrics.Record> records = sink.records();
+		int iterations = kmeans.getIterations();
+		assertEquals(2 * iterations + 2, records.size());
+		assertEquals(Metrics.SEEDING, records.get(0).phase);
+		long distances = 0;
+		for (int i = 0; i < iterations; i++) {
+			Metrics.Record update = records.get(1 + 2 * i);
+			Metrics.Record assignment = records.get(2 + 2 * i);
+			assertEquals(Metrics.UPDATE, update.phase);
+			assertEquals(Metrics.ASSIGNMENT, assignment.phase);
+			assertEquals(i, update.iteration);
+			assertEquals(i, assignment.iteration);
+			assertTrue(assignment.reassigned >= 0);
+			distances += assignment.distances;
+		}
+		// converged: nobody changed cluster in the last iteration
+		assertEquals(0, records.get(2 * iterations).reassigned);
+
+		Metrics.Record training = records.get(records.size() - 1);
+		assertEquals(Metrics.TRAINING, training.phase);
+		assertEquals(distances, training.distances);
+		assertEquals(kmeans.getSumOfSquares() / ROWS, training.quantizationError, 1e-9);
+		assertEquals(ClusteringAlgorithm.quantizationError(data, kmeans.prototypes(), kmeans.assignment()), training.quantizationError, 1e-3);
+		for (Metrics.Record record : records) {
+			assertEquals("run 1", record.label);
+			assertEquals("KMeans", record.algorithm);
+			assertTrue(record.nanos >= 0);
+		}
+
+		sink.clear();
+		assertTrue(kmeans.test());
+		assertEquals(1, sink.records().size());
+		assertEquals(Metrics.EVALUATION, sink.records().get(0).phase);
+	}
+
+	// Without sinks the phases are committed as JFR events when a recording is running
+	@Test
+	public void phasesAsFlightRecorderEvents() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, K, true, 8);
+		Metrics metrics = new Metrics();
+		assertFalse(metrics.enabled());
+
+		Path file = Files.createTempFile("metrics", ".jfr");
+		KMeans kmeans = kmeans(data, metrics);
+		try (Recording recording = new Recording()) {
+			recording.enable("clustering.Phase");
+			recording.start();
+			assertTrue(metrics.enabled());
+			assertTrue(kmeans.train());
+			recording.stop();
+			recording.dump(file);
+
+			Map<String, Integer> phases = new HashMap<>();
+			for (RecordedEvent event : RecordingFile.readAllEvents(file)) {
+				if (!event.getEventType().getName().equals("clustering.Phase"))
+					continue;
+				assertEquals("KMeans", event.getString("algorithm"));
+				phases.merge(event.getString("phase"), 1, Integer::sum);
+				if (event.getString("phase").equals(Metrics.TRAINING))
+					assertEquals(kmeans.getSumOfSquares() / ROWS, event.getDouble("quantizationError"), 1e-9);
+			}
+			assertEquals(1, phases.get(Metrics.SEEDING));
+			assertEquals(kmeans.getIterations(), phases.get(Metrics.UPDATE));
+			assertEquals(kmeans.getIterations(), phases.get(Metrics.ASSIGNMENT));
+			assertEquals(1, phases.get(Metrics.TRAINING));
+		}
+		finally {
+			Files.deleteIfExists(file);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+import java.nio.file.*;
+
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ModelFileTest
+{
+	private static final int ROWS = 1500;
+	private static final int DIM = 40;
+
+	@TempDir
+	Path directory;
+
+	// Saves a trained algorithm, maps the file and restores it: the same model and the same test results
+	private void assertRoundTrip(ClusteringAlgorithm trained, int algorithm, DataMatrix data) throws Exception
+	{
+		trained.setVerbose(false);
+		assertTrue(trained.train());
+		assertTrue(trained.test());
+		String fileName = directory.resolve("model" + algorithm + ".bin").toString();
+		trained.save(fileName);
+
+		ModelFile.Model model = ModelFile.map(fileName);
+		assertEquals(algorithm, model.algorithm());
+		assertEquals(trained.prototypes().length, model.clusters());
+		assertEquals(DIM, model.dim());
+		assertEquals(ROWS, model.clients());
+		for (int client = 0; client < ROWS; client++)
+			assertEquals(trained.assignment()[client], model.cluster(client));
+
+		ClusteringAlgorithm restored = ModelFile.load(model, data, data);
+		assertSame(trained.getClass(), restored.getClass());
+		assertArrayEquals(trained.assignment(), restored.assignment());
+		assertEquals(trained.prototypes().length, restored.prototypes().length);
+		for (int c = 0; c < trained.prototypes().length; c++)
+			assertArrayEquals(trained.prototypes()[c], restored.prototypes()[c]);
+
+		restored.setVerbose(false);
+		assertTrue(restored.test());
+		assertEquals(trained.getEvaluation().hitrate(), restored.getEvaluation().hitrate());
+		assertEquals(trained.getEvaluation().accuracy(), restored.getEvaluation().accuracy());
+	}
+
+	@Test
+	public void kMeansRoundTrip() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 6, true, 1);
+		KMeans kmeans = new KMeans(6, data, data, DIM);
+		kmeans.setSeed(1);
+		kmeans.setPrefetchThreshold(0.4);
+		assertRoundTrip(kmeans, ModelFile.KMEANS, data);
+	}
+
+	@Test
+	public void kohonenRoundTrip() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 6, true, 2);
+		Kohonen kohonen = new Kohonen(3, 4, data, data, DIM);
+		kohonen.setSeed(2);
+		kohonen.setBatch(true);
+		assertRoundTrip(kohonen, ModelFile.KOHONEN, data);
+	}
+
+	@Test
+	public void leaderFollowerRoundTrip() throws Exception
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 6, true, 3);
+		LeaderFollower leaderFollower = new LeaderFollower(3, data, data, DIM);
+		leaderFollower.setPrefetchThreshold(0.3);
+		assertRoundTrip(leaderFollower, ModelFile.LEADER_FOLLOWER, data);
+		assertTrue(leaderFollower.size() > 1);
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class NearestPrototypeTest
+{
+	private static final int ROWS = 500;
+	private static final int DIM = 40;
+	private static final int K = 25;
+
+	// The first dimensions vary much more than the others, so ordering by variance is used
+	private static DataMatrix data(long seed)
+	{
+		Random random = new Random(seed);
+		float[] values = new float[ROWS * DIM];
+		for (int row = 0; row < ROWS; row++)
+			for (int i = 0; i < DIM; i++)
+				values[row * DIM + i] = (float) random.nextGaussian() * (i < DIM / 8 ? 10 : 0.1f);
+		return new FloatMatrix(values, ROWS, DIM);
+	}
+
+	private static float[][] prototypes(DataMatrix data, long seed)
+	{
+		Random random = new Random(seed);
+		float[][] prototypes = new float[K][];
+		for (int c = 0; c < K; c++)
+			prototypes[c] = data.copyRow(random.nextInt(ROWS));
+		return prototypes;
+	}
+
+	// Full squared distances without norms or abandoning, in double
+	private static double[] bruteForce(DataMatrix data, int row, float[][] prototypes)
+	{
+		float[] values = data.copyRow(row);
+		double[] distances = new double[prototypes.length];
+		for (int c = 0; c < prototypes.length; c++)
+			for (int i = 0; i < DIM; i++)
+				distances[c] += (values[i] - prototypes[c][i]) * (double) (values[i] - prototypes[c][i]);
+		return distances;
+	}
+
+	// The nearest prototype and the two best distances are those of a brute force search, in the natural
+	// order and in the order of the variance (only rounding differs)
+	@Test
+	public void sameAsBruteForce()
+	{
+		DataMatrix data = data(1);
+		float[][] prototypes = prototypes(data, 2);
+		for (boolean ordered : new boolean[] {false, true}) {
+			NearestPrototype search = new NearestPrototype(data);
+			if (ordered)
+				assertTrue(search.orderByVariance());
+			search.setPrototypes(prototypes);
+			for (int row = 0; row < ROWS; row++) {
+				double[] distances = bruteForce(data, row, prototypes);
+				double[] sorted = distances.clone();
+				Arrays.sort(sorted);
+
+				int nearest = search.nearest(row);
+				assertEquals(sorted[0], distances[nearest], 1e-4 * (1 + sorted[0]));
+				float[] best = new float[2];
+				assertEquals(nearest, search.nearest(row, best));
+				assertEquals(sorted[0], best[0], 1e-4 * (1 + sorted[0]));
+				assertEquals(sorted[1], best[1], 1e-4 * (1 + sorted[1]));
+			}
+		}
+	}
+
+	// Without a dimension that stands out the natural order is kept
+	@Test
+	public void noOrderForEvenVariance()
+	{
+		DataMatrix data = TestData.generate(ROWS, DIM, 4, false, 3);
+		assertFalse(new NearestPrototype(data).orderByVariance());
+	}
+
+	// The mean of an empty cluster is NaN and never the nearest, no prototypes give -1
+	@Test
+	public void emptyClusterNeverNearest()
+	{
+		DataMatrix data = data(4);
+		NearestPrototype search = new NearestPrototype(data);
+		assertEquals(-1, search.nearest(0));
+
+		float[][] prototypes = prototypes(data, 5);
+		Arrays.fill(prototypes[0], Float.NaN);
+		search.setPrototypes(prototypes);
+		for (int row = 0; row < ROWS; row++)
+			assertNotEquals(0, search.nearest(row));
+	}
+}
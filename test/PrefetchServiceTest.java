@@ -0,0 +1,108 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class PrefetchServiceTest
+{
+	private static final int ROWS = 600;
+	private static final int DIM = 30;
+	private static final int K = 5;
+	private static final double THRESHOLD = 0.4;
+
+	private DataMatrix data;
+	private KMeans kmeans;
+	private List<String> urls;
+	private List<String> clients;
+	private PrefetchService service;
+
+	@BeforeEach
+	public void train()
+	{
+		data = TestData.generate(ROWS, DIM, K, true, 6);
+		kmeans = new KMeans(K, data, data, DIM);
+		kmeans.setVerbose(false);
+		kmeans.setSeed(1);
+		assertTrue(kmeans.train());
+		urls = new ArrayList<>();
+		for (int i = 0; i < DIM; i++)
+			urls.add("/page" + i + ".html");
+		clients = new ArrayList<>();
+		for (int row = 0; row < ROWS; row++)
+			clients.add("client" + row + ".example.org");
+		service = new PrefetchService(kmeans, THRESHOLD, urls, clients);
+	}
+
+	private static double squaredDistance(float[] a, float[] b)
+	{
+		double distance = 0;
+		for (int i = 0; i < a.length; i++)
+			distance += (a[i] - b[i]) * (double) (a[i] - b[i]);
+		return distance;
+	}
+
+	// Per cluster the urls with a prototype value of at least the threshold, the highest value first
+	@Test
+	public void recommendationsOfClusters()
+	{
+		float[][] prototypes = kmeans.prototypes();
+		for (int c = 0; c < K; c++) {
+			List<String> recommended = service.recommendations(c);
+			Set<String> expected = new HashSet<>();
+			for (int i = 0; i < DIM; i++)
+				if (prototypes[c][i] >= THRESHOLD)
+					expected.add(urls.get(i));
+			assertEquals(expected, new HashSet<>(recommended));
+			for (int i = 1; i < recommended.size(); i++)
+				assertTrue(prototypes[c][service.url(recommended.get(i - 1))] >= prototypes[c][service.url(recommended.get(i))]);
+		}
+	}
+
+	// A training client gets the urls of its cluster, an unknown one nothing
+	@Test
+	public void trainingClientsByAssignment()
+	{
+		int[] assignment = kmeans.assignment();
+		for (int row = 0; row < ROWS; row++) {
+			assertEquals(assignment[row], service.cluster(clients.get(row)));
+			assertSame(service.recommendations(assignment[row]), service.recommend(clients.get(row)));
+		}
+		assertEquals(-1, service.cluster("unknown.example.org"));
+		assertTrue(service.recommend("unknown.example.org").isEmpty());
+		assertTrue(service.recommend("unknown.example.org", new int[0]).isEmpty());
+	}
+
+	// A new client gets the cluster with the prototype nearest to the urls it requested
+	@Test
+	public void newClientsByNearestPrototype()
+	{
+		float[][] prototypes = kmeans.prototypes();
+		String[] hostnames = new String[ROWS];
+		int[][] requested = new int[ROWS][];
+		for (int row = 0; row < ROWS; row++) {
+			float[] vector = data.copyRow(row);
+			List<Integer> indices = new ArrayList<>();
+			for (int i = 0; i < DIM; i++)
+				if (vector[i] == 1)
+					indices.add(i);
+			requested[row] = indices.stream().mapToInt(Integer::intValue).toArray();
+			hostnames[row] = "new" + row + ".example.org";
+
+			double best = Double.POSITIVE_INFINITY;
+			for (float[] prototype : prototypes)
+				best = Math.min(best, squaredDistance(vector, prototype));
+			int nearest = service.nearestCluster(vector);
+			assertEquals(best, squaredDistance(vector, prototypes[nearest]), 1e-4);
+			if (requested[row].length > 0) {
+				assertEquals(best, squaredDistance(vector, prototypes[service.nearestCluster(requested[row])]), 1e-4);
+				assertEquals(service.recommendations(service.nearestCluster(requested[row])), service.recommend(hostnames[row], requested[row]));
+			}
+		}
+
+		// the batch lookup gives the same as looking up every client on its own
+		List<List<String>> batch = service.recommend(hostnames, requested);
+		for (int row = 0; row < ROWS; row++)
+			assertEquals(service.recommend(hostnames[row], requested[row]), batch.get(row));
+	}
+}
@@ -0,0 +1,97 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SparseMatrixTest
+{
+	private static final int ROWS = 200;
+	private static final int DIM = 300;
+
+	// Few elements that are not 0, all 1 or with any value, and a few empty rows
+	private static FloatMatrix sparse(boolean binary, long seed)
+	{
+		Random random = new Random(seed);
+		float[] values = new float[ROWS * DIM];
+		for (int row = 0; row < ROWS; row++)
+			for (int i = 0; i < DIM && row % 17 != 0; i++)
+				if (random.nextInt(40) == 0)
+					values[row * DIM + i] = binary ? 1 : random.nextFloat() * 2 - 1;
+		return new FloatMatrix(values, ROWS, DIM);
+	}
+
+	private static float[] prototype(long seed)
+	{
+		Random random = new Random(seed);
+		float[] prototype = new float[DIM];
+		for (int i = 0; i < DIM; i++)
+			prototype[i] = random.nextFloat();
+		return prototype;
+	}
+
+	// The same elements, sums and variances as the dense matrix, and distances within rounding
+	@Test
+	public void sameAsDense()
+	{
+		for (boolean binary : new boolean[] {false, true}) {
+			FloatMatrix dense = sparse(binary, 1);
+			SparseMatrix sparse = SparseMatrix.pack(dense);
+			assertEquals(!binary, sparse.hasValues());
+			float[] prototype = prototype(2);
+			float norm = DataMatrix.squaredNorm(prototype);
+
+			double[] denseSum = new double[DIM];
+			double[] sparseSum = new double[DIM];
+			int[] denseColumns = new int[DIM];
+			int[] sparseColumns = new int[DIM];
+			for (int row = 0; row < ROWS; row++) {
+				assertArrayEquals(dense.copyRow(row), sparse.copyRow(row));
+				for (int i = 0; i < DIM; i += 7)
+					assertEquals(dense.get(row, i), sparse.get(row, i));
+				int count = dense.nonZeros(row, denseColumns);
+				assertEquals(count, sparse.nonZeros(row, sparseColumns));
+				assertArrayEquals(Arrays.copyOf(denseColumns, count), Arrays.copyOf(sparseColumns, count));
+
+				float expected = dense.squaredDistance(row, prototype);
+				assertEquals(expected, sparse.squaredDistance(row, prototype), 1e-4f * (1 + expected));
+				assertEquals(expected, sparse.squaredDistance(row, prototype, norm), 1e-4f * (1 + expected));
+				assertEquals(expected, sparse.squaredDistance(row, prototype, norm, Float.MAX_VALUE, null), 1e-4f * (1 + expected));
+
+				dense.addTo(row, denseSum);
+				sparse.addTo(row, sparseSum);
+			}
+			assertArrayEquals(denseSum, sparseSum, 1e-9);
+			assertArrayEquals(dense.variances(), sparse.variances(), 1e-9);
+		}
+	}
+
+	// For 0/1 data the distances are exactly those of the packed bits
+	@Test
+	public void sameDistancesAsBits()
+	{
+		FloatMatrix dense = sparse(true, 3);
+		SparseMatrix sparse = SparseMatrix.pack(dense);
+		BinaryMatrix bits = BinaryMatrix.pack(dense);
+		float[] prototype = prototype(4);
+		float norm = DataMatrix.squaredNorm(prototype);
+		for (int row = 0; row < ROWS; row++)
+			assertEquals(bits.squaredDistance(row, prototype, norm), sparse.squaredDistance(row, prototype, norm));
+	}
+
+	// Moving a prototype towards a row changes every element, like with the dense matrix
+	@Test
+	public void moveTowardsSameAsDense()
+	{
+		FloatMatrix dense = sparse(false, 5);
+		SparseMatrix sparse = SparseMatrix.pack(dense);
+		float[] expected = prototype(6);
+		float[] actual = expected.clone();
+		for (int row = 0; row < ROWS; row++) {
+			float expectedNorm = dense.moveTowards(row, expected, 0.1);
+			float actualNorm = sparse.moveTowards(row, actual, 0.1);
+			assertEquals(expectedNorm, actualNorm, 1e-4f * (1 + expectedNorm));
+			assertArrayEquals(expected, actual, 1e-6f);
+		}
+	}
+}
@@ -0,0 +1,33 @@
+import java.util.*;
+
+// Datasets for the tests: rows around a number of centres, where an element of a centre is 0.8 or 0.1.
+// A row has the centre plus gaussian noise, or is 0/1 with the centre as the chance of a 1.
+final class TestData
+{
+	private TestData()
+	{
+	}
+
+	static float[] values(int rows, int dim, int centres, boolean binary, long seed)
+	{
+		Random random = new Random(seed);
+		float[][] centre = new float[centres][dim];
+		for (float[] c : centre)
+			for (int i = 0; i < dim; i++)
+				c[i] = random.nextInt(5) == 0 ? 0.8f : 0.1f;
+		float[] values = new float[rows * dim];
+		for (int row = 0; row < rows; row++) {
+			float[] c = centre[random.nextInt(centres)];
+			for (int i = 0; i < dim; i++)
+				values[row * dim + i] = binary ? (random.nextFloat() < c[i] ? 1 : 0) : c[i] + (float) random.nextGaussian() * 0.3f;
+		}
+		return values;
+	}
+
+	// The rows as a matrix, packed in bits when they are 0/1
+	static DataMatrix generate(int rows, int dim, int centres, boolean binary, long seed)
+	{
+		FloatMatrix data = new FloatMatrix(values(rows, dim, centres, binary, seed), rows, dim);
+		return binary ? BinaryMatrix.pack(data) : data;
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.*;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ThresholdCurveTest
+{
+	// Every point of the curve is what Evaluation gives at that threshold, for sparse, packed and float data,
+	// with clients without a cluster and prototype values that occur more than once
+	@Test
+	public void sameAsEvaluationAtEveryThreshold() throws Exception
+	{
+		int rows = 3000;
+		int dim = 300;
+		Random random = new Random(1);
+		float[] values = new float[rows * dim];
+		for (int i = 0; i < values.length; i++)
+			values[i] = random.nextInt(40) == 0 ? 1 : 0;
+		FloatMatrix floats = new FloatMatrix(values, rows, dim);
+
+		for (int k : new int[] {1, 5, 40}) {
+			float[][] prototypes = new float[k][dim];
+			for (float[] prototype : prototypes)
+				for (int i = 0; i < dim; i++)
+					prototype[i] = random.nextInt(20) / 20f;
+			int[] assignment = new int[rows];
+			for (int row = 0; row < rows; row++)
+				assignment[row] = random.nextInt(10) == 0 ? -1 : random.nextInt(k);
+
+			for (DataMatrix testData : new DataMatrix[] {floats, BinaryMatrix.pack(floats), SparseMatrix.pack(floats)}) {
+				ThresholdCurve curve = ThresholdCurve.of(prototypes, assignment, testData);
+				assertEquals(20, curve.size());
+				for (int point = 0; point < curve.size(); point++) {
+					Evaluation evaluation = Evaluation.of(prototypes, curve.threshold(point), assignment, testData);
+					assertEquals(evaluation.hitrate(), curve.hitrate(point), 1e-12);
+					assertEquals(evaluation.accuracy(), curve.accuracy(point), 1e-12);
+					assertTrue(point == 0 || curve.threshold(point) < curve.threshold(point - 1));
+				}
+
+				// a threshold between two values gives the point of the next higher value
+				assertEquals(curve.at(0.5), curve.at(0.49));
+				assertEquals(-1, curve.at(1));
+			}
+		}
+	}
+}
@@ -0,0 +1,253 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.LongBuffer;
+
+import jdk.incubator.vector.*;
+
+public class VectorKernels extends Kernels
+{
+	// The kernels of Kernels with the Vector API: every loop handles a whole vector of the preferred size of
+	// the cpu at a time (8 floats with AVX2, 16 with AVX-512) and the elements that are left over one at a
+	// time. Rows of off-heap (mapped) data have no array, their vectors are loaded from the bytes instead.
+	// Multiplications and additions are not fused, so every element gets exactly the same value as in the
+	// scalar kernels, only sums over the elements are added up in another order.
+
+	private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+	private static final VectorSpecies<Double> DOUBLES = DoubleVector.SPECIES_PREFERRED;
+
+	// floats with as many lanes as DOUBLES, to convert them to doubles
+	private static final VectorSpecies<Float> CONVERTED = VectorSpecies.of(float.class, VectorShape.forBitSize(DOUBLES.vectorBitSize() / 2));
+
+	// ints with as many lanes as FLOATS, lane l holds 1 << l: the bits of a word that belong to a vector of
+	// floats are tested with these (VectorMask.fromLong is not compiled to vector instructions in Java 17)
+	private static final VectorSpecies<Integer> INTS = VectorSpecies.of(int.class, FLOATS.vectorShape());
+	private static final IntVector LANE_BITS = IntVector.broadcast(INTS, 1).lanewise(VectorOperators.LSHL, IntVector.zero(INTS).addIndex(1));
+
+	// the elements of a vector of floats gathered from a buffer
+	private static final ThreadLocal<float[]> LANES = ThreadLocal.withInitial(() -> new float[FLOATS.length()]);
+
+	public String toString()
+	{
+		return "vector (" + FLOATS.length() + " floats)";
+	}
+
+	public float squaredDistance(FloatBuffer data, int offset, float[] prototype, int from, int to, float distance)
+	{
+		if (!data.hasArray())
+			return super.squaredDistance(data, offset, prototype, from, to, distance);
+		float[] values = data.array();
+		int base = data.arrayOffset() + offset;
+
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = from;
+		for (int end = from + FLOATS.loopBound(to - from); i < end; i += FLOATS.length()) {
+			FloatVector difference = FloatVector.fromArray(FLOATS, values, base + i).sub(FloatVector.fromArray(FLOATS, prototype, i));
+			sum = sum.add(difference.mul(difference));
+		}
+		distance += sum.reduceLanes(VectorOperators.ADD);
+		for (; i < to; i++) {
+			float difference = values[base + i] - prototype[i];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredDistance(FloatBuffer data, int offset, float[] prototype, int[] order, int from, int to, float distance)
+	{
+		if (!data.hasArray())
+			return super.squaredDistance(data, offset, prototype, order, from, to, distance);
+		float[] values = data.array();
+		int base = data.arrayOffset() + offset;
+
+		// gathers the elements in the order of the dimensions
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = from;
+		for (int end = from + FLOATS.loopBound(to - from); i < end; i += FLOATS.length()) {
+			FloatVector difference = FloatVector.fromArray(FLOATS, values, base, order, i).sub(FloatVector.fromArray(FLOATS, prototype, 0, order, i));
+			sum = sum.add(difference.mul(difference));
+		}
+		distance += sum.reduceLanes(VectorOperators.ADD);
+		for (; i < to; i++) {
+			int index = order[i];
+			float difference = values[base + index] - prototype[index];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredDistance(ByteBuffer data, int offset, float[] prototype, int from, int to, float distance)
+	{
+		ByteOrder order = data.order();
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = from;
+		for (int end = from + FLOATS.loopBound(to - from); i < end; i += FLOATS.length()) {
+			FloatVector difference = FloatVector.fromByteBuffer(FLOATS, data, (offset + i) * 4, order).sub(FloatVector.fromArray(FLOATS, prototype, i));
+			sum = sum.add(difference.mul(difference));
+		}
+		distance += sum.reduceLanes(VectorOperators.ADD);
+		for (; i < to; i++) {
+			float difference = data.getFloat((offset + i) * 4) - prototype[i];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredDistance(ByteBuffer data, int offset, float[] prototype, int[] order, int from, int to, float distance)
+	{
+		// there is no gather from a buffer, the elements of a vector are collected in lanes first
+		float[] lanes = LANES.get();
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = from;
+		for (int end = from + FLOATS.loopBound(to - from); i < end; i += FLOATS.length()) {
+			for (int l = 0; l < lanes.length; l++)
+				lanes[l] = data.getFloat((offset + order[i + l]) * 4);
+			FloatVector difference = FloatVector.fromArray(FLOATS, lanes, 0).sub(FloatVector.fromArray(FLOATS, prototype, 0, order, i));
+			sum = sum.add(difference.mul(difference));
+		}
+		distance += sum.reduceLanes(VectorOperators.ADD);
+		for (; i < to; i++) {
+			int index = order[i];
+			float difference = data.getFloat((offset + index) * 4) - prototype[index];
+			distance += difference * difference;
+		}
+		return distance;
+	}
+
+	public float squaredNorm(float[] vector)
+	{
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int end = FLOATS.loopBound(vector.length); i < end; i += FLOATS.length()) {
+			FloatVector value = FloatVector.fromArray(FLOATS, vector, i);
+			sum = sum.add(value.mul(value));
+		}
+		float norm = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < vector.length; i++)
+			norm += vector[i] * vector[i];
+		return norm;
+	}
+
+	public float moveTowards(FloatBuffer data, int offset, float[] prototype, double rate)
+	{
+		if (!data.hasArray())
+			return super.moveTowards(data, offset, prototype, rate);
+		float[] values = data.array();
+		int base = data.arrayOffset() + offset;
+		float keep = (float) (1-rate);
+		float move = (float) rate;
+
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int end = FLOATS.loopBound(prototype.length); i < end; i += FLOATS.length()) {
+			FloatVector value = FloatVector.fromArray(FLOATS, prototype, i).mul(keep).add(FloatVector.fromArray(FLOATS, values, base + i).mul(move));
+			value = flush(value);
+			value.intoArray(prototype, i);
+			sum = sum.add(value.mul(value));
+		}
+		float norm = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < prototype.length; i++) {
+			float value = keep * prototype[i] + move * values[base + i];
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	public float moveTowards(ByteBuffer data, int offset, float[] prototype, double rate)
+	{
+		ByteOrder order = data.order();
+		float keep = (float) (1-rate);
+		float move = (float) rate;
+
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int end = FLOATS.loopBound(prototype.length); i < end; i += FLOATS.length()) {
+			FloatVector value = FloatVector.fromArray(FLOATS, prototype, i).mul(keep).add(FloatVector.fromByteBuffer(FLOATS, data, (offset + i) * 4, order).mul(move));
+			value = flush(value);
+			value.intoArray(prototype, i);
+			sum = sum.add(value.mul(value));
+		}
+		float norm = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < prototype.length; i++) {
+			float value = keep * prototype[i] + move * data.getFloat((offset + i) * 4);
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	public float moveTowards(LongBuffer bits, int first, float[] prototype, double rate)
+	{
+		// the lanes of a vector are a whole number of bits of one word
+		if (64 % FLOATS.length() != 0)
+			return super.moveTowards(bits, first, prototype, rate);
+		float keep = (float) (1-rate);
+		float move = (float) rate;
+
+		// (1-rate)*p + rate*bit is (1-rate)*p, plus rate in the lanes of the set bits
+		FloatVector sum = FloatVector.zero(FLOATS);
+		int i = 0;
+		for (int end = FLOATS.loopBound(prototype.length); i < end; i += FLOATS.length()) {
+			int word = (int) (bits.get(first + (i >>> 6)) >>> (i & 63));
+			VectorMask<Float> set = IntVector.broadcast(INTS, word).and(LANE_BITS).compare(VectorOperators.NE, 0).cast(FLOATS);
+			FloatVector value = FloatVector.fromArray(FLOATS, prototype, i).mul(keep).add(move, set);
+			value = flush(value);
+			value.intoArray(prototype, i);
+			sum = sum.add(value.mul(value));
+		}
+		float norm = sum.reduceLanes(VectorOperators.ADD);
+		for (; i < prototype.length; i++) {
+			float bit = (bits.get(first + (i >>> 6)) >>> i) & 1L;
+			float value = keep * prototype[i] + move * bit;
+			prototype[i] = Math.abs(value) < Float.MIN_NORMAL ? 0 : value;
+			norm += prototype[i] * prototype[i];
+		}
+		return norm;
+	}
+
+	// Subnormal elements become 0, like in the scalar kernels
+	private static FloatVector flush(FloatVector value)
+	{
+		return value.blend(0, value.abs().compare(VectorOperators.LT, Float.MIN_NORMAL));
+	}
+
+	public void add(FloatBuffer data, int offset, double[] sum)
+	{
+		if (!data.hasArray()) {
+			super.add(data, offset, sum);
+			return;
+		}
+		float[] values = data.array();
+		int base = data.arrayOffset() + offset;
+
+		int i = 0;
+		for (int end = DOUBLES.loopBound(sum.length); i < end; i += DOUBLES.length()) {
+			DoubleVector value = (DoubleVector) FloatVector.fromArray(CONVERTED, values, base + i).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector.fromArray(DOUBLES, sum, i).add(value).intoArray(sum, i);
+		}
+		for (; i < sum.length; i++)
+			sum[i] += values[base + i];
+	}
+
+	public void add(ByteBuffer data, int offset, double[] sum)
+	{
+		ByteOrder order = data.order();
+		int i = 0;
+		for (int end = DOUBLES.loopBound(sum.length); i < end; i += DOUBLES.length()) {
+			DoubleVector value = (DoubleVector) FloatVector.fromByteBuffer(CONVERTED, data, (offset + i) * 4, order).convertShape(VectorOperators.F2D, DOUBLES, 0);
+			DoubleVector.fromArray(DOUBLES, sum, i).add(value).intoArray(sum, i);
+		}
+		for (; i < sum.length; i++)
+			sum[i] += data.getFloat((offset + i) * 4);
+	}
+
+	public void add(double[] values, double[] sum)
+	{
+		int i = 0;
+		for (int end = DOUBLES.loopBound(sum.length); i < end; i += DOUBLES.length())
+			DoubleVector.fromArray(DOUBLES, sum, i).add(DoubleVector.fromArray(DOUBLES, values, i)).intoArray(sum, i);
+		for (; i < sum.length; i++)
+			sum[i] += values[i];
+	}
+}